@@ -0,0 +1,293 @@
+package edu.utdallas.hlt.medbase.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Parses large delimited text files (SNOMED release files, UMLS RRF files) in parallel.
+ *
+ * The file is split into byte ranges aligned to line boundaries, each range is memory-mapped and
+ * parsed by a fork-join task into its own accumulator, and the accumulators are returned in file
+ * order so callers can merge them deterministically.  Columns are exposed as byte ranges through
+ * {@link Row}, so numeric fields are parsed straight from the mapped bytes without creating
+ * Strings.  Files are expected to be UTF-8 with '\n' or "\r\n" line endings.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DelimitedFileReader {
+  private static final Logger log = Logger.get(DelimitedFileReader.class);
+
+  /** Target size of the byte range parsed by a single task */
+  private static final long CHUNK_BYTES = 32L << 20;
+
+  private final Path    path;
+  private final byte    delimiter;
+  private final boolean skipHeader;
+  private final long    chunkBytes;
+
+  public DelimitedFileReader(Path path, char delimiter, boolean skipHeader) {
+    this(path, delimiter, skipHeader, CHUNK_BYTES);
+  }
+
+  /** @param chunkBytes target size of the byte range parsed by a single task */
+  DelimitedFileReader(Path path, char delimiter, boolean skipHeader, long chunkBytes) {
+    this.path = path;
+    this.delimiter = (byte) delimiter;
+    this.skipHeader = skipHeader;
+    this.chunkBytes = chunkBytes;
+  }
+
+  /** Receives each row of a chunk along with that chunk's accumulator */
+  @FunctionalInterface
+  public interface RowHandler<A> {
+    void handle(Row row, A accumulator);
+  }
+
+  /** Parses the file on the common fork-join pool */
+  public <A> List<A> read(Supplier<A> supplier, RowHandler<A> handler) throws IOException {
+    return read(ForkJoinPool.commonPool(), supplier, handler);
+  }
+
+  /**
+   * Parses every line of the file (except the header, if configured) with {@code handler}.
+   *
+   * @param supplier creates one accumulator per chunk; accumulators are only touched by one thread
+   * @return the per-chunk accumulators, in file order
+   */
+  public <A> List<A> read(ForkJoinPool pool, Supplier<A> supplier, RowHandler<A> handler) throws IOException {
+    final long start = System.currentTimeMillis();
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long[] bounds = split(channel, pool.getParallelism());
+      final List<A> results = pool.invoke(new ChunkTask<>(channel, bounds, 0, bounds.length - 1, supplier, handler));
+      log.debug("Parsed {} in {} chunks in {}ms", path, bounds.length - 1, System.currentTimeMillis() - start);
+      return results;
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** @return chunk boundaries: chunk i covers bytes [bounds[i], bounds[i + 1]) and holds whole lines */
+  private long[] split(FileChannel channel, int parallelism) throws IOException {
+    final long size = channel.size();
+    long first = 0;
+    if (skipHeader) {
+      first = nextLine(channel, 0);
+    }
+    final int chunks = (int) Math.max(1, Math.min((size - first) / chunkBytes + 1, Math.max(1, parallelism) * 64L));
+    final long[] bounds = new long[chunks + 1];
+    bounds[0] = first;
+    for (int i = 1; i < chunks; i++) {
+      bounds[i] = Math.max(bounds[i - 1], nextLine(channel, first + (size - first) * i / chunks));
+    }
+    bounds[chunks] = size;
+    return bounds;
+  }
+
+  /** @return the offset of the line following the one containing {@code position}, or the file size */
+  private static long nextLine(FileChannel channel, long position) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    for (long offset = position; ; ) {
+      buffer.clear();
+      final int read = channel.read(buffer, offset);
+      if (read <= 0) {
+        return channel.size();
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return offset + i + 1;
+        }
+      }
+      offset += read;
+    }
+  }
+
+  private class ChunkTask<A> extends RecursiveTask<List<A>> {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel     channel;
+    private final long[]          bounds;
+    private final int             from, to;
+    private final Supplier<A>     supplier;
+    private final RowHandler<A>   handler;
+
+    ChunkTask(FileChannel channel, long[] bounds, int from, int to, Supplier<A> supplier, RowHandler<A> handler) {
+      this.channel = channel;
+      this.bounds = bounds;
+      this.from = from;
+      this.to = to;
+      this.supplier = supplier;
+      this.handler = handler;
+    }
+
+    @Override protected List<A> compute() {
+      if (to - from > 1) {
+        final int mid = (from + to) >>> 1;
+        final ChunkTask<A> left = new ChunkTask<>(channel, bounds, from, mid, supplier, handler);
+        final ChunkTask<A> right = new ChunkTask<>(channel, bounds, mid, to, supplier, handler);
+        right.fork();
+        final List<A> results = new ArrayList<>(left.compute());
+        results.addAll(right.join());
+        return results;
+      }
+      final A accumulator = supplier.get();
+      final long length = bounds[to] - bounds[from];
+      if (length > 0) {
+        try {
+          parse(channel.map(FileChannel.MapMode.READ_ONLY, bounds[from], length), accumulator);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+      return Collections.singletonList(accumulator);
+    }
+
+    private void parse(ByteBuffer buffer, A accumulator) {
+      final Row row = new Row(buffer, delimiter);
+      final int limit = buffer.limit();
+      for (int start = 0; start < limit; ) {
+        int end = start;
+        while (end < limit && buffer.get(end) != '\n') {
+          end++;
+        }
+        final int next = end + 1;
+        if (end > start && buffer.get(end - 1) == '\r') {
+          end--;
+        }
+        if (end > start) {
+          row.reset(start, end);
+          handler.handle(row, accumulator);
+        }
+        start = next;
+      }
+    }
+  }
+
+  /**
+   * A single line, split into columns.  Rows are reused between lines, so handlers must not retain
+   * them.
+   */
+  public static final class Row {
+    private final ByteBuffer buffer;
+    private final byte       delimiter;
+
+    private int[] starts = new int[16];
+    private int[] ends   = new int[16];
+    private int   columns;
+    private int   lineStart, lineEnd;
+
+    Row(ByteBuffer buffer, byte delimiter) {
+      this.buffer = buffer;
+      this.delimiter = delimiter;
+    }
+
+    void reset(int start, int end) {
+      lineStart = start;
+      lineEnd = end;
+      columns = 0;
+      int columnStart = start;
+      for (int i = start; i <= end; i++) {
+        if (i == end || buffer.get(i) == delimiter) {
+          if (columns == starts.length) {
+            starts = Arrays.copyOf(starts, columns * 2);
+            ends = Arrays.copyOf(ends, columns * 2);
+          }
+          starts[columns] = columnStart;
+          ends[columns] = i;
+          columns++;
+          columnStart = i + 1;
+        }
+      }
+    }
+
+    /** @return the number of columns on this line */
+    public int columns() {
+      return columns;
+    }
+
+    /** @return the length of the given column, in bytes */
+    public int length(int column) {
+      return ends[column] - starts[column];
+    }
+
+    /** @return the given column parsed as a non-negative decimal long */
+    public long getLong(int column) {
+      final int start = starts[column], end = ends[column];
+      if (start == end || end - start > 18) {
+        throw new NumberFormatException("Invalid numeric column " + column + ": " + getString(column));
+      }
+      long value = 0;
+      for (int i = start; i < end; i++) {
+        final int digit = buffer.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          throw new NumberFormatException("Invalid numeric column " + column + ": " + getString(column));
+        }
+        value = value * 10 + digit;
+      }
+      return value;
+    }
+
+    /** @return the given column parsed as a non-negative decimal int */
+    public int getInt(int column) {
+      final long value = getLong(column);
+      if (value > Integer.MAX_VALUE) {
+        throw new NumberFormatException("Invalid int column " + column + ": " + value);
+      }
+      return (int) value;
+    }
+
+    /** @return true if the given column is exactly the single character {@code c} */
+    public boolean is(int column, char c) {
+      return ends[column] - starts[column] == 1 && buffer.get(starts[column]) == c;
+    }
+
+    /** @return true if the given column is exactly the ASCII string {@code value} */
+    public boolean is(int column, String value) {
+      final int start = starts[column];
+      if (ends[column] - start != value.length()) {
+        return false;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        if (buffer.get(start + i) != value.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** @return the byte at the given position of a column */
+    public byte byteAt(int column, int index) {
+      return buffer.get(starts[column] + index);
+    }
+
+    /** @return the given column decoded as UTF-8 */
+    public String getString(int column) {
+      return decode(starts[column], ends[column]);
+    }
+
+    /** @return the whole line decoded as UTF-8, for diagnostics */
+    public String line() {
+      return decode(lineStart, lineEnd);
+    }
+
+    private String decode(int start, int end) {
+      final byte[] bytes = new byte[end - start];
+      for (int i = start; i < end; i++) {
+        bytes[i - start] = buffer.get(i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package edu.utdallas.hlt.medbase.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Append-only file of checksummed records, used to persist caches incrementally.
+ *
+ * Layout: a header (magic, version), followed by records framed as (length, CRC32 of the payload,
+ * payload), all big-endian.  Records are only ever appended, so a crash can at worst leave a torn
+ * last record; on {@link #open} records are replayed up to the first one that is truncated or
+ * fails its checksum and the file is cut back to that point.  Since later records may supersede
+ * earlier ones, owners should {@link #compactIfStale} the log as they append, which keeps the
+ * last record of each key read back from the log itself.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RecordLog implements Closeable {
+  private static final Logger log = Logger.get(RecordLog.class);
+
+  private static final int HEADER_BYTES = 12;
+  private static final int FRAME_BYTES  = 8;
+
+  private final Path path;
+  private final long magic;
+  private final int  version;
+
+  private DataOutputStream out;
+  private int              records;
+
+  /* Number of records right after the log was opened or last compacted */
+  private int compacted;
+
+  private RecordLog(Path path, long magic, int version) {
+    this.path = path;
+    this.magic = magic;
+    this.version = version;
+  }
+
+  /**
+   * Opens (or creates) the log at the given path and passes the payload of every valid record to
+   * {@code replay}, in order.  Logs with another magic or version are discarded.
+   */
+  public static RecordLog open(Path path, long magic, int version, Consumer<ByteBuffer> replay) throws IOException {
+    final RecordLog recordLog = new RecordLog(path, magic, version);
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    long valid = 0;
+    if (Files.exists(path)) {
+      try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        valid = recordLog.replay(channel, replay);
+        if (valid < channel.size()) {
+          log.warn("Discarding {} bytes after the last valid record of {}", channel.size() - valid, path);
+          channel.truncate(valid);
+          channel.force(true);
+        }
+      }
+    }
+    if (valid == 0) {
+      recordLog.reset(path);
+    }
+    recordLog.out = append(path);
+    recordLog.compacted = recordLog.records;
+    log.debug("Replayed {} records from {}", recordLog.records, path);
+    return recordLog;
+  }
+
+  /** @return the offset just past the last valid record, or 0 if the header is invalid */
+  private long replay(FileChannel channel, Consumer<ByteBuffer> replay) throws IOException {
+    final long size = channel.size();
+    if (size < HEADER_BYTES) {
+      return 0;
+    }
+    final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.BIG_ENDIAN);
+    if (buffer.getLong(0) != magic || buffer.getInt(8) != version) {
+      log.warn("Discarding {}: not a version {} log", path, version);
+      return 0;
+    }
+    return scan(buffer, payload -> {
+      replay.accept(payload);
+      records++;
+    });
+  }
+
+  /**
+   * Passes the payload of every valid record after the header of {@code buffer} to {@code consumer}
+   *
+   * @return the offset just past the last valid record
+   */
+  private static int scan(ByteBuffer buffer, Consumer<ByteBuffer> consumer) {
+    final int size = buffer.limit();
+    final CRC32 crc = new CRC32();
+    int position = HEADER_BYTES;
+    while (position + FRAME_BYTES <= size) {
+      final int length = buffer.getInt(position);
+      final int checksum = buffer.getInt(position + 4);
+      if (length < 0 || position + FRAME_BYTES + (long) length > size) {
+        break;
+      }
+      final ByteBuffer payload = buffer.duplicate();
+      payload.position(position + FRAME_BYTES);
+      payload.limit(position + FRAME_BYTES + length);
+      crc.reset();
+      crc.update(payload.slice());
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      consumer.accept(payload.slice());
+      position += FRAME_BYTES + length;
+    }
+    return position;
+  }
+
+  /** Replaces the file at {@code target} with an empty log */
+  private void reset(Path target) throws IOException {
+    try (DataOutputStream header = new DataOutputStream(Files.newOutputStream(target))) {
+      header.writeLong(magic);
+      header.writeInt(version);
+    }
+    records = 0;
+  }
+
+  private static DataOutputStream append(Path path) throws IOException {
+    final OutputStream stream = Channels.newOutputStream(FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    return new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+  }
+
+  /**
+   * Appends one record.  The record is handed to the operating system before this returns, so it
+   * survives a crash of the JVM (but not necessarily of the machine).
+   */
+  public synchronized void append(byte[] payload) throws IOException {
+    write(out, payload);
+    out.flush();
+    records++;
+  }
+
+  private static void write(DataOutputStream out, byte[] payload) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc.getValue());
+    out.write(payload);
+  }
+
+  /** @return the number of records in the log, including superseded ones */
+  public synchronized int records() {
+    return records;
+  }
+
+  /**
+   * Atomically replaces the log with one holding only the given records.  Appends block while the
+   * log is being compacted.
+   */
+  public synchronized void compact(Iterable<byte[]> live) throws IOException {
+    final long start = System.currentTimeMillis();
+    final int before = records;
+    out.close();
+    final Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      reset(temp);
+      try (DataOutputStream compacted = append(temp)) {
+        for (byte[] payload : live) {
+          write(compacted, payload);
+          records++;
+        }
+      }
+      try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+      out = append(path);
+    }
+    compacted = records;
+    log.debug("Compacted {} from {} to {} records in {}ms", path, before, records, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Atomically replaces the log with one holding only the last record of each key.  Records are
+   * read back from the file, so entries their owner no longer holds in memory are kept.
+   *
+   * @param keyOf returns the key of a record payload; it may consume the payload, and may return a
+   *              view of it (such as a {@link ByteBuffer} slice)
+   */
+  public synchronized void compact(Function<ByteBuffer, ?> keyOf) throws IOException {
+    out.flush();
+    final Map<Object, ByteBuffer> latest = new LinkedHashMap<>();
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+      scan(buffer, payload -> {
+        final Object key = keyOf.apply(payload.duplicate());
+        // Re-insert, so records keep the order in which their last version was appended
+        latest.remove(key);
+        latest.put(key, payload);
+      });
+    }
+    // Copy the records out of the mapping before the file it maps is replaced
+    final List<byte[]> live = new ArrayList<>(latest.size());
+    for (ByteBuffer payload : latest.values()) {
+      final byte[] bytes = new byte[payload.remaining()];
+      payload.duplicate().get(bytes);
+      live.add(bytes);
+    }
+    latest.clear();
+    compact(live);
+  }
+
+  /**
+   * {@link #compact(Function) Compacts} the log once at least {@code minRecords} records have been
+   * appended, and it holds more than {@code ratio} times as many records as it did after it was
+   * opened or last compacted.  Calling this after every append keeps compaction amortized O(1).
+   *
+   * @return whether the log was compacted
+   */
+  public synchronized boolean compactIfStale(Function<ByteBuffer, ?> keyOf, int ratio, int minRecords) throws IOException {
+    if (records - compacted < minRecords || records <= (long) ratio * compacted) {
+      return false;
+    }
+    compact(keyOf);
+    return true;
+  }
+
+  @Override public synchronized void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,220 @@
+package edu.utdallas.hlt.medbase.io;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned binary files made of tagged sections, written once and memory-mapped read-only.
+ *
+ * Layout: a header (magic, version, section count), a section table of (tag, offset, length)
+ * entries, followed by the 8-byte aligned sections themselves.  All values are little-endian.
+ * Files are written to a temporary file and atomically moved into place, so concurrent readers
+ * never observe a partial file.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SectionFile {
+  public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final int HEADER_BYTES  = 16;
+  private static final int SECTION_BYTES = 20;
+
+  private SectionFile() {}
+
+  /**
+   * Maps the file at the given path read-only and slices it into sections.  The channel is closed
+   * immediately; the mapping stays valid until the returned buffers are garbage collected.
+   *
+   * @param sections the highest section tag; every tag from 1 to {@code sections} must be present
+   * @param what     description of the file, for error messages
+   * @return the sections, indexed by tag (index 0 is unused)
+   * @throws IOException if the file is missing, truncated or corrupt, or was written with another magic or version
+   */
+  public static ByteBuffer[] map(Path path, long magic, int version, int sections, String what) throws IOException {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long length = channel.size();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException(what + " " + path + " exceeds 2GB");
+      }
+      if (length < HEADER_BYTES) {
+        throw new IOException(what + " " + path + " is truncated");
+      }
+      return slice(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), magic, version, sections, what);
+    }
+  }
+
+  private static ByteBuffer[] slice(ByteBuffer buffer, long magic, int version, int sections, String what) throws IOException {
+    buffer.order(ORDER);
+    if (buffer.getLong(0) != magic) {
+      throw new IOException("Not a " + what);
+    }
+    final int found = buffer.getInt(8);
+    if (found != version) {
+      throw new IOException("Unsupported " + what + " version " + found + " (expected " + version + ")");
+    }
+    final int count = buffer.getInt(12);
+    final long table = HEADER_BYTES + (long) count * SECTION_BYTES;
+    if (count < 0 || table > buffer.capacity()) {
+      throw new IOException(what + " is truncated or corrupt: section table of " + count + " entries");
+    }
+    final ByteBuffer[] views = new ByteBuffer[sections + 1];
+    for (int i = 0; i < count; i++) {
+      final int entry = HEADER_BYTES + i * SECTION_BYTES;
+      final int tag = buffer.getInt(entry);
+      final long offset = buffer.getLong(entry + 4);
+      final long length = buffer.getLong(entry + 12);
+      // Checked before use, so a torn or damaged file is reported as such rather than as a bad slice
+      if (offset < table || length < 0 || offset > buffer.capacity() - length) {
+        throw new IOException(what + " is truncated or corrupt: section " + tag + " spans [" + offset + ", "
+            + (offset + length) + ") of " + buffer.capacity() + " bytes");
+      }
+      if (tag > 0 && tag < views.length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) (offset + length));
+        views[tag] = view.slice().order(ORDER);
+      }
+    }
+    for (int tag = 1; tag < views.length; tag++) {
+      if (views[tag] == null) {
+        throw new IOException(what + " is missing section " + tag);
+      }
+    }
+    return views;
+  }
+
+  /**
+   * Overwrites the section with the given tag in place, for updating metadata without rewriting
+   * the file.  Readers that mapped the file see the new contents.
+   *
+   * @throws IOException if the file is not a valid section file, or has no such section of the same length
+   */
+  public static void rewrite(Path path, long magic, int version, int tag, ByteBuffer section) throws IOException {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+      readFully(channel, header, 0);
+      if (header.getLong(0) != magic || header.getInt(8) != version) {
+        throw new IOException("Cannot rewrite section " + tag + " of " + path + ": not a section file of version " + version);
+      }
+      final ByteBuffer table = ByteBuffer.allocate(header.getInt(12) * SECTION_BYTES).order(ORDER);
+      readFully(channel, table, HEADER_BYTES);
+      for (int entry = 0; entry < table.capacity(); entry += SECTION_BYTES) {
+        if (table.getInt(entry) == tag) {
+          if (table.getLong(entry + 12) != section.remaining()) {
+            throw new IOException("Cannot rewrite section " + tag + " of " + path + " with " + section.remaining()
+                + " bytes (expected " + table.getLong(entry + 12) + ")");
+          }
+          writeFully(channel, section.duplicate(), table.getLong(entry + 4));
+          channel.force(false);
+          return;
+        }
+      }
+      throw new IOException("Cannot rewrite missing section " + tag + " of " + path);
+    }
+  }
+
+  /** Accumulates sections and writes them as a section file.  Not thread-safe. */
+  public static class Writer {
+    private final TIntArrayList    tags     = new TIntArrayList();
+    private final List<ByteBuffer> sections = new ArrayList<>();
+
+    public Writer add(int tag, ByteBuffer section) {
+      tags.add(tag);
+      sections.add(section);
+      return this;
+    }
+
+    public Writer add(int tag, int[] values) {
+      return add(tag, ints(values));
+    }
+
+    public Writer add(int tag, long[] values) {
+      return add(tag, longs(values));
+    }
+
+    public Writer add(int tag, byte[] values) {
+      return add(tag, ByteBuffer.wrap(values));
+    }
+
+    /** @return a read-only view of the section with the given tag, for using the sections without writing them */
+    public ByteBuffer section(int tag) {
+      final int index = tags.indexOf(tag);
+      if (index < 0) {
+        throw new IllegalArgumentException("No section " + tag);
+      }
+      return sections.get(index).asReadOnlyBuffer().order(ORDER);
+    }
+
+    public void write(Path path, long magic, int version) throws IOException {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + sections.size() * SECTION_BYTES).order(ORDER);
+      header.putLong(magic).putInt(version).putInt(sections.size());
+      long offset = align(header.capacity());
+      for (int i = 0; i < sections.size(); i++) {
+        final long length = sections.get(i).remaining();
+        header.putInt(tags.get(i)).putLong(offset).putLong(length);
+        offset = align(offset + length);
+      }
+      header.flip();
+
+      final Path parent = path.toAbsolutePath().getParent();
+      Files.createDirectories(parent);
+      final Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+      try {
+        try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          writeFully(channel, header, 0);
+          offset = align(header.capacity());
+          for (ByteBuffer section : sections) {
+            final long length = section.remaining();
+            writeFully(channel, section, offset);
+            offset = align(offset + length);
+          }
+          channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  public static ByteBuffer longs(long[] values) {
+    final ByteBuffer buffer = ByteBuffer.allocate(values.length * Long.BYTES).order(ORDER);
+    buffer.asLongBuffer().put(values);
+    return buffer;
+  }
+
+  public static ByteBuffer ints(int[] values) {
+    final ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES).order(ORDER);
+    buffer.asIntBuffer().put(values);
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      position += read;
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+}
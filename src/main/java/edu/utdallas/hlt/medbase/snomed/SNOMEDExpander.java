@@ -0,0 +1,89 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.utdallas.hltri.util.AbstractExpander;
+
+/**
+ * Expands terms to the names of related SNOMED concepts, as returned by
+ * {@link SNOMEDManager#expandBy}.
+ *
+ * Expansions are memoized per term in a bounded cache, so a pipeline calling
+ * {@link #getExpansions} term by term only expands each distinct term once while it stays cached.
+ * {@link #expandAll} expands every term not currently cached in a single batch through
+ * {@link SNOMEDManager#getFilteredConcepts(Collection, SNOMEDRelationshipType, int, SNOMEDRelationshipDirection)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDExpander extends AbstractExpander<CharSequence, String> {
+  private final SNOMEDManager               snomed;
+  private final SNOMEDRelationshipType      relationshipType;
+  private final int                         levels;
+  private final SNOMEDRelationshipDirection direction;
+
+  private final Cache<String, Set<String>> expansions;
+
+  /** @param cacheSize maximum number of terms whose expansions are kept in memory */
+  SNOMEDExpander(SNOMEDManager snomed, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction,
+                 long cacheSize) {
+    super("SNOMED:" + relationshipType.name());
+    this.snomed = snomed;
+    this.relationshipType = relationshipType;
+    this.levels = levels;
+    this.direction = direction;
+    this.expansions = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+  }
+
+  @Override public Set<String> getExpansions(CharSequence cs) {
+    final Set<String> expansion = expansions.get(cs.toString(),
+        term -> snomed.getFilteredConcepts(term, relationshipType, levels, direction));
+    // Callers are free to modify the result
+    return new HashSet<>(expansion);
+  }
+
+  /** @return the expansions of every term, keyed by {@code term.toString()}, in iteration order */
+  public Map<String, Set<String>> expandAll(Collection<? extends CharSequence> terms) {
+    final List<String> keys = new ArrayList<>(terms.size());
+    for (CharSequence term : terms) {
+      keys.add(term.toString());
+    }
+    // Copy what is cached up front, so evictions during this call cannot lose entries
+    final Map<String, Set<String>> found = new LinkedHashMap<>(expansions.getAllPresent(keys));
+    final List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (!found.containsKey(key)) {
+        missing.add(key);
+      }
+    }
+    if (!missing.isEmpty()) {
+      final Map<String, Set<String>> expanded = snomed.getFilteredConcepts(missing, relationshipType, levels, direction);
+      expansions.putAll(expanded);
+      found.putAll(expanded);
+    }
+    final Map<String, Set<String>> results = new LinkedHashMap<>();
+    for (String key : keys) {
+      results.put(key, new HashSet<>(found.get(key)));
+    }
+    return results;
+  }
+
+  /** @return the number of terms whose expansions are currently cached */
+  long cachedTerms() {
+    expansions.cleanUp();
+    return expansions.estimatedSize();
+  }
+
+  /** @return hit, miss, load and eviction counts of the expansion cache */
+  public CacheStats getCacheStats() {
+    return expansions.stats();
+  }
+}
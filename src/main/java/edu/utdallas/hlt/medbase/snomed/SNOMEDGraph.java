@@ -0,0 +1,218 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Primitive relationship graph over the dense concept indices of a {@link SNOMEDSnapshot}.
+ *
+ * Relations are kept as two compressed sparse row (CSR) adjacency structures: one from each
+ * concept to its destinations ({@link SNOMEDRelationshipDirection#PARENTS}) and one from each
+ * concept to its sources ({@link SNOMEDRelationshipDirection#CHILDREN}).  Each row is sorted by
+ * relationship type and then by neighbour, so the neighbours of a concept under one relationship
+ * type form a contiguous slice of the targets array and a hop never allocates.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDGraph {
+  private final LongBuffer typeIds;
+  private final IntBuffer  outOffsets, outTypes, outTargets;
+  private final IntBuffer  inOffsets, inTypes, inTargets;
+
+  private final TLongIntHashMap typeIndex;
+  private final int             size;
+
+  /** Per-thread traversal scratch space, so traversals neither allocate nor lock */
+  private final ThreadLocal<Traversal> traversals;
+
+  SNOMEDGraph(int size, LongBuffer typeIds,
+              IntBuffer outOffsets, IntBuffer outTypes, IntBuffer outTargets,
+              IntBuffer inOffsets, IntBuffer inTypes, IntBuffer inTargets) {
+    this.size = size;
+    this.typeIds = typeIds;
+    this.outOffsets = outOffsets;
+    this.outTypes = outTypes;
+    this.outTargets = outTargets;
+    this.inOffsets = inOffsets;
+    this.inTypes = inTypes;
+    this.inTargets = inTargets;
+    this.typeIndex = new TLongIntHashMap(typeIds.limit() * 2, 0.5f, -1, -1);
+    for (int i = 0; i < typeIds.limit(); i++) {
+      typeIndex.put(typeIds.get(i), i);
+    }
+    this.traversals = ThreadLocal.withInitial(() -> new Traversal(size));
+  }
+
+  /** @return the number of concepts (nodes) in the graph */
+  public int size() {
+    return size;
+  }
+
+  /** @return the number of (deduplicated) relations (edges) in the graph */
+  public int edgeCount() {
+    return outTargets.limit();
+  }
+
+  /** @return the number of distinct relationship types */
+  public int typeCount() {
+    return typeIds.limit();
+  }
+
+  /** @return the SNOMED id of the relationship type with the given index */
+  public long typeId(int type) {
+    return typeIds.get(type);
+  }
+
+  /** @return the index of the given relationship type, or -1 if no relation has that type */
+  public int typeIndex(long relationshipTypeId) {
+    return typeIndex.get(relationshipTypeId);
+  }
+
+  /** @return the index of the given relationship type, or -1 if no relation has that type */
+  public int typeIndex(SNOMEDRelationshipType type) {
+    return typeIndex.get(type.getValue());
+  }
+
+  /**
+   * Returns the slice of the targets array holding the neighbours of {@code concept} under the given
+   * relationship type, packed into a long; unpack it with {@link #start(long)} and {@link #end(long)}
+   * and read the neighbours with {@link #target(SNOMEDRelationshipDirection, int)}.
+   *
+   * @param direction either {@link SNOMEDRelationshipDirection#PARENTS} or {@link SNOMEDRelationshipDirection#CHILDREN}
+   */
+  public long neighbors(int concept, int type, SNOMEDRelationshipDirection direction) {
+    final IntBuffer offsets = offsets(direction), types = types(direction);
+    int lo = offsets.get(concept), hi = offsets.get(concept + 1);
+    // Lower bound of the type's run
+    int end = hi;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (types.get(mid) < type) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    final int start = lo;
+    // Upper bound of the type's run
+    hi = end;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (types.get(mid) <= type) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    end = lo;
+    return ((long) start << 32) | end;
+  }
+
+  /** @return the (inclusive) start of a slice returned by {@link #neighbors} */
+  public static int start(long slice) {
+    return (int) (slice >>> 32);
+  }
+
+  /** @return the (exclusive) end of a slice returned by {@link #neighbors} */
+  public static int end(long slice) {
+    return (int) slice;
+  }
+
+  /** @return the neighbour stored at the given position of the targets array */
+  public int target(SNOMEDRelationshipDirection direction, int position) {
+    return targets(direction).get(position);
+  }
+
+  /** @return the (inclusive) start of all of the given concept's neighbours, of any type */
+  public int rowStart(SNOMEDRelationshipDirection direction, int concept) {
+    return offsets(direction).get(concept);
+  }
+
+  /** @return the (exclusive) end of all of the given concept's neighbours, of any type */
+  public int rowEnd(SNOMEDRelationshipDirection direction, int concept) {
+    return offsets(direction).get(concept + 1);
+  }
+
+  /** @return the relationship type index of the edge stored at the given position */
+  public int type(SNOMEDRelationshipDirection direction, int position) {
+    return types(direction).get(position);
+  }
+
+  /**
+   * Adds every concept reachable from {@code concept} within {@code levels} hops over relations of
+   * the given type to {@code out}.  Concepts reachable along several paths are reported once, and
+   * {@link SNOMEDRelationshipDirection#BOTH} reports the union of the children and parents walks.
+   * The starting concept is not reported.
+   */
+  public void traverse(int concept, int type, int levels, SNOMEDRelationshipDirection direction, TIntCollection out) {
+    if (type < 0) {
+      return;
+    }
+    if (direction == SNOMEDRelationshipDirection.BOTH) {
+      traverse(concept, type, levels, SNOMEDRelationshipDirection.CHILDREN, out);
+      traverse(concept, type, levels, SNOMEDRelationshipDirection.PARENTS, out);
+      return;
+    }
+    final Traversal traversal = traversals.get().reset();
+    final IntBuffer targets = targets(direction);
+    final TIntArrayList frontier = traversal.frontier;
+    traversal.visit(concept);
+    frontier.add(concept);
+    for (int level = 0, head = 0; level < levels && head < frontier.size(); level++) {
+      for (final int tail = frontier.size(); head < tail; head++) {
+        final long slice = neighbors(frontier.getQuick(head), type, direction);
+        for (int i = start(slice), end = end(slice); i < end; i++) {
+          final int neighbor = targets.get(i);
+          if (traversal.visit(neighbor)) {
+            frontier.add(neighbor);
+            out.add(neighbor);
+          }
+        }
+      }
+    }
+  }
+
+  private IntBuffer offsets(SNOMEDRelationshipDirection direction) {
+    return direction == SNOMEDRelationshipDirection.CHILDREN ? inOffsets : outOffsets;
+  }
+
+  private IntBuffer types(SNOMEDRelationshipDirection direction) {
+    return direction == SNOMEDRelationshipDirection.CHILDREN ? inTypes : outTypes;
+  }
+
+  private IntBuffer targets(SNOMEDRelationshipDirection direction) {
+    return direction == SNOMEDRelationshipDirection.CHILDREN ? inTargets : outTargets;
+  }
+
+  /** Visited marks are generation stamps, so resetting between traversals is O(1) */
+  private static class Traversal {
+    final int[]         marks;
+    final TIntArrayList frontier = new TIntArrayList();
+    int generation = 0;
+
+    Traversal(int size) {
+      this.marks = new int[size];
+    }
+
+    Traversal reset() {
+      if (++generation == 0) {
+        Arrays.fill(marks, 0);
+        generation = 1;
+      }
+      frontier.resetQuick();
+      return this;
+    }
+
+    boolean visit(int concept) {
+      if (marks[concept] == generation) {
+        return false;
+      }
+      marks[concept] = generation;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Exports the relations of a {@link SNOMEDSnapshot} as knowledge-graph training data.
+ *
+ * Relations are streamed straight from the snapshot's CSR adjacency, so nothing is re-parsed or
+ * materialized: concepts are split into ranges of roughly {@link #CHUNK_EDGES} relations, ranges
+ * are rendered in parallel, and rendered ranges are written in order with at most a few per
+ * thread in flight.  Entity and relation ids are the snapshot's dense concept and relationship type
+ * indices.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDGraphExporter {
+  private static final Logger LOGGER = Logger.get(SNOMEDGraphExporter.class);
+
+  /** Approximate number of relations rendered by a single task */
+  static final int CHUNK_EDGES = 1 << 16;
+
+  private final SNOMEDSnapshot snapshot;
+  private final SNOMEDGraph    graph;
+  private final ForkJoinPool   pool;
+
+  /** Chunk c covers concepts [chunks[c], chunks[c + 1]) */
+  private final int[] chunks;
+
+  public SNOMEDGraphExporter(SNOMEDSnapshot snapshot) {
+    this(snapshot, ForkJoinPool.commonPool());
+  }
+
+  public SNOMEDGraphExporter(SNOMEDSnapshot snapshot, ForkJoinPool pool) {
+    this.snapshot = snapshot;
+    this.graph = snapshot.graph();
+    this.pool = pool;
+    final TIntArrayList bounds = new TIntArrayList();
+    bounds.add(0);
+    for (int concept = 0, edges = 0; concept < snapshot.size(); concept++) {
+      if (edges >= CHUNK_EDGES || concept - bounds.get(bounds.size() - 1) >= CHUNK_EDGES) {
+        bounds.add(concept);
+        edges = 0;
+      }
+      edges += graph.rowEnd(SNOMEDRelationshipDirection.PARENTS, concept) - graph.rowStart(SNOMEDRelationshipDirection.PARENTS, concept);
+    }
+    bounds.add(snapshot.size());
+    this.chunks = bounds.toArray();
+  }
+
+  /**
+   * Writes the graph in the OpenKE/TransX layout to {@code directory}:
+   * <ul>
+   *   <li>{@code entity2id.tsv}: the entity count, then one "conceptId \t entity id" line per concept</li>
+   *   <li>{@code relation2id.tsv}: the relation count, then one "type name \t relation id" line per type</li>
+   *   <li>{@code triple2id.tsv}: the triple count, then one "head \t tail \t relation" line per relation</li>
+   *   <li>{@code triple2id.bin}: the same triples as little-endian ints: the count, then (head, tail, relation)</li>
+   * </ul>
+   * The four files are written concurrently.
+   */
+  public void writeTransX(Path directory) throws IOException {
+    final long start = System.currentTimeMillis();
+    Files.createDirectories(directory);
+    final int n = snapshot.size(), e = graph.edgeCount();
+    try {
+      CompletableFuture.allOf(
+          async(() -> writeChunks(directory.resolve("entity2id.tsv"), header(n), chunks.length - 1, this::renderEntities)),
+          async(() -> writeChunks(directory.resolve("relation2id.tsv"), header(graph.typeCount()), 1, c -> renderRelations())),
+          async(() -> writeChunks(directory.resolve("triple2id.tsv"), header(e), chunks.length - 1, this::renderTriples)),
+          async(() -> writeChunks(directory.resolve("triple2id.bin"), ByteBuffer.allocate(Integer.BYTES).order(SNOMEDSnapshot.ORDER).putInt(e).array(),
+                                  chunks.length - 1, this::renderBinaryTriples))
+      ).join();
+    } catch (CompletionException ex) {
+      throw unwrap(ex);
+    }
+    LOGGER.info("Exported {} entities and {} triples to {} in {}ms", n, e, directory, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Writes one "name \t RELATIONSHIP_TYPE \t name" line per relation whose endpoints both normalize
+   * to a value and do not normalize to the same value.  The normalizer is applied sequentially.
+   */
+  public void writeSimple(Path path, Function<String, Optional<String>> normalizer) throws IOException {
+    writeSimple(path, normalizer, 1);
+  }
+
+  /**
+   * Writes one "name \t RELATIONSHIP_TYPE \t name" line per relation whose endpoints both normalize
+   * to a value and do not normalize to the same value.
+   *
+   * The name of every concept taking part in a relation is normalized exactly once, before any
+   * relation is written, so expensive normalizers are not re-run for concepts with many relations.
+   *
+   * @param threads number of threads applying {@code normalizer}; it must be thread-safe if this is
+   *                greater than one
+   */
+  public void writeSimple(Path path, Function<String, Optional<String>> normalizer, int threads) throws IOException {
+    final long start = System.currentTimeMillis();
+    final SNOMEDRelationshipDirection out = SNOMEDRelationshipDirection.PARENTS, in = SNOMEDRelationshipDirection.CHILDREN;
+    final TIntArrayList related = new TIntArrayList();
+    for (int concept = 0; concept < snapshot.size(); concept++) {
+      if (graph.rowEnd(out, concept) > graph.rowStart(out, concept) || graph.rowEnd(in, concept) > graph.rowStart(in, concept)) {
+        related.add(concept);
+      }
+    }
+
+    // Normalized name of each related concept, or null if the normalizer rejected it
+    final String[] normalized = new String[snapshot.size()];
+    final IntConsumer normalize = concept -> normalized[concept] = normalizer.apply(snapshot.name(concept)).orElse(null);
+    if (threads > 1) {
+      final ForkJoinPool normalizers = new ForkJoinPool(threads);
+      try {
+        normalizers.submit(() -> IntStream.of(related.toArray()).parallel().forEach(normalize)).join();
+      } finally {
+        normalizers.shutdown();
+      }
+    } else {
+      related.forEach(concept -> {
+        normalize.accept(concept);
+        return true;
+      });
+    }
+    final long normalizing = Math.max(1, System.currentTimeMillis() - start);
+    // Normalizing per relation would have called the normalizer once for each endpoint
+    final long endpoints = 2L * graph.edgeCount();
+    LOGGER.info("Normalized {} concepts for {} relation endpoints ({} normalizations avoided) in {}ms ({} concepts/s)",
+        related.size(), endpoints, endpoints - related.size(), normalizing, related.size() * 1000L / normalizing);
+
+    long written = 0;
+    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      for (int concept = 0; concept < snapshot.size(); concept++) {
+        final String op1 = normalized[concept];
+        if (op1 == null) {
+          continue;
+        }
+        final int end = graph.rowEnd(out, concept);
+        for (int pos = graph.rowStart(out, concept); pos < end; pos++) {
+          final String op2 = normalized[graph.target(out, pos)];
+          if (op2 != null && !op1.equals(op2)) {
+            writer.write(op1);
+            writer.write('\t');
+            writer.write(typeName(graph.type(out, pos)));
+            writer.write('\t');
+            writer.write(op2);
+            writer.newLine();
+            written++;
+          }
+        }
+      }
+    }
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    LOGGER.info("Exported {} of {} triples to {} in {}ms ({} triples/s)",
+        written, graph.edgeCount(), path, elapsed, written * 1000L / elapsed);
+  }
+
+  private byte[] renderEntities(int chunk) {
+    final StringBuilder sb = new StringBuilder();
+    for (int concept = chunks[chunk]; concept < chunks[chunk + 1]; concept++) {
+      sb.append(snapshot.conceptId(concept)).append('\t').append(concept).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] renderRelations() {
+    final StringBuilder sb = new StringBuilder();
+    for (int type = 0; type < graph.typeCount(); type++) {
+      sb.append(typeName(type)).append('\t').append(type).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] renderTriples(int chunk) {
+    final SNOMEDRelationshipDirection out = SNOMEDRelationshipDirection.PARENTS;
+    final StringBuilder sb = new StringBuilder();
+    for (int concept = chunks[chunk]; concept < chunks[chunk + 1]; concept++) {
+      final int end = graph.rowEnd(out, concept);
+      for (int pos = graph.rowStart(out, concept); pos < end; pos++) {
+        sb.append(concept).append('\t').append(graph.target(out, pos)).append('\t').append(graph.type(out, pos)).append('\n');
+      }
+    }
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private byte[] renderBinaryTriples(int chunk) {
+    final SNOMEDRelationshipDirection out = SNOMEDRelationshipDirection.PARENTS;
+    final int first = graph.rowStart(out, chunks[chunk]);
+    final int last = graph.rowEnd(out, chunks[chunk + 1] - 1);
+    final ByteBuffer buffer = ByteBuffer.allocate((last - first) * 3 * Integer.BYTES).order(SNOMEDSnapshot.ORDER);
+    for (int concept = chunks[chunk]; concept < chunks[chunk + 1]; concept++) {
+      final int end = graph.rowEnd(out, concept);
+      for (int pos = graph.rowStart(out, concept); pos < end; pos++) {
+        buffer.putInt(concept).putInt(graph.target(out, pos)).putInt(graph.type(out, pos));
+      }
+    }
+    return buffer.array();
+  }
+
+  /** @return the name of the given relationship type index, or its concept id if it is not a known type */
+  private String typeName(int type) {
+    final long typeId = graph.typeId(type);
+    final SNOMEDRelationshipType known = SNOMEDRelationshipType.forValue(typeId);
+    return known == null ? Long.toString(typeId) : known.name();
+  }
+
+  private static byte[] header(int count) {
+    return (count + "\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** Renders chunks on the pool and writes them to {@code path} in order, keeping a bounded number in flight */
+  private void writeChunks(Path path, byte[] header, int count, IntFunction<byte[]> render) throws IOException {
+    final int window = Math.max(1, pool.getParallelism()) * 2;
+    final Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+      out.write(header);
+      for (int c = 0; c < count; c++) {
+        final int chunk = c;
+        pending.add(pool.submit(() -> render.apply(chunk)));
+        if (pending.size() >= window) {
+          out.write(pending.removeFirst().join());
+        }
+      }
+      while (!pending.isEmpty()) {
+        out.write(pending.removeFirst().join());
+      }
+    }
+  }
+
+  private interface IOAction {
+    void run() throws IOException;
+  }
+
+  private CompletableFuture<Void> async(IOAction action) {
+    return CompletableFuture.runAsync(() -> {
+      try {
+        action.run();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }, pool);
+  }
+
+  private static IOException unwrap(CompletionException ex) {
+    if (ex.getCause() instanceof UncheckedIOException) {
+      return ((UncheckedIOException) ex.getCause()).getCause();
+    }
+    if (ex.getCause() instanceof RuntimeException) {
+      throw (RuntimeException) ex.getCause();
+    }
+    throw ex;
+  }
+}
@@ -0,0 +1,266 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Precomputed transitive closure of the SNOMED IS_A hierarchy.
+ *
+ * For every concept the snapshot stores all of its ancestors and all of its descendants together
+ * with their (shortest) distance in IS_A hops, sorted by distance and then by concept index.
+ * "All descendants within N levels" is therefore a prefix of one slice and costs O(result).  The
+ * ancestors of every concept are also stored sorted by index alone, so "is X a descendant of Y" is
+ * a binary search of X's ancestors.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDHierarchy {
+  private static final Logger LOGGER = Logger.get(SNOMEDHierarchy.class);
+
+  /** Distances are stored in a byte; IS_A chains in SNOMED are far shorter */
+  static final int MAX_DEPTH = 255;
+
+  private final IntBuffer  ancestorOffsets, ancestors;
+  private final ByteBuffer ancestorDepths;
+  private final IntBuffer  sortedAncestors;
+  private final IntBuffer  descendantOffsets, descendants;
+  private final ByteBuffer descendantDepths;
+
+  SNOMEDHierarchy(IntBuffer ancestorOffsets, IntBuffer ancestors, ByteBuffer ancestorDepths, IntBuffer sortedAncestors,
+                  IntBuffer descendantOffsets, IntBuffer descendants, ByteBuffer descendantDepths) {
+    this.ancestorOffsets = ancestorOffsets;
+    this.ancestors = ancestors;
+    this.ancestorDepths = ancestorDepths;
+    this.sortedAncestors = sortedAncestors;
+    this.descendantOffsets = descendantOffsets;
+    this.descendants = descendants;
+    this.descendantDepths = descendantDepths;
+  }
+
+  /** @return true if {@code concept} is a (strict, transitive) IS_A descendant of {@code ancestor} */
+  public boolean isDescendant(int concept, int ancestor) {
+    int lo = ancestorOffsets.get(concept), hi = ancestorOffsets.get(concept + 1) - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int found = sortedAncestors.get(mid);
+      if (found < ancestor) {
+        lo = mid + 1;
+      } else if (found > ancestor) {
+        hi = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the slice of {@link #descendant(int)} positions holding the descendants of
+   * {@code concept} within {@code levels} IS_A hops, packed as by {@link SNOMEDGraph#neighbors}.
+   */
+  public long descendants(int concept, int levels) {
+    return slice(descendantOffsets, descendantDepths, concept, levels);
+  }
+
+  /** @return the descendant stored at the given position */
+  public int descendant(int position) {
+    return descendants.get(position);
+  }
+
+  /**
+   * Returns the slice of {@link #ancestor(int)} positions holding the ancestors of
+   * {@code concept} within {@code levels} IS_A hops, packed as by {@link SNOMEDGraph#neighbors}.
+   */
+  public long ancestors(int concept, int levels) {
+    return slice(ancestorOffsets, ancestorDepths, concept, levels);
+  }
+
+  /** @return the ancestor stored at the given position */
+  public int ancestor(int position) {
+    return ancestors.get(position);
+  }
+
+  /**
+   * Adds the concepts related to {@code concept} within {@code levels} IS_A hops in the given
+   * direction to {@code out}; equivalent to {@link SNOMEDGraph#traverse} over IS_A relations.
+   */
+  public void collect(int concept, int levels, SNOMEDRelationshipDirection direction, TIntCollection out) {
+    if (direction != SNOMEDRelationshipDirection.PARENTS) {
+      final long slice = descendants(concept, levels);
+      for (int i = SNOMEDGraph.start(slice), end = SNOMEDGraph.end(slice); i < end; i++) {
+        out.add(descendants.get(i));
+      }
+    }
+    if (direction != SNOMEDRelationshipDirection.CHILDREN) {
+      final long slice = ancestors(concept, levels);
+      for (int i = SNOMEDGraph.start(slice), end = SNOMEDGraph.end(slice); i < end; i++) {
+        out.add(ancestors.get(i));
+      }
+    }
+  }
+
+  private static long slice(IntBuffer offsets, ByteBuffer depths, int concept, int levels) {
+    final int start = offsets.get(concept);
+    int lo = start, hi = offsets.get(concept + 1);
+    // Entries are sorted by depth, so find the first one deeper than levels
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if ((depths.get(mid) & 0xff) <= levels) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return ((long) start << 32) | lo;
+  }
+
+  /** Transitive closure arrays as written to the snapshot */
+  static class Closure {
+    final int[]  ancestorOffsets, ancestors;
+    final byte[] ancestorDepths;
+    final int[]  sortedAncestors;
+    final int[]  descendantOffsets, descendants;
+    final byte[] descendantDepths;
+
+    /**
+     * Computes the closure of the parent relation given in CSR form: the parents of concept
+     * {@code i} are {@code parents[offsets[i]..offsets[i + 1])}.
+     */
+    Closure(int n, int[] offsets, int[] parents) {
+      // Order concepts so that parents come before their children (Kahn's algorithm)
+      final int[] pending = new int[n];
+      final int[] childOffsets = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+        pending[i] = offsets[i + 1] - offsets[i];
+        for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+          childOffsets[parents[j] + 1]++;
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        childOffsets[i + 1] += childOffsets[i];
+      }
+      final int[] children = new int[offsets[n]];
+      final int[] fill = Arrays.copyOf(childOffsets, n);
+      for (int i = 0; i < n; i++) {
+        for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+          children[fill[parents[j]]++] = i;
+        }
+      }
+      final TIntArrayList order = new TIntArrayList(n);
+      for (int i = 0; i < n; i++) {
+        if (pending[i] == 0) {
+          order.add(i);
+        }
+      }
+      for (int head = 0; head < order.size(); head++) {
+        final int concept = order.getQuick(head);
+        for (int j = childOffsets[concept]; j < childOffsets[concept + 1]; j++) {
+          if (--pending[children[j]] == 0) {
+            order.add(children[j]);
+          }
+        }
+      }
+      if (order.size() < n) {
+        // Only possible if the release contains an IS_A cycle; those concepts get partial closures
+        LOGGER.warn("Found {} concepts on IS_A cycles", n - order.size());
+        for (int i = 0; i < n; i++) {
+          if (pending[i] > 0) {
+            order.add(i);
+          }
+        }
+      }
+
+      // Ancestors of a concept are its parents plus their ancestors, one level further away
+      final int[][] closure = new int[n][];
+      final byte[][] depths = new byte[n][];
+      final int[] best = new int[n];
+      final TIntArrayList touched = new TIntArrayList();
+      long total = 0;
+      for (int k = 0; k < n; k++) {
+        final int concept = order.getQuick(k);
+        touched.resetQuick();
+        for (int j = offsets[concept]; j < offsets[concept + 1]; j++) {
+          final int parent = parents[j];
+          relax(best, touched, parent, 1);
+          if (closure[parent] != null) {
+            for (int a = 0; a < closure[parent].length; a++) {
+              relax(best, touched, closure[parent][a], (depths[parent][a] & 0xff) + 1);
+            }
+          }
+        }
+        final long[] entries = new long[touched.size()];
+        for (int t = 0; t < touched.size(); t++) {
+          final int ancestor = touched.getQuick(t);
+          entries[t] = ((long) Math.min(best[ancestor], MAX_DEPTH) << 32) | ancestor;
+          best[ancestor] = 0;
+        }
+        Arrays.sort(entries);
+        closure[concept] = new int[entries.length];
+        depths[concept] = new byte[entries.length];
+        for (int t = 0; t < entries.length; t++) {
+          closure[concept][t] = (int) entries[t];
+          depths[concept][t] = (byte) (entries[t] >>> 32);
+        }
+        total += entries.length;
+      }
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalStateException("IS_A closure has " + total + " entries");
+      }
+
+      this.ancestorOffsets = new int[n + 1];
+      this.ancestors = new int[(int) total];
+      this.ancestorDepths = new byte[(int) total];
+      this.descendantOffsets = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+        ancestorOffsets[i + 1] = ancestorOffsets[i] + closure[i].length;
+        System.arraycopy(closure[i], 0, ancestors, ancestorOffsets[i], closure[i].length);
+        System.arraycopy(depths[i], 0, ancestorDepths, ancestorOffsets[i], depths[i].length);
+        for (int ancestor : closure[i]) {
+          descendantOffsets[ancestor + 1]++;
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        descendantOffsets[i + 1] += descendantOffsets[i];
+      }
+
+      // The same ancestors sorted by index alone, for membership tests
+      this.sortedAncestors = ancestors.clone();
+      for (int i = 0; i < n; i++) {
+        Arrays.sort(sortedAncestors, ancestorOffsets[i], ancestorOffsets[i + 1]);
+      }
+
+      // Descendants are the transpose, re-sorted by (depth, concept) within each slice
+      final long[] entries = new long[(int) total];
+      final int[] next = Arrays.copyOf(descendantOffsets, n);
+      for (int i = 0; i < n; i++) {
+        for (int a = ancestorOffsets[i]; a < ancestorOffsets[i + 1]; a++) {
+          entries[next[ancestors[a]]++] = ((long) (ancestorDepths[a] & 0xff) << 32) | i;
+        }
+      }
+      this.descendants = new int[(int) total];
+      this.descendantDepths = new byte[(int) total];
+      for (int i = 0; i < n; i++) {
+        Arrays.sort(entries, descendantOffsets[i], descendantOffsets[i + 1]);
+      }
+      for (int t = 0; t < entries.length; t++) {
+        descendants[t] = (int) entries[t];
+        descendantDepths[t] = (byte) (entries[t] >>> 32);
+      }
+      LOGGER.debug("Computed IS_A closure with {} ancestor/descendant pairs", total);
+    }
+
+    private static void relax(int[] best, TIntArrayList touched, int ancestor, int depth) {
+      if (best[ancestor] == 0) {
+        touched.add(ancestor);
+        best[ancestor] = depth;
+      } else if (depth < best[ancestor]) {
+        best[ancestor] = depth;
+      }
+    }
+  }
+}
@@ -2,20 +2,30 @@ package edu.utdallas.hlt.medbase.snomed;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.google.common.collect.SetMultimap;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import edu.utdallas.hltri.conf.Config;
 import edu.utdallas.hltri.logging.Logger;
@@ -28,6 +38,9 @@ import edu.utdallas.hltri.util.Expansion;
 public class SNOMEDICD9Mapper {
   private static final Logger log = Logger.get(SNOMEDICD9Mapper.class);
 
+  /** getICD9s expands terms to their IS_A descendants within this many levels */
+  static final int EXPANSION_LEVELS = 3;
+
   private final SNOMEDManager snomed;
   private final Path path1, path2;
 
@@ -35,19 +48,43 @@ public class SNOMEDICD9Mapper {
   static final Config conf = Config.load("medbase.snomed.icd9");
 
   public static SNOMEDICD9Mapper getDefault(SNOMEDManager snomed) {
-    return new SNOMEDICD9Mapper(snomed, conf.getString("path-targets"), conf.getString("path"));
+    return new SNOMEDICD9Mapper(snomed, conf.getString("path-targets"), conf.getString("path"), conf.getBoolean("precompute-closure"));
   }
 
 
   public SNOMEDICD9Mapper(SNOMEDManager snomed, String targetPath, String mappingPath) {
+    this(snomed, targetPath, mappingPath, false);
+  }
+
+  /**
+   * @param precomputeClosure if true, the ICD-9 codes of every concept's descendants are collected
+   *                          at load time, so getICD9s does not need to expand terms
+   */
+  public SNOMEDICD9Mapper(SNOMEDManager snomed, String targetPath, String mappingPath, boolean precomputeClosure) {
     this.snomed = snomed;
     this.path2 = Paths.get(targetPath);
     this.path1 = Paths.get(mappingPath);
     init();
+    if (precomputeClosure) {
+      precomputeClosure();
+    }
   }
 
-  Map<Long, Long>           target = Maps.newHashMap();
-  SetMultimap<Long, String> icd9s  = HashMultimap.create();
+  /* Interned ICD-9 codes, sorted; code sets refer to codes by their index in this table */
+  String[] codes;
+
+  /* Map target of each mapped SNOMED concept */
+  final TLongLongHashMap target = new TLongLongHashMap();
+
+  /* Sorted code indices of each map target */
+  final TLongObjectHashMap<int[]> targetCodes = new TLongObjectHashMap<>();
+
+  /* Reverse index: the concepts mapped to code i are codeConcepts[codeOffsets[i]..codeOffsets[i + 1]), ascending */
+  int[]  codeOffsets;
+  long[] codeConcepts;
+
+  /* Sorted code indices of each concept and its descendants within EXPANSION_LEVELS, if precomputed */
+  TLongObjectHashMap<int[]> closure = null;
 
   @SuppressWarnings("UnusedAssignment")
   private void init() {
@@ -56,36 +93,229 @@ public class SNOMEDICD9Mapper {
     try (final BufferedReader reader = Files.newBufferedReader(path1, Charsets.ISO_8859_1)) {
       for (String line = reader.readLine(); (line = reader.readLine()) != null; ) {
         List<String> fields = ImmutableList.copyOf(fsplitter.split(line));
-        target.put(Long.valueOf(fields.get(1)), Long.valueOf(fields.get(4)));
+        target.put(Long.parseLong(fields.get(1)), Long.parseLong(fields.get(4)));
       }
       log.info("Generated {} target mappings", target.size());
     } catch (IOException ex) {
       throw new RuntimeException(ex);
     }
 
-
+    final TLongObjectHashMap<List<String>> targetNames = new TLongObjectHashMap<>();
+    final Set<String> distinct = new TreeSet<>();
     try (final BufferedReader reader = Files.newBufferedReader(path2, Charsets.ISO_8859_1)) {
-      final Splitter isplitter = Splitter.on('|');
+      final Splitter isplitter = Splitter.on('|').omitEmptyStrings();
       for (String line = reader.readLine(); (line = reader.readLine()) != null;) {
         List<String> fields = ImmutableList.copyOf(fsplitter.split(line));
-        icd9s.putAll(Long.valueOf(fields.get(0)), isplitter.split(fields.get(2)));
+        final long id = Long.parseLong(fields.get(0));
+        List<String> names = targetNames.get(id);
+        if (names == null) {
+          names = new ArrayList<>();
+          targetNames.put(id, names);
+        }
+        for (String code : isplitter.split(fields.get(2))) {
+          names.add(code);
+          distinct.add(code);
+        }
       }
-      log.info("Generated {} icd9 mappings", icd9s.size());
     } catch (IOException ex) {
       throw new RuntimeException(ex);
     }
+
+    // Intern the codes and store each target's codes as a sorted set of indices
+    this.codes = distinct.toArray(new String[distinct.size()]);
+    final TObjectIntHashMap<String> index = new TObjectIntHashMap<>(codes.length * 2, 0.5f, -1);
+    for (int i = 0; i < codes.length; i++) {
+      index.put(codes[i], i);
+    }
+    int mappings = 0;
+    for (TLongObjectIterator<List<String>> it = targetNames.iterator(); it.hasNext(); ) {
+      it.advance();
+      final TIntHashSet set = new TIntHashSet();
+      for (String code : it.value()) {
+        set.add(index.get(code));
+      }
+      final int[] sorted = set.toArray();
+      Arrays.sort(sorted);
+      targetCodes.put(it.key(), sorted);
+      mappings += sorted.length;
+    }
+    log.info("Generated {} icd9 mappings over {} codes", mappings, codes.length);
+
+    // Reverse index, built by counting sort over code indices
+    this.codeOffsets = new int[codes.length + 1];
+    final long[] concepts = target.keys();
+    Arrays.sort(concepts);
+    for (long concept : concepts) {
+      final int[] mapped = codesOf(concept);
+      if (mapped != null) {
+        for (int code : mapped) {
+          codeOffsets[code + 1]++;
+        }
+      }
+    }
+    for (int i = 0; i < codes.length; i++) {
+      codeOffsets[i + 1] += codeOffsets[i];
+    }
+    this.codeConcepts = new long[codeOffsets[codes.length]];
+    final int[] fill = Arrays.copyOf(codeOffsets, codes.length);
+    for (long concept : concepts) {
+      final int[] mapped = codesOf(concept);
+      if (mapped != null) {
+        for (int code : mapped) {
+          codeConcepts[fill[code]++] = concept;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the range of code indices matched by an ICD-9 code or prefix pattern, packed as
+   * {@code start << 32 | end}.  A pattern ending in ".*" matches the code before the '.' and its
+   * subdivisions, so "41.*" matches 41 and 41.0 through 41.99 but not 410; any other pattern ending
+   * in '*' matches every code starting with the text before it, and the rest match that exact code.
+   */
+  long codeRange(String pattern) {
+    int start, end;
+    if (pattern.endsWith("*")) {
+      final String prefix = pattern.substring(0, pattern.length() - 1);
+      start = lowerBound(prefix);
+      end = lowerBound(prefix + Character.MAX_VALUE);
+      // The code itself sorts just before its subdivisions, unless some code lies between them
+      if (prefix.endsWith(".") && start > 0 && codes[start - 1].equals(prefix.substring(0, prefix.length() - 1))) {
+        start--;
+      }
+    } else {
+      start = lowerBound(pattern);
+      end = start < codes.length && codes[start].equals(pattern) ? start + 1 : start;
+    }
+    return ((long) start << 32) | end;
+  }
+
+  /** @return the index of the first code not less than {@code key} */
+  private int lowerBound(String key) {
+    int lo = 0, hi = codes.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (codes[mid].compareTo(key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** @return the ICD-9 codes matched by the given code or prefix pattern (see {@link #getConcepts}), ascending */
+  public List<String> getCodes(String pattern) {
+    final long range = codeRange(pattern);
+    return Arrays.asList(codes).subList((int) (range >>> 32), (int) range);
+  }
+
+  /**
+   * Returns the ids of the SNOMED concepts mapped to any ICD-9 code matching {@code pattern},
+   * along with all of their IS_A descendants (read from the precomputed closure).
+   *
+   * @param pattern an ICD-9 code, or a prefix ending in '*' such as "410.*"
+   */
+  public TLongSet getConcepts(String pattern) {
+    final long range = codeRange(pattern);
+    final TLongSet results = new TLongHashSet();
+    final int first = codeOffsets[(int) (range >>> 32)], last = codeOffsets[(int) range];
+    for (int i = first; i < last; i++) {
+      final long concept = codeConcepts[i];
+      if (results.add(concept)) {
+        results.addAll(snomed.getDescendantIds(concept, Integer.MAX_VALUE));
+      }
+    }
+    return results;
+  }
+
+  /** @return the ids of the SNOMED concepts mapped directly to codes matching {@code pattern}, without descendants */
+  public TLongSet getMappedConcepts(String pattern) {
+    final long range = codeRange(pattern);
+    final int first = codeOffsets[(int) (range >>> 32)], last = codeOffsets[(int) range];
+    final TLongSet results = new TLongHashSet(last - first);
+    for (int i = first; i < last; i++) {
+      results.add(codeConcepts[i]);
+    }
+    return results;
+  }
+
+  /** @return the sorted code indices mapped to the given concept itself, or null */
+  int[] codesOf(long conceptId) {
+    if (!target.containsKey(conceptId)) {
+      return null;
+    }
+    return targetCodes.get(target.get(conceptId));
+  }
+
+  /**
+   * Collects, for every concept, the codes of the concept and of its descendants within
+   * EXPANSION_LEVELS: each mapped concept contributes its codes to itself and to its ancestors.
+   */
+  private void precomputeClosure() {
+    final long start = System.currentTimeMillis();
+    final TLongObjectHashMap<TIntHashSet> sets = new TLongObjectHashMap<>();
+    for (TLongLongIterator it = target.iterator(); it.hasNext(); ) {
+      it.advance();
+      final int[] mapped = targetCodes.get(it.value());
+      if (mapped == null) {
+        continue;
+      }
+      addCodes(sets, it.key(), mapped);
+      for (long ancestor : snomed.getAncestorIds(it.key(), EXPANSION_LEVELS)) {
+        addCodes(sets, ancestor, mapped);
+      }
+    }
+    final TLongObjectHashMap<int[]> closure = new TLongObjectHashMap<>(sets.size() * 2);
+    long entries = 0;
+    for (TLongObjectIterator<TIntHashSet> it = sets.iterator(); it.hasNext(); ) {
+      it.advance();
+      final int[] sorted = it.value().toArray();
+      Arrays.sort(sorted);
+      closure.put(it.key(), sorted);
+      entries += sorted.length;
+    }
+    this.closure = closure;
+    log.info("Precomputed icd9 closures of {} concepts ({} codes) in {}ms", closure.size(), entries, System.currentTimeMillis() - start);
+  }
+
+  private static void addCodes(TLongObjectHashMap<TIntHashSet> sets, long conceptId, int[] codes) {
+    TIntHashSet set = sets.get(conceptId);
+    if (set == null) {
+      set = new TIntHashSet();
+      sets.put(conceptId, set);
+    }
+    set.addAll(codes);
   }
 
   public Collection<String> getICD9s(CharSequence term) {
-    Collection<String> results = new HashSet<>();
-    Collection<Long> concepts = snomed.getConceptIds(term.toString(), SNOMEDRelationshipType.IS_A, 3, SNOMEDRelationshipDirection.CHILDREN);
-    for (Long id : concepts) {
-      if (target.containsKey(id)) {
-        long tar = target.get(id);
-        results.addAll(icd9s.get(tar));
+    final TIntHashSet found = new TIntHashSet();
+    for (long id : snomed.lookupConceptIds(term)) {
+      if (closure != null) {
+        final int[] codes = closure.get(id);
+        if (codes != null) {
+          found.addAll(codes);
+        }
+      } else {
+        addCodes(found, id);
+        for (long descendant : snomed.getDescendantIds(id, EXPANSION_LEVELS)) {
+          addCodes(found, descendant);
+        }
       }
     }
+    Collection<String> results = new HashSet<>();
+    for (TIntIterator it = found.iterator(); it.hasNext(); ) {
+      results.add(codes[it.next()]);
+    }
     Expansion.reduceEntries(results);
     return results;
   }
+
+  private void addCodes(TIntHashSet found, long conceptId) {
+    final int[] codes = codesOf(conceptId);
+    if (codes != null) {
+      found.addAll(codes);
+    }
+  }
 }
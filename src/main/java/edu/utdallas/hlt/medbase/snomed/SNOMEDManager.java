@@ -1,42 +1,31 @@
 package edu.utdallas.hlt.medbase.snomed;
 
-import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.SetMultimap;
-
-import gnu.trove.map.TLongObjectMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
 import java.io.Closeable;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 
 import edu.utdallas.hltri.conf.Config;
 import edu.utdallas.hltri.logging.Logger;
-import edu.utdallas.hltri.util.Expander;
 import edu.utdallas.hltri.util.Expansion;
 
 @SuppressWarnings("unused")
@@ -45,451 +34,221 @@ public class SNOMEDManager implements Closeable {
 
   private Config conf = Config.load("medbase.snomed");
 
-  /** Efficient thread-safety */
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-
-  private final Lock read  = readWriteLock.readLock();
-  private final Lock write = readWriteLock.writeLock();
+  private final SNOMEDReleaseLoader.Format FORMAT = SNOMEDReleaseLoader.Format.valueOf(conf.getString("format"));
 
   private final String CORE_CONCEPTS_PATH      = conf.getString("core.concepts");
-  //  private final String CORE_DESCRIPTIONS_PATH  = conf.getString("core.descriptions");
+  private final String CORE_DESCRIPTIONS_PATH  = conf.getString("core.descriptions");
   private final String CORE_RELATIONSHIPS_PATH = conf.getString("core.relationships");
   private final String DRUG_CONCEPTS_PATH      = conf.getString("drug.concepts");
-  //  private final String DRUG_DESCRIPTIONS_PATH  = conf.getString("drug.descriptions");
+  private final String DRUG_DESCRIPTIONS_PATH  = conf.getString("drug.descriptions");
   private final String DRUG_RELATIONSHIPS_PATH = conf.getString("drug.relationships");
 
-  private final String CACHE_PATH = conf.getString("cache-path");
+  private final String SNAPSHOT_PATH = conf.getString("snapshot-path");
 
-  /* Internal maps */
-  private transient SetMultimap<String, Long>            name2id     = HashMultimap.create();
-  private transient TLongObjectMap<String>               id2name     = new TLongObjectHashMap<>();
-  private transient TLongObjectMap<List<SNOMEDRelation>> id2relation = new TLongObjectHashMap<>();
+  private final List<String> DESCRIPTION_LANGUAGES = conf.getStringList("description-languages");
 
-  /* Caches */
-  private SetMultimap<String, Long>            _name2id                     = HashMultimap.create();
-  private TLongObjectMap<String>               _id2name                     = new TLongObjectHashMap<>();
-  private TLongObjectMap<List<SNOMEDRelation>> _id2relation                 = new TLongObjectHashMap<>();
+  private final int NORMALIZER_THREADS = conf.getInt("export.normalizer-threads");
 
-  private final Splitter splitter = Splitter.on('\t');
+  private final long EXPANSION_CACHE_SIZE = conf.getLong("expansion-cache-size");
 
-  private volatile boolean isInitialized = false;
+  /*
+   * Memory-mapped release data; null until initialized.  The snapshot is immutable, so publishing it
+   * through this volatile field is all the synchronization lookups need: they never take a lock.
+   */
+  private volatile SNOMEDSnapshot snapshot = null;
+
+  /* Guards building and mapping the snapshot */
+  private final Object initializing = new Object();
 
-  @SuppressWarnings("unchecked")
   public SNOMEDManager() {
-    try (final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(CACHE_PATH))))) {
-      LOGGER.info("Restoring cached SNOMED data from {}", CACHE_PATH);
-      _name2id = (SetMultimap<String, Long>) in.readObject();
-      _id2name = (TLongObjectHashMap<String>) in.readObject();
-      _id2relation = (TLongObjectHashMap<List<SNOMEDRelation>>) in.readObject();
-    } catch (ClassCastException | ClassNotFoundException | IOException ex) {
-      LOGGER.warn("Failed to load cached SNOMED data: ", ex.getMessage());
-    }
   }
 
-  private void initialize() {
-    read.lock();
-    try {
-      if (isInitialized)
-        return;
-    } finally {
-      read.unlock();
-    }
-
-    write.lock();
-    try {
-      if (isInitialized || !name2id.isEmpty())
-        return;
-      LOGGER.info("Initializing SNOMED core concepts.");
-      parseConcepts(CORE_CONCEPTS_PATH, name2id, id2name);
-      LOGGER.info("Initializing SNOMED drug concepts.");
-      parseConcepts(DRUG_CONCEPTS_PATH, name2id, id2name);
-      LOGGER.info("Initializing SNOMED core relations.");
-      parseRelations(CORE_RELATIONSHIPS_PATH, id2relation);
-      LOGGER.info("Initializing SNOMED drug relations.");
-      parseRelations(DRUG_RELATIONSHIPS_PATH, id2relation);
-      isInitialized = true;
-    } catch (IOException ex) {
-      throw new RuntimeException(ex);
-    } finally {
-      write.unlock();
-    }
+  /** Serves lookups from the given snapshot rather than the configured one */
+  SNOMEDManager(SNOMEDSnapshot snapshot) {
+    this.snapshot = snapshot;
   }
 
-  @Override public void close() {
-    read.lock();
-    try {
-      final Path path = Paths.get(CACHE_PATH);
-      //noinspection ResultOfMethodCallIgnored
-      path.toFile().getParentFile().mkdirs();
-      try (final ObjectOutputStream out = new ObjectOutputStream(
-          new BufferedOutputStream(Files.newOutputStream(path)))) {
-        out.writeObject(_name2id);
-        out.writeObject(_id2name);
-        out.writeObject(_id2relation);
+  /**
+   * Maps the SNOMED snapshot, first building it from the release files if it is missing, damaged
+   * or was written by an incompatible version.
+   */
+  private SNOMEDSnapshot initialize() {
+    SNOMEDSnapshot current = snapshot;
+    if (current != null)
+      return current;
+
+    synchronized (initializing) {
+      current = snapshot;
+      if (current != null)
+        return current;
+      try {
+        current = openOrBuild(Paths.get(SNAPSHOT_PATH), builder -> {
+          final SNOMEDReleaseLoader loader = new SNOMEDReleaseLoader(FORMAT, DESCRIPTION_LANGUAGES);
+          LOGGER.info("Initializing SNOMED core concepts.");
+          loader.loadConcepts(Paths.get(CORE_CONCEPTS_PATH), Paths.get(CORE_DESCRIPTIONS_PATH), builder);
+          LOGGER.info("Initializing SNOMED drug concepts.");
+          loader.loadConcepts(Paths.get(DRUG_CONCEPTS_PATH), Paths.get(DRUG_DESCRIPTIONS_PATH), builder);
+          LOGGER.info("Initializing SNOMED descriptions.");
+          loader.loadDescriptions(Paths.get(CORE_DESCRIPTIONS_PATH), builder);
+          loader.loadDescriptions(Paths.get(DRUG_DESCRIPTIONS_PATH), builder);
+          LOGGER.info("Initializing SNOMED core relations.");
+          loader.loadRelations(Paths.get(CORE_RELATIONSHIPS_PATH), builder);
+          LOGGER.info("Initializing SNOMED drug relations.");
+          loader.loadRelations(Paths.get(DRUG_RELATIONSHIPS_PATH), builder);
+        });
       } catch (IOException ex) {
         throw new RuntimeException(ex);
       }
-    } finally {
-      read.unlock();
+      snapshot = current;
+      return current;
     }
   }
 
-  private void addRelation(TLongObjectMap<List<SNOMEDRelation>> idToRelations, long id, SNOMEDRelation relation) {
-    write.lock();
-    try {
-      List<SNOMEDRelation> list = idToRelations.get(id);
-      if (list == null) {
-        list = new ArrayList<>();
-      }
-      list.add(relation);
-      idToRelations.put(id, list);
-    } finally {
-      write.unlock();
-    }
+  /** Fills a snapshot builder from the release files */
+  @FunctionalInterface
+  interface ReleaseLoader {
+    void load(SNOMEDSnapshot.Builder builder) throws IOException;
   }
 
-  private void parseConcepts(String path, SetMultimap<String, Long> nameToId, TLongObjectMap<String> idToName) throws IOException {
-    write.lock();
+  /**
+   * Maps the snapshot at {@code path}, first rebuilding it with {@code loader} if it is missing,
+   * truncated, corrupt or was written by an incompatible version.
+   */
+  static SNOMEDSnapshot openOrBuild(Path path, ReleaseLoader loader) throws IOException {
     try {
-      try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
-        // Skip the first line
-        int lineNo = 0;
-        String[] columns;
-        for (String line = reader.readLine(); (line = reader.readLine()) != null; ) {
-
-          columns = Iterables.toArray(splitter.split(line), String.class);
-
-          // Assure we have the correct number of fields
-          if (columns.length == 6) {
-            try {
-              long conceptId = Long.parseLong(columns[0]);
-//          String conceptStatus = columns[1];
-              String fullySpecifiedName = columns[2];
-//          String ctv3Id = columns[3];
-//          String snomedId = columns[4];
-//          String isPrimitive = columns[5];
-
-              // Parse the biopath and store it in both maps
-              String parsedName = getParsedName(fullySpecifiedName);
-
-              nameToId.put(parsedName, conceptId);
-              idToName.put(conceptId, parsedName);
-            } catch (NumberFormatException e) {
-              long max = Long.MAX_VALUE;
-              long number = Long.parseLong(columns[0]);
-              LOGGER
-                  .warn("Found illegal int value {} (max: {}) on line {}.", number, max, lineNo, e);
-            } finally {
-              lineNo++;
-            }
-          } else {
-            // Something went wrong.
-            LOGGER.warn("Found {} columns. Excepted 6.", columns.length);
-          }
-        }
-      }
-    } finally {
-      write.unlock();
+      return SNOMEDSnapshot.open(path);
+    } catch (IOException ex) {
+      LOGGER.warn("Failed to map SNOMED snapshot {}: {}", path, ex.getMessage());
     }
-    LOGGER.debug("Parsed {} concepts", idToName.size());
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    loader.load(builder);
+    builder.write(path);
+    return SNOMEDSnapshot.open(path);
   }
 
-  private void parseRelations(String path, TLongObjectMap<List<SNOMEDRelation>> idToRelations) throws IOException {
-    write.lock();
-    try {
-      try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
-        // Skip the first line
-        int lineNo = 0;
-        String[] columns;
-        for (String line = reader.readLine(); (line = reader.readLine()) != null; ) {
-          columns = Iterables.toArray(splitter.split(line), String.class);
-
-          // Assure we have the correct number of fields
-          if (columns.length == 7) {
-            try {
-//          long relationshipId = Long.parseLong(columns[0]);
-              long conceptId1 = Long.parseLong(columns[1]);
-              long relationshipType = Long.parseLong(columns[2]);
-              long conceptId2 = Long.parseLong(columns[3]);
-//          String characteristicType = columns[4];
-//          String refinability = columns[5];
-//          String relationshipGroup = columns[6];
-
-              // Generate SNOMEDRelation object
-              SNOMEDRelation relation = new SNOMEDRelation(
-                  conceptId1,
-                  relationshipType,
-                  conceptId2);
-
-              //  Store the relation under both concepts
-              addRelation(idToRelations, conceptId1, relation);
-              addRelation(idToRelations, conceptId2, relation);
-            } catch (NumberFormatException e) {
-              long max = Long.MAX_VALUE;
-              long number = Long.parseLong(columns[0]);
-              LOGGER.warn("Found illegal int value {} (max: {}) on line {}.", number, max, lineNo, e);
-            } finally {
-              lineNo++;
-            }
-          } else {
-            // Something went wrong.
-            LOGGER.warn("Found {} columns. Expected 7. Line: |{}|", columns.length, line);
-          }
-        }
-      }
-    } finally {
-      write.unlock();
-    }
-    LOGGER.debug("Parsed {} relations", idToRelations.size());
+  /**
+   * Releases the mapped snapshot.  Nothing needs to be persisted: the snapshot is written once
+   * when it is built, and will be re-mapped if this manager is used again.  Lookups already in
+   * flight keep using the snapshot they started with.
+   */
+  @Override public void close() {
+    snapshot = null;
   }
 
+  /**
+   * Writes the relation graph for TransX-style embedding training (entity2id.tsv, relation2id.tsv,
+   * triple2id.tsv and the binary triple2id.bin) to the directory {@code path}.
+   *
+   * @see SNOMEDGraphExporter#writeTransX
+   */
   @SuppressWarnings("unused")
   public void writeTriplesTransXStyle(Path path) throws IOException {
-    final List<SNOMEDRelation> relations = new ArrayList<>();
-    readRelations(CORE_RELATIONSHIPS_PATH, relations);
-    readRelations(DRUG_RELATIONSHIPS_PATH, relations);
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(path.resolve("triple2id.tsv").toFile()))) {
-      writer.write(relations.size() + "");
-      writer.newLine();
-      for (SNOMEDRelation relation : relations) {
-        writer.write(relation.conceptId1 + "\t" + relation.conceptId2 + "\t" + relation.relationshipType);
-        writer.newLine();
-      }
-    }
-
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(path.resolve("relation2id.tsv").toFile()))) {
-      final SNOMEDRelationshipType[] types = SNOMEDRelationshipType.values();
-      writer.write(types.length + "");
-      writer.newLine();
-      for (SNOMEDRelationshipType type : types) {
-        writer.write(type.getValue() + "\t" + type.name());
-        writer.newLine();
-      }
-    }
-
-    parseConcepts(CORE_CONCEPTS_PATH, name2id, id2name);
-    parseConcepts(DRUG_CONCEPTS_PATH, name2id, id2name);
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(path.resolve("entity2id.tsv").toFile()))) {
-      writer.write(id2name.size() + "");
-      writer.newLine();
-      for (long id : id2name.keys()) {
-        writer.write(id + "\t" + id2name.get(id));
-        writer.newLine();
-      }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    new SNOMEDGraphExporter(initialize()).writeTransX(path);
   }
 
+  /**
+   * Writes normalized "name \t TYPE \t name" triples, normalizing each concept once on
+   * medbase.snomed.export.normalizer-threads threads.
+   *
+   * @see SNOMEDGraphExporter#writeSimple(Path, Function, int)
+   */
   public void writeTriplesSimple(Path path, Function<String, Optional<String>> normalizer) throws IOException {
-    parseConcepts(CORE_CONCEPTS_PATH, name2id, id2name);
-    parseConcepts(DRUG_CONCEPTS_PATH, name2id, id2name);
-
-    final List<SNOMEDRelation> relations = new ArrayList<>();
-    readRelations(CORE_RELATIONSHIPS_PATH, relations);
-    readRelations(DRUG_RELATIONSHIPS_PATH, relations);
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(path.toFile()))) {
-      for (SNOMEDRelation relation : relations) {
-        final Optional<String> op1 = normalizer.apply(id2name.get(relation.conceptId1));
-        final Optional<String> op2 = normalizer.apply(id2name.get(relation.conceptId2));
-        if (op1.isPresent() && op2.isPresent() && !op1.get().equals(op2.get())) {
-          writer.write(op1.get() + "\t" + SNOMEDRelationshipType.forValue(relation.relationshipType).name() + "\t" + op2.get());
-          writer.newLine();
-        }
-      }
-    }
+    new SNOMEDGraphExporter(initialize()).writeSimple(path, normalizer, NORMALIZER_THREADS);
   }
 
-  private void readRelations(String path, List<SNOMEDRelation> list) {
-    write.lock();
-    try {
-      try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
-        // Skip the first line
-        int lineNo = 0;
-        String[] columns;
-        for (String line = reader.readLine(); (line = reader.readLine()) != null; ) {
-          columns = Iterables.toArray(splitter.split(line), String.class);
-
-          // Assure we have the correct number of fields
-          if (columns.length == 7) {
-            try {
-//          long relationshipId = Long.parseLong(columns[0]);
-              long conceptId1 = Long.parseLong(columns[1]);
-              long relationshipType = Long.parseLong(columns[2]);
-              long conceptId2 = Long.parseLong(columns[3]);
-//          String characteristicType = columns[4];
-//          String refinability = columns[5];
-//          String relationshipGroup = columns[6];
-
-              // Generate SNOMEDRelation object
-              SNOMEDRelation relation = new SNOMEDRelation(
-                  conceptId1,
-                  relationshipType,
-                  conceptId2);
-
-              //  Store the relation under both concepts
-              list.add(relation);
-            } catch (NumberFormatException e) {
-              long max = Long.MAX_VALUE;
-              long number = Long.parseLong(columns[0]);
-              LOGGER.warn("Found illegal int value {} (max: {}) on line {}.", number, max, lineNo, e);
-            } finally {
-              lineNo++;
-            }
-          } else {
-            // Something went wrong.
-            LOGGER.warn("Found {} columns. Expected 7. Line: |{}|", columns.length, line);
-          }
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-    } finally {
-      write.unlock();
+  /**
+   * Collects the indices of every concept related to a concept named {@code name} within
+   * {@code levels} hops.  As before, the direct neighbours are always included, even when
+   * {@code levels} is zero.  IS_A expansions are read from the precomputed closure rather than
+   * traversed.
+   */
+  private TIntSet getRelatedIndices(SNOMEDSnapshot snapshot, int[] named, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction) {
+    final TIntSet related = new TIntHashSet();
+    for (int index : named) {
+      collectRelated(snapshot, index, relationshipType, levels, direction, related);
     }
+    return related;
   }
 
-  private Set<Long> getConceptId(String name) {
-    read.lock();
-    boolean empty = false;
-    try {
-      if (_name2id.containsKey(name)) {
-        return _name2id.get(name);
-      }
-      empty = name2id == null || name2id.isEmpty();
-    } finally {
-      read.unlock();
-    }
-
-    Set<Long> ids = new HashSet<>();
-    write.lock();
-    try {
-      if (empty) {
-        initialize();
-      }
-      ids.addAll(name2id.get(name));
-      _name2id.putAll(name, ids);
-    } finally {
-      write.unlock();
+  private static void collectRelated(SNOMEDSnapshot snapshot, int index, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction, TIntCollection out) {
+    if (relationshipType == SNOMEDRelationshipType.IS_A) {
+      snapshot.hierarchy().collect(index, Math.max(levels, 1), direction, out);
+    } else {
+      final SNOMEDGraph graph = snapshot.graph();
+      graph.traverse(index, graph.typeIndex(relationshipType), Math.max(levels, 1), direction, out);
     }
+  }
 
-    return ids;
+  /** @return true if the concept {@code conceptId} is a transitive IS_A descendant of {@code ancestorId} */
+  public boolean isDescendantOf(long conceptId, long ancestorId) {
+    final SNOMEDSnapshot snapshot = initialize();
+    final int concept = snapshot.indexOf(conceptId), ancestor = snapshot.indexOf(ancestorId);
+    return concept >= 0 && ancestor >= 0 && snapshot.hierarchy().isDescendant(concept, ancestor);
   }
 
-  private String getName(long id) {
-    read.lock();
-    boolean empty = false;
-    try {
-      if (_id2name.containsKey(id)) {
-        return _id2name.get(id);
-      }
-      empty = id2name == null || id2name.isEmpty();
-    } finally {
-      read.unlock();
+  /**
+   * @return the ids of every IS_A descendant of {@code conceptId} within {@code levels} levels,
+   * nearest first; empty if the concept is unknown
+   */
+  public long[] getDescendantIds(long conceptId, int levels) {
+    final SNOMEDSnapshot snapshot = initialize();
+    final int concept = snapshot.indexOf(conceptId);
+    if (concept < 0 || levels < 1) {
+      return new long[0];
     }
-
-    String name = "";
-    write.lock();
-    try {
-      if (empty) {
-        initialize();
-      }
-      name = Strings.nullToEmpty(id2name.get(id));
-      _id2name.put(id, name);
-    } finally {
-      write.unlock();
+    final SNOMEDHierarchy hierarchy = snapshot.hierarchy();
+    final long slice = hierarchy.descendants(concept, levels);
+    final int start = SNOMEDGraph.start(slice);
+    final long[] ids = new long[SNOMEDGraph.end(slice) - start];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = snapshot.conceptId(hierarchy.descendant(start + i));
     }
-    return name;
+    return ids;
   }
 
-  private List<SNOMEDRelation> getRelations(long id) {
-    read.lock();
-    boolean empty = false;
-    try {
-      if (_id2relation.containsKey(id)) {
-        return _id2relation.get(id);
-      }
-      empty = id2relation == null || id2relation.isEmpty();
-    } finally {
-      read.unlock();
+  /**
+   * @return the ids of every IS_A ancestor of {@code conceptId} within {@code levels} levels,
+   * nearest first; empty if the concept is unknown
+   */
+  public long[] getAncestorIds(long conceptId, int levels) {
+    final SNOMEDSnapshot snapshot = initialize();
+    final int concept = snapshot.indexOf(conceptId);
+    if (concept < 0 || levels < 1) {
+      return new long[0];
     }
-
-    List<SNOMEDRelation> list = new ArrayList<>();
-    write.lock();
-    try {
-      if (empty) {
-        initialize();
-      }
-      list.addAll(id2relation.get(id));
-      _id2relation.put(id, list);
-    } finally {
-      write.unlock();
+    final SNOMEDHierarchy hierarchy = snapshot.hierarchy();
+    final long slice = hierarchy.ancestors(concept, levels);
+    final int start = SNOMEDGraph.start(slice);
+    final long[] ids = new long[SNOMEDGraph.end(slice) - start];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = snapshot.conceptId(hierarchy.ancestor(start + i));
     }
-
-    return list;
+    return ids;
   }
 
-  private static class SNOMEDPath {
-    String name;
-    long id;
-
-    SNOMEDPath(String name, long id) {
-      this.name = name;
-      this.id = id;
+  /** @return the ids of the concepts named or described by {@code name}, ascending */
+  public long[] lookupConceptIds(CharSequence name) {
+    final SNOMEDSnapshot snapshot = initialize();
+    final int[] named = snapshot.lookupName(name);
+    final long[] ids = new long[named.length];
+    for (int i = 0; i < named.length; i++) {
+      ids[i] = snapshot.conceptId(named[i]);
     }
+    return ids;
   }
 
-  private Collection<SNOMEDPath> getRelatedConcepts(long conceptID, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction) {
-    List<SNOMEDPath> matching = new ArrayList<>();
-    List<SNOMEDRelation> all = getRelations(conceptID);
-
-    if (all != null) {
-      for (SNOMEDRelation relation : all) {
-        long source = 0L;
-        long target = 0L;
-        switch (direction) {
-          case CHILDREN:
-            source = relation.conceptId2;
-            target = relation.conceptId1;
-            break;
-          case PARENTS:
-            source = relation.conceptId1;
-            target = relation.conceptId2;
-            break;
-          case BOTH:
-            matching.addAll(getRelatedConcepts(conceptID, relationshipType, levels, SNOMEDRelationshipDirection.CHILDREN));
-            matching.addAll(getRelatedConcepts(conceptID, relationshipType, levels, SNOMEDRelationshipDirection.PARENTS));
-            return matching;
-        }
-
-        if (relation.relationshipType == relationshipType.getValue() && source == conceptID) {
-          String name = getName(target);
-          if (name != null) {
-            matching.add(new SNOMEDPath(name, target));
-            if (levels > 1) {
-              matching.addAll(getRelatedConcepts(target, relationshipType, levels - 1, direction));
-            }
-          }
-        }
-      }
-    }
-
-    return matching;
-  }
   public Set<String> getRelatedConcepts(String name, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction) {
     // Return nothing if we are asked for nonsense
     if (levels < 0) {
       return new HashSet<>();
     }
 
-    Set<Long> ids = getConceptId(getParsedName(name));
-    Set<String> results = new HashSet<>();
-
-    if (ids != null) {
-      for (long id : ids) {
-        for (SNOMEDPath path : getRelatedConcepts(id, relationshipType, levels, direction)) {
-          results.add(path.name);
-        }
+    final SNOMEDSnapshot snapshot = initialize();
+    final Set<String> results = new HashSet<>();
+    for (TIntIterator it = getRelatedIndices(snapshot, snapshot.lookupName(name), relationshipType, levels, direction).iterator(); it.hasNext(); ) {
+      final String related = snapshot.name(it.next());
+      if (!related.isEmpty()) {
+        results.add(related);
       }
     }
 
@@ -497,14 +256,16 @@ public class SNOMEDManager implements Closeable {
   }
 
   public Set<Long> getConceptIds(String name, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction) {
-    Set<Long> ids = getConceptId(getParsedName(name));
-    Set<Long> results = new HashSet<>(ids);
-    for (long id : ids) {
-      for (SNOMEDPath path : getRelatedConcepts(id, relationshipType, levels, direction)) {
-        results.add(path.id);
-      }
+    final SNOMEDSnapshot snapshot = initialize();
+    final int[] named = snapshot.lookupName(name);
+    final Set<Long> results = new HashSet<>();
+    for (int index : named) {
+      results.add(snapshot.conceptId(index));
     }
-    return ids;
+    for (TIntIterator it = getRelatedIndices(snapshot, named, relationshipType, levels, direction).iterator(); it.hasNext(); ) {
+      results.add(snapshot.conceptId(it.next()));
+    }
+    return results;
   }
 
 
@@ -513,38 +274,85 @@ public class SNOMEDManager implements Closeable {
     Set<String> concepts = getRelatedConcepts(name, relationshipType, levels, direction);
     String parsedName = getParsedName(name);
     concepts.add(parsedName);
-    filterExpandedConcepts(concepts);
     Expansion.reduceEntries(concepts);
     concepts.remove(parsedName);
     return concepts;
   }
 
-  public static Set<String> filterExpandedConcepts(Set<String> list) {
-    Set<String> concepts = new HashSet<>(list);
-    Set<String> results = new HashSet<>();
-
-    for (Iterator<String> it = concepts.iterator(); it.hasNext();) {
-      String concept = it.next();
-
-      boolean isPrefix = true;
-      for (String other : concepts) {
-        // Compare against all other elements
-        if (!concept.equals(other) && concept.startsWith(other)) {
-          isPrefix = false;
-          break;
+  /**
+   * Batch form of {@link #getFilteredConcepts(CharSequence, SNOMEDRelationshipType, int, SNOMEDRelationshipDirection)}
+   * for a whole list of query terms.  Terms with the same parsed name are expanded once, and the
+   * relations of each concept are collected once no matter how many terms resolve to it.
+   *
+   * @return the expansions of every term, keyed by {@code term.toString()}, in iteration order
+   */
+  public Map<String, Set<String>> getFilteredConcepts(Collection<? extends CharSequence> terms, SNOMEDRelationshipType relationshipType, int levels, SNOMEDRelationshipDirection direction) {
+    final SNOMEDSnapshot snapshot = initialize();
+    final Map<String, Set<String>> results = new LinkedHashMap<>();
+    final Map<String, Set<String>> byParsedName = new HashMap<>();
+    final TIntObjectMap<int[]> relatedByIndex = new TIntObjectHashMap<>();
+    for (CharSequence term : terms) {
+      final String name = term.toString();
+      if (results.containsKey(name)) {
+        continue;
+      }
+      final String parsedName = getParsedName(name);
+      Set<String> concepts = byParsedName.get(parsedName);
+      if (concepts == null) {
+        concepts = new HashSet<>();
+        if (levels >= 0) {
+          for (int index : snapshot.lookupName(name)) {
+            int[] related = relatedByIndex.get(index);
+            if (related == null) {
+              final TIntArrayList collected = new TIntArrayList();
+              collectRelated(snapshot, index, relationshipType, levels, direction, collected);
+              related = collected.toArray();
+              relatedByIndex.put(index, related);
+            }
+            for (int concept : related) {
+              final String relatedName = snapshot.name(concept);
+              if (!relatedName.isEmpty()) {
+                concepts.add(relatedName);
+              }
+            }
+          }
         }
+        concepts.add(parsedName);
+        Expansion.reduceEntries(concepts);
+        concepts.remove(parsedName);
+        byParsedName.put(parsedName, concepts);
       }
+      results.put(name, new HashSet<>(concepts));
+    }
+    LOGGER.debug("Expanded {} terms through {} distinct concepts", results.size(), relatedByIndex.size());
+    return results;
+  }
 
-      if (isPrefix) {
+  /**
+   * Removes every concept that has another concept of the set as a prefix.
+   *
+   * In sorted order, any name starting with a prefix from the set follows that prefix, and every
+   * name between the two starts with it as well; so a name needs to be kept exactly when it does not
+   * start with the last name kept.  This takes O(n log n) comparisons rather than O(n^2).
+   */
+  public static Set<String> filterExpandedConcepts(Set<String> list) {
+    final String[] concepts = list.toArray(new String[list.size()]);
+    Arrays.sort(concepts);
+    final Set<String> results = new HashSet<>();
+    String last = null;
+    for (String concept : concepts) {
+      if (last == null || !concept.startsWith(last)) {
         results.add(concept);
-      } else {
-        it.remove();
+        last = concept;
       }
     }
-
     return results;
   }
 
+  /**
+   * Normalizes a concept name or query term: strips a trailing " (semantic tag)" and lowercases.
+   * Lookups go through {@link SNOMEDSnapshot#findTerm}, which applies this without allocating.
+   */
   public static String getParsedName(String name) {
     // Strip off ending " (description)" text
     int delim = name.lastIndexOf('(');
@@ -559,10 +367,9 @@ public class SNOMEDManager implements Closeable {
     return result.toLowerCase();
   }
 
-  public Expander<CharSequence, String> expandBy(final SNOMEDRelationshipType relationshipType,
-                                                 final int levels,
-                                                 final SNOMEDRelationshipDirection direction) {
-    return Expander.fromFunction("SNOMED:" + relationshipType.name(),
-        item -> getFilteredConcepts(item.toString(), relationshipType, levels, direction));
+  public SNOMEDExpander expandBy(final SNOMEDRelationshipType relationshipType,
+                                 final int levels,
+                                 final SNOMEDRelationshipDirection direction) {
+    return new SNOMEDExpander(this, relationshipType, levels, direction, EXPANSION_CACHE_SIZE);
   }
 }
@@ -0,0 +1,263 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import edu.utdallas.hlt.medbase.io.DelimitedFileReader;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Loads SNOMED CT release files into a {@link SNOMEDSnapshot.Builder}.
+ *
+ * Files are parsed in parallel byte ranges on a fork-join pool (see {@link DelimitedFileReader})
+ * and merged in file order, so the result is identical to a sequential load.  Both the RF1 format
+ * and the RF2 snapshot format are supported; RF2 rows whose {@code active} flag is not set are
+ * skipped, and RF2 concept names come from the active fully specified names in the descriptions
+ * file.  Other descriptions (synonyms and preferred terms) are loaded by {@link #loadDescriptions},
+ * keeping only current/active descriptions in the configured languages.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDReleaseLoader {
+  private static final Logger LOGGER = Logger.get(SNOMEDReleaseLoader.class);
+
+  public enum Format {
+    RF1,
+    RF2
+  }
+
+  /** RF2 description type of fully specified names */
+  static final long FULLY_SPECIFIED_NAME = 900000000000003001L;
+
+  /** RF1 description status of current descriptions */
+  static final char RF1_CURRENT = '0';
+
+  /** RF1 description type of fully specified names */
+  static final char RF1_FULLY_SPECIFIED_NAME = '3';
+
+  private final Format       format;
+  private final ForkJoinPool pool;
+  private final String[]     languages;
+
+  public SNOMEDReleaseLoader(Format format, List<String> languages) {
+    this(format, languages, ForkJoinPool.commonPool());
+  }
+
+  /** @param languages language codes of the descriptions to load */
+  public SNOMEDReleaseLoader(Format format, List<String> languages, ForkJoinPool pool) {
+    this.format = format;
+    this.languages = languages.toArray(new String[languages.size()]);
+    this.pool = pool;
+  }
+
+  /** Concepts (and their parsed names) parsed from one chunk of a file */
+  private static class Concepts {
+    final TLongArrayList ids   = new TLongArrayList();
+    final List<String>   names = new ArrayList<>();
+  }
+
+  /** Relations parsed from one chunk of a file */
+  private static class Relations {
+    final TLongArrayList sources = new TLongArrayList();
+    final TLongArrayList types   = new TLongArrayList();
+    final TLongArrayList targets = new TLongArrayList();
+  }
+
+  /**
+   * Loads the concepts of one release.
+   *
+   * @param descriptions the RF2 descriptions file holding concept names; ignored for RF1
+   */
+  public void loadConcepts(Path concepts, Path descriptions, SNOMEDSnapshot.Builder builder) throws IOException {
+    final int before = builder.conceptCount();
+    switch (format) {
+      case RF1:
+        for (Concepts chunk : read(concepts, Concepts::new, SNOMEDReleaseLoader::parseRF1Concept)) {
+          builder.addConcepts(chunk.ids, chunk.names);
+        }
+        break;
+      case RF2:
+        final TLongHashSet active = new TLongHashSet();
+        for (TLongArrayList chunk : read(concepts, TLongArrayList::new, SNOMEDReleaseLoader::parseRF2Concept)) {
+          active.addAll(chunk);
+        }
+        final TLongHashSet named = new TLongHashSet();
+        for (Concepts chunk : read(descriptions, Concepts::new, SNOMEDReleaseLoader::parseRF2Name)) {
+          for (int i = 0; i < chunk.ids.size(); i++) {
+            final long id = chunk.ids.getQuick(i);
+            if (active.contains(id) && named.add(id)) {
+              builder.addConcept(id, chunk.names.get(i));
+            }
+          }
+        }
+        // Active concepts without an active fully specified name are still part of the graph
+        for (long id : active.toArray()) {
+          if (!named.contains(id)) {
+            builder.addConcept(id, "");
+          }
+        }
+        break;
+    }
+    LOGGER.debug("Parsed {} concepts from {}", builder.conceptCount() - before, concepts);
+  }
+
+  /**
+   * Loads the descriptions of one release other than fully specified names (which are loaded as
+   * concept names by {@link #loadConcepts}).  Only current (RF1) or active (RF2) descriptions in
+   * one of the configured languages are kept.
+   */
+  public void loadDescriptions(Path descriptions, SNOMEDSnapshot.Builder builder) throws IOException {
+    final int before = builder.descriptionCount();
+    final DelimitedFileReader.RowHandler<Concepts> parser =
+        format == Format.RF1 ? this::parseRF1Description : this::parseRF2Description;
+    for (Concepts chunk : read(descriptions, Concepts::new, parser)) {
+      builder.addDescriptions(chunk.ids, chunk.names);
+    }
+    LOGGER.debug("Parsed {} descriptions from {}", builder.descriptionCount() - before, descriptions);
+  }
+
+  /** Loads the relationships of one release */
+  public void loadRelations(Path relationships, SNOMEDSnapshot.Builder builder) throws IOException {
+    final int before = builder.relationCount();
+    final DelimitedFileReader.RowHandler<Relations> parser =
+        format == Format.RF1 ? SNOMEDReleaseLoader::parseRF1Relation : SNOMEDReleaseLoader::parseRF2Relation;
+    for (Relations chunk : read(relationships, Relations::new, parser)) {
+      builder.addRelations(chunk.sources, chunk.types, chunk.targets);
+    }
+    LOGGER.debug("Parsed {} relations from {}", builder.relationCount() - before, relationships);
+  }
+
+  private <A> List<A> read(Path path, Supplier<A> supplier, DelimitedFileReader.RowHandler<A> handler) throws IOException {
+    return new DelimitedFileReader(path, '\t', true).read(pool, supplier, handler);
+  }
+
+  /* RF1 concepts: CONCEPTID, CONCEPTSTATUS, FULLYSPECIFIEDNAME, CTV3ID, SNOMEDID, ISPRIMITIVE */
+  private static void parseRF1Concept(DelimitedFileReader.Row row, Concepts concepts) {
+    if (row.columns() != 6) {
+      LOGGER.warn("Found {} columns. Expected 6. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      final long conceptId = row.getLong(0);
+      concepts.ids.add(conceptId);
+      concepts.names.add(SNOMEDManager.getParsedName(row.getString(2)));
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  /* RF1 descriptions: DESCRIPTIONID, DESCRIPTIONSTATUS, CONCEPTID, TERM, INITIALCAPITALSTATUS, DESCRIPTIONTYPE, LANGUAGECODE */
+  private void parseRF1Description(DelimitedFileReader.Row row, Concepts concepts) {
+    if (row.columns() != 7) {
+      LOGGER.warn("Found {} columns. Expected 7. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      if (row.is(1, RF1_CURRENT) && !row.is(5, RF1_FULLY_SPECIFIED_NAME) && isLanguage(row, 6)) {
+        concepts.ids.add(row.getLong(2));
+        concepts.names.add(SNOMEDManager.getParsedName(row.getString(3)));
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  /* RF1 relationships: RELATIONSHIPID, CONCEPTID1, RELATIONSHIPTYPE, CONCEPTID2, CHARACTERISTICTYPE, REFINABILITY, RELATIONSHIPGROUP */
+  private static void parseRF1Relation(DelimitedFileReader.Row row, Relations relations) {
+    if (row.columns() != 7) {
+      LOGGER.warn("Found {} columns. Expected 7. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      final long conceptId1 = row.getLong(1);
+      final long relationshipType = row.getLong(2);
+      final long conceptId2 = row.getLong(3);
+      relations.sources.add(conceptId1);
+      relations.types.add(relationshipType);
+      relations.targets.add(conceptId2);
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  /* RF2 concepts: id, effectiveTime, active, moduleId, definitionStatusId */
+  private static void parseRF2Concept(DelimitedFileReader.Row row, TLongArrayList active) {
+    if (row.columns() != 5) {
+      LOGGER.warn("Found {} columns. Expected 5. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      if (row.is(2, '1')) {
+        active.add(row.getLong(0));
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  /* RF2 descriptions: id, effectiveTime, active, moduleId, conceptId, languageCode, typeId, term, caseSignificanceId */
+  private static void parseRF2Name(DelimitedFileReader.Row row, Concepts concepts) {
+    if (row.columns() != 9) {
+      LOGGER.warn("Found {} columns. Expected 9. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      if (row.is(2, '1') && row.getLong(6) == FULLY_SPECIFIED_NAME) {
+        concepts.ids.add(row.getLong(4));
+        concepts.names.add(SNOMEDManager.getParsedName(row.getString(7)));
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  private void parseRF2Description(DelimitedFileReader.Row row, Concepts concepts) {
+    if (row.columns() != 9) {
+      LOGGER.warn("Found {} columns. Expected 9. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      if (row.is(2, '1') && isLanguage(row, 5) && row.getLong(6) != FULLY_SPECIFIED_NAME) {
+        concepts.ids.add(row.getLong(4));
+        concepts.names.add(SNOMEDManager.getParsedName(row.getString(7)));
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+
+  private boolean isLanguage(DelimitedFileReader.Row row, int column) {
+    for (String language : languages) {
+      if (row.is(column, language)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* RF2 relationships: id, effectiveTime, active, moduleId, sourceId, destinationId, relationshipGroup, typeId, characteristicTypeId, modifierId */
+  private static void parseRF2Relation(DelimitedFileReader.Row row, Relations relations) {
+    if (row.columns() != 10) {
+      LOGGER.warn("Found {} columns. Expected 10. Line: |{}|", row.columns(), row.line());
+      return;
+    }
+    try {
+      if (row.is(2, '1')) {
+        final long sourceId = row.getLong(4);
+        final long typeId = row.getLong(7);
+        final long destinationId = row.getLong(5);
+        relations.sources.add(sourceId);
+        relations.types.add(typeId);
+        relations.targets.add(destinationId);
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Found illegal concept id on line |{}|", row.line(), e);
+    }
+  }
+}
@@ -0,0 +1,572 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.utdallas.hlt.medbase.io.SectionFile;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Read-only, memory-mapped view of a loaded SNOMED release.
+ *
+ * The snapshot is a versioned, columnar binary file written once (from the release files) by a
+ * {@link Builder} and memory-mapped read-only, so the data lives in the page cache
+ * rather than on the heap and can be shared by any number of JVMs on the same host.  Concepts are
+ * addressed by dense indices into the sorted concept id column.  Concept names and descriptions
+ * are dictionary-encoded: every distinct term is stored once, as UTF-8 in a single pool sorted by
+ * its bytes, and a term id is its rank in that pool.  Name lookups, concept names and concept
+ * descriptions all go through term ids.  Relations are stored as per-direction compressed sparse
+ * row (CSR) adjacency, exposed through {@link #graph()}.  The transitive closure of IS_A is
+ * precomputed and exposed through {@link #hierarchy()}.
+ *
+ * The file is a {@link SectionFile} with the sections tagged below.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SNOMEDSnapshot {
+  private static final Logger LOGGER = Logger.get(SNOMEDSnapshot.class);
+
+  static final long MAGIC = 0x534e4f4d45445353L; // "SNOMEDSS"
+
+  /** Bump whenever the section layout or its contents change; snapshots with any other version are rebuilt */
+  static final int VERSION = 7;
+
+  static final ByteOrder ORDER = SectionFile.ORDER;
+
+  /* Section tags */
+  static final int CONCEPT_IDS   = 1;  // long[n], sorted ascending
+  static final int TERM_OFFSETS  = 2;  // int[m + 1], offsets into TERM_BYTES
+  static final int TERM_BYTES    = 3;  // byte[], distinct UTF-8 parsed terms, sorted by bytes
+  static final int CONCEPT_NAMES = 4;  // int[n], term id of each concept's name, or -1
+  static final int TYPE_IDS      = 5;  // long[t], relationship type concept ids
+  static final int OUT_OFFSETS   = 6;  // int[n + 1], offsets into OUT_TYPES/OUT_TARGETS
+  static final int OUT_TYPES     = 7;  // int[e], index into TYPE_IDS
+  static final int OUT_TARGETS   = 8;  // int[e], conceptId2 of each relation by conceptId1
+  static final int IN_OFFSETS    = 9;  // int[n + 1], offsets into IN_TYPES/IN_TARGETS
+  static final int IN_TYPES      = 10; // int[e], index into TYPE_IDS
+  static final int IN_TARGETS    = 11; // int[e], conceptId1 of each relation by conceptId2
+  static final int ANC_OFFSETS   = 12; // int[n + 1], offsets into ANC_TARGETS/ANC_DEPTHS
+  static final int ANC_TARGETS   = 13; // int[a], IS_A ancestors of each concept, sorted by (depth, index)
+  static final int ANC_DEPTHS    = 14; // byte[a], distance of each ancestor in IS_A hops
+  static final int DESC_OFFSETS  = 15; // int[n + 1], offsets into DESC_TARGETS/DESC_DEPTHS
+  static final int DESC_TARGETS  = 16; // int[a], IS_A descendants of each concept, sorted by (depth, index)
+  static final int DESC_DEPTHS   = 17; // byte[a], distance of each descendant in IS_A hops
+  static final int TERM_CONCEPT_OFFSETS = 18; // int[m + 1], offsets into TERM_CONCEPTS
+  static final int TERM_CONCEPTS        = 19; // int[p], concepts named or described by each term, ascending
+  static final int CONCEPT_TERM_OFFSETS = 20; // int[n + 1], offsets into CONCEPT_TERMS
+  static final int CONCEPT_TERMS        = 21; // int[p], term ids of each concept's name and descriptions, ascending
+  static final int TERM_HASH            = 22; // int[2^k], open-addressing table of term ids by hash, -1 if empty
+  static final int ANC_SORTED           = 23; // int[a], IS_A ancestors of each concept, sorted by index (by ANC_OFFSETS)
+  private static final int SECTIONS = ANC_SORTED;
+
+  private final LongBuffer conceptIds;
+  private final IntBuffer  termOffsets;
+  private final ByteBuffer termBytes;
+  private final IntBuffer  conceptNames;
+  private final IntBuffer  termConceptOffsets, termConcepts;
+  private final IntBuffer  conceptTermOffsets, conceptTerms;
+  private final IntBuffer  termHash;
+  private final int        termHashMask;
+  private final SNOMEDGraph graph;
+  private final SNOMEDHierarchy hierarchy;
+
+  private final int size;
+  private final int termCount;
+
+  private SNOMEDSnapshot(ByteBuffer[] views) {
+    this.conceptIds = views[CONCEPT_IDS].asLongBuffer();
+    this.termOffsets = views[TERM_OFFSETS].asIntBuffer();
+    this.termBytes = views[TERM_BYTES];
+    this.conceptNames = views[CONCEPT_NAMES].asIntBuffer();
+    this.termConceptOffsets = views[TERM_CONCEPT_OFFSETS].asIntBuffer();
+    this.termConcepts = views[TERM_CONCEPTS].asIntBuffer();
+    this.conceptTermOffsets = views[CONCEPT_TERM_OFFSETS].asIntBuffer();
+    this.conceptTerms = views[CONCEPT_TERMS].asIntBuffer();
+    this.termHash = views[TERM_HASH].asIntBuffer();
+    this.termHashMask = termHash.limit() - 1;
+    this.size = conceptIds.limit();
+    this.termCount = termOffsets.limit() - 1;
+    this.graph = new SNOMEDGraph(size, views[TYPE_IDS].asLongBuffer(),
+        views[OUT_OFFSETS].asIntBuffer(), views[OUT_TYPES].asIntBuffer(), views[OUT_TARGETS].asIntBuffer(),
+        views[IN_OFFSETS].asIntBuffer(), views[IN_TYPES].asIntBuffer(), views[IN_TARGETS].asIntBuffer());
+    this.hierarchy = new SNOMEDHierarchy(
+        views[ANC_OFFSETS].asIntBuffer(), views[ANC_TARGETS].asIntBuffer(), views[ANC_DEPTHS], views[ANC_SORTED].asIntBuffer(),
+        views[DESC_OFFSETS].asIntBuffer(), views[DESC_TARGETS].asIntBuffer(), views[DESC_DEPTHS]);
+  }
+
+  /**
+   * Maps the snapshot at the given path read-only.  The channel is closed immediately; the mapping
+   * stays valid until the snapshot is garbage collected.
+   *
+   * @throws IOException if the file is missing, truncated, or was written by another version
+   */
+  public static SNOMEDSnapshot open(Path path) throws IOException {
+    final SNOMEDSnapshot snapshot = new SNOMEDSnapshot(SectionFile.map(path, MAGIC, VERSION, SECTIONS, "SNOMED snapshot"));
+    LOGGER.info("Mapped SNOMED snapshot {} with {} concepts and {} relations", path, snapshot.size(), snapshot.relationCount());
+    return snapshot;
+  }
+
+  /** @return the number of concepts */
+  public int size() {
+    return size;
+  }
+
+  /** @return the number of distinct relations */
+  public int relationCount() {
+    return graph.edgeCount();
+  }
+
+  /** @return the relationship graph over this snapshot's concept indices */
+  public SNOMEDGraph graph() {
+    return graph;
+  }
+
+  /** @return the precomputed IS_A closure over this snapshot's concept indices */
+  public SNOMEDHierarchy hierarchy() {
+    return hierarchy;
+  }
+
+  /** @return the dense index of the given SNOMED concept id, or -1 if it is unknown */
+  public int indexOf(long conceptId) {
+    int lo = 0, hi = size - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final long value = conceptIds.get(mid);
+      if (value < conceptId) {
+        lo = mid + 1;
+      } else if (value > conceptId) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  public long conceptId(int index) {
+    return conceptIds.get(index);
+  }
+
+  /** @return the parsed name of the concept at the given index, or the empty string if it has none */
+  public String name(int index) {
+    final int term = conceptNames.get(index);
+    return term < 0 ? "" : term(term);
+  }
+
+  /** @return the number of distinct terms (names and descriptions) */
+  public int termCount() {
+    return termCount;
+  }
+
+  /** @return the term with the given id */
+  public String term(int term) {
+    final int start = termOffsets.get(term), end = termOffsets.get(term + 1);
+    final byte[] bytes = new byte[end - start];
+    final ByteBuffer view = termBytes.duplicate();
+    view.position(start);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** @return the id of the given parsed term, or -1 if no concept is named or described by it */
+  public int termId(String parsedTerm) {
+    final byte[] key = parsedTerm.getBytes(StandardCharsets.UTF_8);
+    int lo = 0, hi = termCount - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int cmp = compareTerm(mid, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the id of the term {@code SNOMEDManager.getParsedName(name.toString())} would produce,
+   * or -1 if there is none.  For ASCII names the semantic tag is skipped and case is folded while
+   * hashing {@code name} directly against the term hash table, so nothing is allocated; other names
+   * take the {@link SNOMEDManager#getParsedName} path.
+   */
+  public int findTerm(CharSequence name) {
+    int end = name.length();
+    // Same as getParsedName: drop the last " (...)" unless the name starts with '('
+    for (int i = end - 1; i > 0; i--) {
+      if (name.charAt(i) == '(') {
+        end = i - 1;
+        break;
+      }
+    }
+    int hash = HASH_SEED;
+    for (int i = 0; i < end; i++) {
+      final char c = name.charAt(i);
+      if (c >= 0x80) {
+        return termId(SNOMEDManager.getParsedName(name.toString()));
+      }
+      hash = hash(hash, toLowerCase(c));
+    }
+    for (int slot = mix(hash) & termHashMask; ; slot = (slot + 1) & termHashMask) {
+      final int term = termHash.get(slot);
+      if (term < 0) {
+        return -1;
+      }
+      if (termOffsets.get(term + 1) - termOffsets.get(term) == end && matches(term, name, end)) {
+        return term;
+      }
+    }
+  }
+
+  /** @return the indices of all concepts named or described by {@code SNOMEDManager.getParsedName(name)} */
+  public int[] lookupName(CharSequence name) {
+    final int term = findTerm(name);
+    return term < 0 ? new int[0] : concepts(term);
+  }
+
+  private boolean matches(int term, CharSequence name, int length) {
+    final int start = termOffsets.get(term);
+    for (int i = 0; i < length; i++) {
+      if (termBytes.get(start + i) != toLowerCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static final int HASH_SEED = 0x811c9dc5;
+
+  private static char toLowerCase(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static int hash(int hash, char c) {
+    return (hash ^ c) * 0x01000193;
+  }
+
+  /** Final avalanche, so that linear probing over the low bits behaves */
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    return hash;
+  }
+
+  /** @return the ids of the name and descriptions of the concept at the given index, ascending */
+  public int[] terms(int index) {
+    return slice(conceptTermOffsets, conceptTerms, index);
+  }
+
+  /** @return the indices of all concepts named or described by the given term, ascending */
+  public int[] concepts(int term) {
+    return slice(termConceptOffsets, termConcepts, term);
+  }
+
+  /** @return the indices of all concepts whose parsed name or description is exactly {@code parsedName} */
+  public int[] lookup(String parsedName) {
+    final int term = termId(parsedName);
+    return term < 0 ? new int[0] : concepts(term);
+  }
+
+  private static int[] slice(IntBuffer offsets, IntBuffer values, int row) {
+    final int start = offsets.get(row);
+    final int[] slice = new int[offsets.get(row + 1) - start];
+    for (int i = 0; i < slice.length; i++) {
+      slice[i] = values.get(start + i);
+    }
+    return slice;
+  }
+
+  private int compareTerm(int term, byte[] key) {
+    final int start = termOffsets.get(term), end = termOffsets.get(term + 1);
+    final int length = Math.min(end - start, key.length);
+    for (int i = 0; i < length; i++) {
+      final int cmp = (termBytes.get(start + i) & 0xff) - (key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return (end - start) - key.length;
+  }
+
+  /**
+   * Accumulates concepts and relations parsed from release files and writes them as a snapshot.
+   * Not thread-safe.
+   */
+  public static class Builder {
+    private final TLongArrayList ids   = new TLongArrayList();
+    private final List<String>   names = new ArrayList<>();
+
+    private final TLongArrayList describedIds = new TLongArrayList();
+    private final List<String>   descriptions = new ArrayList<>();
+
+    private final TLongArrayList sources = new TLongArrayList();
+    private final TLongArrayList types   = new TLongArrayList();
+    private final TLongArrayList targets = new TLongArrayList();
+
+    public void addConcept(long conceptId, String parsedName) {
+      ids.add(conceptId);
+      names.add(parsedName);
+    }
+
+    /** Adds a description (synonym) of a concept; descriptions of unknown concepts are dropped */
+    public void addDescription(long conceptId, String parsedTerm) {
+      describedIds.add(conceptId);
+      descriptions.add(parsedTerm);
+    }
+
+    public void addRelation(long conceptId1, long relationshipType, long conceptId2) {
+      sources.add(conceptId1);
+      types.add(relationshipType);
+      targets.add(conceptId2);
+    }
+
+    /** Adds a batch of concepts; {@code parsedNames} must be parallel to {@code conceptIds} */
+    public void addConcepts(TLongArrayList conceptIds, List<String> parsedNames) {
+      ids.addAll(conceptIds);
+      names.addAll(parsedNames);
+    }
+
+    /** Adds a batch of descriptions; {@code parsedTerms} must be parallel to {@code conceptIds} */
+    public void addDescriptions(TLongArrayList conceptIds, List<String> parsedTerms) {
+      describedIds.addAll(conceptIds);
+      descriptions.addAll(parsedTerms);
+    }
+
+    /** Adds a batch of relations given as parallel (conceptId1, relationshipType, conceptId2) columns */
+    public void addRelations(TLongArrayList conceptIds1, TLongArrayList relationshipTypes, TLongArrayList conceptIds2) {
+      sources.addAll(conceptIds1);
+      types.addAll(relationshipTypes);
+      targets.addAll(conceptIds2);
+    }
+
+    public int conceptCount() {
+      return ids.size();
+    }
+
+    public int descriptionCount() {
+      return describedIds.size();
+    }
+
+    public int relationCount() {
+      return sources.size();
+    }
+
+    /**
+     * Writes the accumulated release to {@code path}.  The snapshot is written to a temporary file
+     * and atomically moved into place so that concurrent readers never observe a partial file.
+     */
+    public void write(Path path) throws IOException {
+      // Assign dense indices in concept id order; the first name seen for an id wins
+      final TLongIntHashMap first = new TLongIntHashMap(ids.size() * 2, 0.5f, -1, -1);
+      for (int i = 0; i < ids.size(); i++) {
+        first.putIfAbsent(ids.get(i), i);
+      }
+      // Relation endpoints missing from the concept files become nameless concepts
+      for (TLongArrayList endpoints : Arrays.asList(sources, targets)) {
+        for (int i = 0; i < endpoints.size(); i++) {
+          if (!first.containsKey(endpoints.get(i))) {
+            first.put(endpoints.get(i), -1);
+          }
+        }
+      }
+      final long[] conceptIds = first.keys();
+      Arrays.sort(conceptIds);
+      final int n = conceptIds.length;
+
+      // Dictionary-encode names and descriptions: term ids are ranks in UTF-8 byte order
+      final Map<String, Integer> termIds = new HashMap<>();
+      final int[] conceptNames = new int[n];
+      for (int i = 0; i < n; i++) {
+        final int source = first.get(conceptIds[i]);
+        conceptNames[i] = source >= 0 && !names.get(source).isEmpty() ? 0 : -1;
+        if (conceptNames[i] == 0) {
+          termIds.put(names.get(source), 0);
+        }
+      }
+      final int[] describedConcepts = new int[describedIds.size()];
+      for (int d = 0; d < describedIds.size(); d++) {
+        describedConcepts[d] = Arrays.binarySearch(conceptIds, describedIds.get(d));
+        if (describedConcepts[d] >= 0 && !descriptions.get(d).isEmpty()) {
+          termIds.put(descriptions.get(d), 0);
+        } else {
+          describedConcepts[d] = -1;
+        }
+      }
+      final String[] terms = termIds.keySet().toArray(new String[termIds.size()]);
+      final byte[][] termBytes = new byte[terms.length][];
+      final Integer[] byBytes = new Integer[terms.length];
+      for (int t = 0; t < terms.length; t++) {
+        termBytes[t] = terms[t].getBytes(StandardCharsets.UTF_8);
+        byBytes[t] = t;
+      }
+      Arrays.sort(byBytes, (a, b) -> compareBytes(termBytes[a], termBytes[b]));
+      final int m = terms.length;
+      final int[] termOffsets = new int[m + 1];
+      for (int t = 0; t < m; t++) {
+        termIds.put(terms[byBytes[t]], t);
+        termOffsets[t + 1] = termOffsets[t] + termBytes[byBytes[t]].length;
+      }
+      final ByteBuffer pool = ByteBuffer.allocate(termOffsets[m]);
+      for (int t = 0; t < m; t++) {
+        pool.put(termBytes[byBytes[t]]);
+      }
+      pool.flip();
+      final int[] termHash = new int[Integer.highestOneBit(Math.max(m, 1)) * 4];
+      Arrays.fill(termHash, -1);
+      for (int t = 0; t < m; t++) {
+        final String term = terms[byBytes[t]];
+        int hash = HASH_SEED;
+        for (int i = 0; i < term.length(); i++) {
+          hash = hash(hash, term.charAt(i));
+        }
+        int slot = mix(hash) & (termHash.length - 1);
+        while (termHash[slot] >= 0) {
+          slot = (slot + 1) & (termHash.length - 1);
+        }
+        termHash[slot] = t;
+      }
+
+      // Concept/term pairs, in both directions
+      final TIntArrayList pairConcepts = new TIntArrayList(), pairTerms = new TIntArrayList();
+      for (int i = 0; i < n; i++) {
+        if (conceptNames[i] == 0) {
+          conceptNames[i] = termIds.get(names.get(first.get(conceptIds[i])));
+          pairConcepts.add(i);
+          pairTerms.add(conceptNames[i]);
+        }
+      }
+      for (int d = 0; d < describedConcepts.length; d++) {
+        if (describedConcepts[d] >= 0) {
+          pairConcepts.add(describedConcepts[d]);
+          pairTerms.add(termIds.get(descriptions.get(d)));
+        }
+      }
+      final int[] noTypes = new int[pairConcepts.size()];
+      final Adjacency conceptTerms = new Adjacency(n, pairConcepts.toArray(), noTypes, pairTerms.toArray());
+      final Adjacency termConcepts = new Adjacency(m, pairTerms.toArray(), noTypes, pairConcepts.toArray());
+
+      final TLongIntHashMap typeIndex = new TLongIntHashMap(100, 0.5f, -1, -1);
+      final TLongArrayList typeIds = new TLongArrayList();
+      final int e = sources.size();
+      final int[] relSources = new int[e], relTypes = new int[e], relTargets = new int[e];
+      for (int r = 0; r < e; r++) {
+        relSources[r] = Arrays.binarySearch(conceptIds, sources.get(r));
+        relTargets[r] = Arrays.binarySearch(conceptIds, targets.get(r));
+        int type = typeIndex.get(types.get(r));
+        if (type < 0) {
+          type = typeIds.size();
+          typeIds.add(types.get(r));
+          typeIndex.put(types.get(r), type);
+        }
+        relTypes[r] = type;
+      }
+      final Adjacency out = new Adjacency(n, relSources, relTypes, relTargets);
+      final Adjacency in = new Adjacency(n, relTargets, relTypes, relSources);
+
+      // IS_A parents of each concept, for the closure
+      final int isA = typeIndex.get(SNOMEDRelationshipType.IS_A.getValue());
+      final int[] parentOffsets = new int[n + 1];
+      final TIntArrayList parents = new TIntArrayList();
+      for (int i = 0; i < n; i++) {
+        for (int j = out.offsets[i]; j < out.offsets[i + 1]; j++) {
+          if (out.types[j] == isA) {
+            parents.add(out.targets[j]);
+          }
+        }
+        parentOffsets[i + 1] = parents.size();
+      }
+      final SNOMEDHierarchy.Closure closure = new SNOMEDHierarchy.Closure(n, parentOffsets, parents.toArray());
+
+      new SectionFile.Writer()
+          .add(CONCEPT_IDS, conceptIds)
+          .add(TERM_OFFSETS, termOffsets)
+          .add(TERM_BYTES, pool)
+          .add(CONCEPT_NAMES, conceptNames)
+          .add(TYPE_IDS, typeIds.toArray())
+          .add(OUT_OFFSETS, out.offsets)
+          .add(OUT_TYPES, out.types)
+          .add(OUT_TARGETS, out.targets)
+          .add(IN_OFFSETS, in.offsets)
+          .add(IN_TYPES, in.types)
+          .add(IN_TARGETS, in.targets)
+          .add(ANC_OFFSETS, closure.ancestorOffsets)
+          .add(ANC_TARGETS, closure.ancestors)
+          .add(ANC_DEPTHS, closure.ancestorDepths)
+          .add(DESC_OFFSETS, closure.descendantOffsets)
+          .add(DESC_TARGETS, closure.descendants)
+          .add(DESC_DEPTHS, closure.descendantDepths)
+          .add(TERM_CONCEPT_OFFSETS, termConcepts.offsets)
+          .add(TERM_CONCEPTS, termConcepts.targets)
+          .add(CONCEPT_TERM_OFFSETS, conceptTerms.offsets)
+          .add(CONCEPT_TERMS, conceptTerms.targets)
+          .add(TERM_HASH, termHash)
+          .add(ANC_SORTED, closure.sortedAncestors)
+          .write(path, MAGIC, VERSION);
+      LOGGER.info("Wrote SNOMED snapshot {} with {} concepts, {} terms and {} relations", path, n, m, out.targets.length);
+    }
+
+    /** CSR adjacency with each row sorted by (type, target) and duplicate edges removed */
+    private static class Adjacency {
+      final int[] offsets, types, targets;
+
+      Adjacency(int n, int[] rows, int[] relTypes, int[] relTargets) {
+        final int[] counts = new int[n + 1];
+        for (int row : rows) {
+          counts[row + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+          counts[i + 1] += counts[i];
+        }
+        final long[] edges = new long[rows.length];
+        final int[] fill = Arrays.copyOf(counts, n);
+        for (int r = 0; r < rows.length; r++) {
+          edges[fill[rows[r]]++] = ((long) relTypes[r] << 32) | relTargets[r];
+        }
+        this.offsets = new int[n + 1];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+          Arrays.sort(edges, counts[i], counts[i + 1]);
+          for (int j = counts[i]; j < counts[i + 1]; j++) {
+            if (j == counts[i] || edges[j] != edges[j - 1]) {
+              edges[size++] = edges[j];
+            }
+          }
+          offsets[i + 1] = size;
+        }
+        this.types = new int[size];
+        this.targets = new int[size];
+        for (int j = 0; j < size; j++) {
+          types[j] = (int) (edges[j] >>> 32);
+          targets[j] = (int) edges[j];
+        }
+      }
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+      final int length = Math.min(a.length, b.length);
+      for (int i = 0; i < length; i++) {
+        final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return a.length - b.length;
+    }
+  }
+}
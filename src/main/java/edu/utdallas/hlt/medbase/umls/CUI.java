@@ -0,0 +1,126 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.iterator.TIntIterator;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Encodes UMLS concept unique identifiers as ints.
+ *
+ * CUIs are always 'C' followed by seven decimal digits, so the digits alone identify a concept and
+ * the UMLS lookup paths store them in primitive collections; Strings are only created at the API
+ * edge by {@link #decode}, or lazily by {@link #asSet}.  Codes preserve the order of the CUIs they
+ * encode.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CUI {
+  private static final int DIGITS = 7;
+
+  private CUI() {}
+
+  /** @return true if the given string is a well-formed CUI */
+  public static boolean isValid(CharSequence cui) {
+    if (cui.length() != DIGITS + 1 || cui.charAt(0) != 'C') {
+      return false;
+    }
+    for (int i = 1; i <= DIGITS; i++) {
+      final char c = cui.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the code of the given CUI
+   * @throws IllegalArgumentException if it is not a well-formed CUI
+   */
+  public static int encode(CharSequence cui) {
+    if (!isValid(cui)) {
+      throw new IllegalArgumentException("Invalid CUI: " + cui);
+    }
+    int code = 0;
+    for (int i = 1; i <= DIGITS; i++) {
+      code = code * 10 + (cui.charAt(i) - '0');
+    }
+    return code;
+  }
+
+  /** @return the CUI with the given code */
+  public static String decode(int code) {
+    final char[] cui = new char[DIGITS + 1];
+    cui[0] = 'C';
+    for (int i = DIGITS; i > 0; i--) {
+      cui[i] = (char) ('0' + code % 10);
+      code /= 10;
+    }
+    return new String(cui);
+  }
+
+  /** @return the CUIs with the given codes */
+  public static Set<String> decode(TIntCollection codes) {
+    final Set<String> cuis = new HashSet<>(codes.size() * 2);
+    for (TIntIterator it = codes.iterator(); it.hasNext(); ) {
+      cuis.add(decode(it.next()));
+    }
+    return cuis;
+  }
+
+  /** @return the CUIs with the given codes */
+  public static Set<String> decode(int[] codes) {
+    final Set<String> cuis = new HashSet<>(codes.length * 2);
+    for (int code : codes) {
+      cuis.add(decode(code));
+    }
+    return cuis;
+  }
+
+  /**
+   * @param codes distinct codes, ascending; the array is shared and must not be modified afterwards
+   * @return an unmodifiable view of the CUIs with the given codes, which only decodes CUIs as they
+   * are iterated
+   */
+  public static Set<String> asSet(int[] codes) {
+    return new CodeSet(codes);
+  }
+
+  private static final class CodeSet extends AbstractSet<String> {
+    private final int[] codes;
+
+    CodeSet(int[] codes) {
+      this.codes = codes;
+    }
+
+    @Override public int size() {
+      return codes.length;
+    }
+
+    @Override public boolean contains(Object o) {
+      return o instanceof CharSequence && isValid((CharSequence) o) && Arrays.binarySearch(codes, encode((CharSequence) o)) >= 0;
+    }
+
+    @Override public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        private int next = 0;
+
+        @Override public boolean hasNext() {
+          return next < codes.length;
+        }
+
+        @Override public String next() {
+          if (next >= codes.length) {
+            throw new NoSuchElementException();
+          }
+          return decode(codes[next++]);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,326 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import edu.utdallas.hlt.medbase.io.SectionFile;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Compiled phrase-to-CUI table of a lexicon, recording the MRCONSO file and filter it was compiled
+ * from so that stale images are detected.
+ *
+ * Phrases are sorted by their UTF-8 bytes and front-coded in blocks of {@link #BLOCK} phrases: the
+ * first phrase of a block is stored whole and every other phrase as the length of the prefix it
+ * shares with its predecessor plus the remaining bytes.  A phrase id is its rank, and the CUIs of
+ * each phrase are stored as compressed sparse rows of {@link CUI} codes.  The file is a
+ * {@link SectionFile}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LexiconImage {
+  private static final Logger LOGGER = Logger.get(LexiconImage.class);
+
+  static final long MAGIC = 0x554d4c534c584943L; // "UMLSLXIC"
+
+  /** Bump whenever the section layout or its contents change */
+  static final int VERSION = 1;
+
+  /** Phrases per front-coded block */
+  static final int BLOCK = 16;
+
+  /* Section tags */
+  static final int SOURCE        = 1; // source size, modification time and CRC32 (longs), then the UTF-8 filter description
+  static final int BLOCK_OFFSETS = 2; // int[b + 1], offsets into BLOCKS
+  static final int BLOCKS        = 3; // byte[], front-coded phrases
+  static final int CUI_OFFSETS   = 4; // int[p + 1], offsets into CUIS
+  static final int CUIS          = 5; // int[e], CUI codes of each phrase, ascending
+  private static final int SECTIONS = CUIS;
+
+  final Source             source;
+  private final IntBuffer  blockOffsets;
+  private final ByteBuffer blocks;
+  private final IntBuffer  cuiOffsets, cuis;
+
+  private LexiconImage(ByteBuffer[] views) {
+    this.source = Source.read(views[SOURCE]);
+    this.blockOffsets = views[BLOCK_OFFSETS].asIntBuffer();
+    this.blocks = views[BLOCKS];
+    this.cuiOffsets = views[CUI_OFFSETS].asIntBuffer();
+    this.cuis = views[CUIS].asIntBuffer();
+  }
+
+  /**
+   * Maps the image at the given path read-only.
+   *
+   * @throws IOException if the file is missing, truncated, or was written by another version
+   */
+  public static LexiconImage open(Path path) throws IOException {
+    final LexiconImage image = new LexiconImage(SectionFile.map(path, MAGIC, VERSION, SECTIONS, "lexicon image"));
+    LOGGER.info("Mapped lexicon image {} with {} phrases", path, image.size());
+    return image;
+  }
+
+  /**
+   * Maps the image at the given path if it was compiled from the current contents of
+   * {@code mrconso} with the given filter.  If {@code mrconso} is missing, e.g. on workers that
+   * only ship the compiled files, an image compiled with the same filter is trusted.
+   *
+   * @return the image, or null if it is missing, unreadable or stale
+   */
+  public static LexiconImage openIfCurrent(Path path, Path mrconso, String filter) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    final LexiconImage image;
+    try {
+      image = open(path);
+    } catch (IOException ex) {
+      LOGGER.warn("Ignoring unreadable lexicon image {}: {}", path, ex.getMessage());
+      return null;
+    }
+    if (!image.source.filter.equals(filter)) {
+      LOGGER.info("Lexicon image {} was compiled with another filter ({})", path, image.source.filter);
+      return null;
+    }
+    if (!Files.exists(mrconso)) {
+      LOGGER.warn("Cannot verify lexicon image {} against missing {}", path, mrconso);
+      return image;
+    }
+    final Source current = image.source.current(mrconso);
+    if (current == null) {
+      LOGGER.info("Lexicon image {} was compiled from another version of {}", path, mrconso);
+      return null;
+    }
+    if (current != image.source) {
+      current.record(path, MAGIC, VERSION, SOURCE);
+    }
+    return image;
+  }
+
+  /** @return the number of phrases */
+  public int size() {
+    return cuiOffsets.limit() - 1;
+  }
+
+  /**
+   * @return a fingerprint of the source file and filter this image was compiled from, for
+   * validating structures derived from it
+   */
+  public long fingerprint() {
+    return source.checksum * 31 + source.filter.hashCode();
+  }
+
+  /** Receives each phrase of the image, in order */
+  @FunctionalInterface
+  public interface PhraseHandler {
+    void phrase(int id, String phrase);
+  }
+
+  /** Decodes every phrase, in order of their ids */
+  public void forEach(PhraseHandler handler) {
+    final ByteBuffer view = blocks.duplicate();
+    byte[] previous = new byte[0];
+    for (int id = 0, size = size(); id < size; id++) {
+      if (id % BLOCK == 0) {
+        view.position(blockOffsets.get(id / BLOCK));
+      }
+      final int shared = id % BLOCK == 0 ? 0 : readVarint(view);
+      final byte[] phrase = Arrays.copyOf(previous, shared + readVarint(view));
+      view.get(phrase, shared, phrase.length - shared);
+      handler.phrase(id, new String(phrase, StandardCharsets.UTF_8));
+      previous = phrase;
+    }
+  }
+
+  /** @return the {@link CUI} codes of the given phrase, ascending */
+  public int[] cuis(int phrase) {
+    final int start = cuiOffsets.get(phrase);
+    final int[] results = new int[cuiOffsets.get(phrase + 1) - start];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = cuis.get(start + i);
+    }
+    return results;
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      final byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /** Identifies the MRCONSO file and filter an image was compiled from */
+  static class Source {
+    final long   size, modified, checksum;
+    final String filter;
+
+    Source(long size, long modified, long checksum, String filter) {
+      this.size = size;
+      this.modified = modified;
+      this.checksum = checksum;
+      this.filter = filter;
+    }
+
+    /** Computes the CRC32 of the given file */
+    static Source of(Path path, String filter) throws IOException {
+      final long start = System.currentTimeMillis();
+      final Source source = new Source(Files.size(path), Files.getLastModifiedTime(path).toMillis(), checksum(path), filter);
+      LOGGER.debug("Checksummed {} in {}ms", path, System.currentTimeMillis() - start);
+      return source;
+    }
+
+    private static long checksum(Path path) throws IOException {
+      final CRC32 crc = new CRC32();
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        for (long position = 0, size = channel.size(); position < size; position += Integer.MAX_VALUE) {
+          crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+        }
+      }
+      return crc.getValue();
+    }
+
+    /**
+     * Checks whether the given file still has the contents this source was computed from.  Only
+     * files touched since, e.g. copied or re-extracted, are re-checksummed.
+     *
+     * @return this source if the file is unchanged, a copy with the file's new modification time if
+     * it was touched but has the same contents, or null if it changed
+     */
+    Source current(Path path) throws IOException {
+      if (!Files.exists(path) || Files.size(path) != size) {
+        return null;
+      }
+      final long touched = Files.getLastModifiedTime(path).toMillis();
+      if (touched == modified) {
+        return this;
+      }
+      return checksum(path) == checksum ? new Source(size, touched, checksum, filter) : null;
+    }
+
+    /**
+     * Overwrites the source section of the given section file with this source, so a file that was
+     * only touched is not checksummed again.  Failures, e.g. on read-only files, are only logged.
+     */
+    void record(Path file, long magic, int version, int tag) {
+      try {
+        SectionFile.rewrite(file, magic, version, tag, write());
+        LOGGER.info("Recorded new modification time of unchanged source in {}", file);
+      } catch (IOException ex) {
+        LOGGER.warn("Cannot record new modification time of unchanged source in {}: {}", file, ex.getMessage());
+      }
+    }
+
+    static Source read(ByteBuffer buffer) {
+      final ByteBuffer view = buffer.duplicate().order(buffer.order());
+      final long size = view.getLong(), modified = view.getLong(), checksum = view.getLong();
+      final byte[] filter = new byte[view.getInt()];
+      view.get(filter);
+      return new Source(size, modified, checksum, new String(filter, StandardCharsets.UTF_8));
+    }
+
+    ByteBuffer write() {
+      final byte[] filter = this.filter.getBytes(StandardCharsets.UTF_8);
+      final ByteBuffer buffer = ByteBuffer.allocate(3 * Long.BYTES + Integer.BYTES + filter.length).order(SectionFile.ORDER);
+      buffer.putLong(size).putLong(modified).putLong(checksum).putInt(filter.length).put(filter);
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  /** Accumulates (phrase, CUI) pairs and writes them as an image.  Not thread-safe. */
+  public static class Builder {
+    private final Map<String, Integer> phraseIds   = new HashMap<>();
+    private final TIntArrayList        pairPhrases = new TIntArrayList();
+    private final TIntArrayList        pairCuis    = new TIntArrayList();
+
+    /** Adds a phrase of the CUI with the given {@link CUI} code */
+    public Builder add(String phrase, int cui) {
+      Integer id = phraseIds.get(phrase);
+      if (id == null) {
+        id = phraseIds.size();
+        phraseIds.put(phrase, id);
+      }
+      pairPhrases.add(id);
+      pairCuis.add(cui);
+      return this;
+    }
+
+    /**
+     * Writes the image to {@code path}, recording {@code mrconso} and {@code filter} as its source
+     */
+    public void write(Path path, Path mrconso, String filter) throws IOException {
+      final int p = phraseIds.size();
+      final byte[][] bytes = new byte[p][];
+      for (Map.Entry<String, Integer> entry : phraseIds.entrySet()) {
+        bytes[entry.getValue()] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      }
+      final Integer[] sorted = new Integer[p];
+      for (int i = 0; i < p; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, (a, b) -> UMLSIndex.compareBytes(bytes[a], bytes[b]));
+
+      final int[] ranks = new int[p];
+      final int[] blockOffsets = new int[(p + BLOCK - 1) / BLOCK + 1];
+      final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+      byte[] previous = null;
+      for (int r = 0; r < p; r++) {
+        final byte[] phrase = bytes[sorted[r]];
+        ranks[sorted[r]] = r;
+        int shared = 0;
+        if (r % BLOCK == 0) {
+          blockOffsets[r / BLOCK] = blocks.size();
+        } else {
+          final int length = Math.min(previous.length, phrase.length);
+          while (shared < length && previous[shared] == phrase[shared]) {
+            shared++;
+          }
+          writeVarint(blocks, shared);
+        }
+        writeVarint(blocks, phrase.length - shared);
+        blocks.write(phrase, shared, phrase.length - shared);
+        previous = phrase;
+      }
+      blockOffsets[blockOffsets.length - 1] = blocks.size();
+
+      final int[] phrases = new int[pairPhrases.size()];
+      for (int i = 0; i < phrases.length; i++) {
+        phrases[i] = ranks[pairPhrases.getQuick(i)];
+      }
+      final UMLSIndex.Postings postings = new UMLSIndex.Postings(p, phrases, pairCuis.toArray());
+      new SectionFile.Writer()
+          .add(SOURCE, Source.of(mrconso, filter).write())
+          .add(BLOCK_OFFSETS, blockOffsets)
+          .add(BLOCKS, blocks.toByteArray())
+          .add(CUI_OFFSETS, postings.offsets)
+          .add(CUIS, postings.values)
+          .write(path, MAGIC, VERSION);
+      LOGGER.info("Wrote lexicon image {} with {} phrases ({} bytes) and {} mappings", path, p, blocks.size(), postings.values.length);
+    }
+  }
+}
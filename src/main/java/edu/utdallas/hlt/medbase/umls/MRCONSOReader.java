@@ -0,0 +1,195 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import edu.utdallas.hlt.medbase.io.DelimitedFileReader;
+import edu.utdallas.hltri.conf.Config;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Parses the concept names of MRCONSO.RRF in parallel, keeping only the rows that pass a
+ * {@link Filter}.
+ *
+ * The file is split into chunks by {@link DelimitedFileReader}; every accepted row of a chunk is
+ * handed to a {@link RecordHandler} as a {@link Record} together with that chunk's accumulator, and
+ * the accumulators are returned in file order.  Filters are checked against the raw bytes, so
+ * rejected rows cost no allocation.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MRCONSOReader {
+  private static final Logger log = Logger.get(MRCONSOReader.class);
+
+  /* MRCONSO columns: CUI|LAT|TS|LUI|STT|SUI|ISPREF|AUI|SAUI|SCUI|SDUI|SAB|TTY|CODE|STR|SRL|SUPPRESS|CVF| */
+  static final int CUI      = 0;
+  static final int LAT      = 1;
+  static final int TS       = 2;
+  static final int SAB      = 11;
+  static final int TTY      = 12;
+  static final int CODE     = 13;
+  static final int STR      = 14;
+  static final int SUPPRESS = 16;
+  static final int CVF      = 17;
+
+  private final Path   path;
+  private final Filter filter;
+
+  public MRCONSOReader(Path path, Filter filter) {
+    this.path = path;
+    this.filter = filter;
+  }
+
+  /** Receives each accepted row of a chunk along with that chunk's accumulator */
+  @FunctionalInterface
+  public interface RecordHandler<A> {
+    void handle(Record record, A accumulator);
+  }
+
+  /** Parses the file on the common fork-join pool */
+  public <A> List<A> read(Supplier<A> supplier, RecordHandler<A> handler) throws IOException {
+    return read(ForkJoinPool.commonPool(), supplier, handler);
+  }
+
+  /**
+   * Parses every row of the file accepted by the filter with {@code handler}.
+   *
+   * @param supplier creates one accumulator per chunk; accumulators are only touched by one thread
+   * @return the per-chunk accumulators, in file order
+   */
+  public <A> List<A> read(ForkJoinPool pool, Supplier<A> supplier, RecordHandler<A> handler) throws IOException {
+    final long start = System.currentTimeMillis();
+    log.info("Loading UMLS concept names from {} ({})...", path, filter);
+    final List<A> results = new DelimitedFileReader(path, '|', false).read(pool, supplier, (row, accumulator) -> {
+      if (row.columns() > CVF && filter.accepts(row)) {
+        handler.handle(new Record(row), accumulator);
+      }
+    });
+    log.info("Loaded UMLS concept names from {} in {}ms", path, System.currentTimeMillis() - start);
+    return results;
+  }
+
+  /**
+   * One row of MRCONSO.  Records are only valid inside {@link RecordHandler#handle} and must not be
+   * retained.
+   */
+  public static final class Record {
+    private final DelimitedFileReader.Row row;
+
+    Record(DelimitedFileReader.Row row) {
+      this.row = row;
+    }
+
+    /** @return the concept unique identifier, e.g. C0027051 */
+    public String cui() {
+      return row.getString(CUI);
+    }
+
+    /** @return the concept name */
+    public String string() {
+      return row.getString(STR);
+    }
+
+    /** @return the abbreviated source vocabulary name, e.g. SNOMEDCT_US */
+    public String source() {
+      return row.getString(SAB);
+    }
+
+    /** @return the term type in the source, e.g. PT */
+    public String termType() {
+      return row.getString(TTY);
+    }
+
+    /** @return the code of the concept in the source */
+    public String code() {
+      return row.getString(CODE);
+    }
+
+    /** @return true if the given bit of the content view flag is set */
+    public boolean inContentView(int flag) {
+      return row.length(CVF) > 0 && (row.getInt(CVF) & flag) != 0;
+    }
+  }
+
+  /**
+   * Row filter over the language (LAT), source vocabulary (SAB), term type (TTY), suppressible
+   * flag (SUPPRESS) and term status (TS) columns.  Each criterion is a set of accepted values; an
+   * empty set accepts every value.  Filters are immutable.
+   */
+  public static final class Filter {
+    private final String[] languages, sources, termTypes, suppress, termStatuses;
+
+    private Filter(String[] languages, String[] sources, String[] termTypes, String[] suppress, String[] termStatuses) {
+      this.languages = languages;
+      this.sources = sources;
+      this.termTypes = termTypes;
+      this.suppress = suppress;
+      this.termStatuses = termStatuses;
+    }
+
+    /** A filter accepting every row */
+    public static Filter all() {
+      return new Filter(new String[0], new String[0], new String[0], new String[0], new String[0]);
+    }
+
+    /**
+     * Reads a filter from the {@code languages}, {@code sources}, {@code term-types},
+     * {@code suppress} and {@code term-statuses} lists of the given configuration.
+     */
+    public static Filter fromConfig(Config conf) {
+      return new Filter(values(conf.getStringList("languages")), values(conf.getStringList("sources")),
+          values(conf.getStringList("term-types")), values(conf.getStringList("suppress")),
+          values(conf.getStringList("term-statuses")));
+    }
+
+    private static String[] values(List<String> values) {
+      return (values == null ? Collections.<String>emptyList() : values).toArray(new String[0]);
+    }
+
+    public Filter withLanguages(String... languages) {
+      return new Filter(languages, sources, termTypes, suppress, termStatuses);
+    }
+
+    public Filter withSources(String... sources) {
+      return new Filter(languages, sources, termTypes, suppress, termStatuses);
+    }
+
+    public Filter withTermTypes(String... termTypes) {
+      return new Filter(languages, sources, termTypes, suppress, termStatuses);
+    }
+
+    public Filter withSuppress(String... suppress) {
+      return new Filter(languages, sources, termTypes, suppress, termStatuses);
+    }
+
+    public Filter withTermStatuses(String... termStatuses) {
+      return new Filter(languages, sources, termTypes, suppress, termStatuses);
+    }
+
+    boolean accepts(DelimitedFileReader.Row row) {
+      return matches(row, LAT, languages) && matches(row, SAB, sources) && matches(row, TTY, termTypes)
+          && matches(row, SUPPRESS, suppress) && matches(row, TS, termStatuses);
+    }
+
+    private static boolean matches(DelimitedFileReader.Row row, int column, String[] values) {
+      if (values.length == 0) {
+        return true;
+      }
+      for (String value : values) {
+        if (row.is(column, value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override public String toString() {
+      return "LAT=" + Arrays.toString(languages) + ", SAB=" + Arrays.toString(sources) + ", TTY=" + Arrays.toString(termTypes)
+          + ", SUPPRESS=" + Arrays.toString(suppress) + ", TS=" + Arrays.toString(termStatuses);
+    }
+  }
+}
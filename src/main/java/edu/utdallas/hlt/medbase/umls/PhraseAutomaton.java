@@ -0,0 +1,371 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import edu.utdallas.hlt.medbase.io.SectionFile;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Aho-Corasick automaton finding every occurrence of a set of phrases, with their CUIs, in a single
+ * left-to-right pass over a text.
+ *
+ * States are numbered in breadth-first order, so the children of a state are a contiguous range of
+ * states, sorted by the character leading into them; a transition is a binary search over that
+ * range.  Each state has a failure link (the longest proper suffix of its path that is also a
+ * path) and an output link (the nearest state along its failure links that ends a phrase).  The
+ * automaton is written as a {@link SectionFile} and can be memory-mapped directly, so it is built
+ * once and then opened in milliseconds.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PhraseAutomaton {
+  private static final Logger LOGGER = Logger.get(PhraseAutomaton.class);
+
+  static final long MAGIC = 0x554d4c5341484f43L; // "UMLSAHOC"
+
+  /** Bump whenever the section layout or its contents change */
+  static final int VERSION = 2;
+
+  /* Section tags */
+  static final int FIRST_CHILDREN = 1; // int[n + 1], children of state s are [FIRST_CHILDREN[s], FIRST_CHILDREN[s + 1])
+  static final int LABELS         = 2; // char[n], character leading into each state
+  static final int FAILURES       = 3; // int[n], failure link of each state
+  static final int OUTPUTS        = 4; // int[n], output link of each state, or -1
+  static final int TERMINALS      = 5; // int[n], phrase ending at each state, or -1
+  static final int LENGTHS        = 6; // int[p], length of each phrase
+  static final int CUI_OFFSETS    = 7; // int[p + 1], offsets into CUIS
+  static final int CUIS           = 8; // int[e], CUI codes of each phrase, ascending
+  static final int SOURCE         = 9; // long, fingerprint of the data the automaton was built from
+  private static final int SECTIONS = SOURCE;
+
+  private static final int ROOT = 0;
+
+  private final IntBuffer  firstChildren;
+  private final CharBuffer labels;
+  private final IntBuffer  failures, outputs, terminals;
+  private final IntBuffer  lengths, cuiOffsets, cuis;
+  private final long       source;
+
+  /* Length of the longest phrase, computed on first use; racy, but every thread computes the same value */
+  private int maxLength = -1;
+
+  private PhraseAutomaton(ByteBuffer[] views) {
+    this.firstChildren = views[FIRST_CHILDREN].asIntBuffer();
+    this.labels = views[LABELS].asCharBuffer();
+    this.failures = views[FAILURES].asIntBuffer();
+    this.outputs = views[OUTPUTS].asIntBuffer();
+    this.terminals = views[TERMINALS].asIntBuffer();
+    this.lengths = views[LENGTHS].asIntBuffer();
+    this.cuiOffsets = views[CUI_OFFSETS].asIntBuffer();
+    this.cuis = views[CUIS].asIntBuffer();
+    this.source = views[SOURCE].getLong(0);
+  }
+
+  /**
+   * Maps the automaton at the given path read-only.
+   *
+   * @throws IOException if the file is missing, truncated, or was written by another version
+   */
+  public static PhraseAutomaton open(Path path) throws IOException {
+    final PhraseAutomaton automaton = new PhraseAutomaton(SectionFile.map(path, MAGIC, VERSION, SECTIONS, "phrase automaton"));
+    LOGGER.info("Mapped phrase automaton {} with {} phrases and {} states", path, automaton.phraseCount(), automaton.stateCount());
+    return automaton;
+  }
+
+  /** Receives each phrase occurrence found by {@link #match} */
+  @FunctionalInterface
+  public interface MatchHandler {
+    /**
+     * @param start  offset of the first character of the occurrence
+     * @param end    offset just past the last character of the occurrence
+     * @param phrase id of the phrase, for {@link #cuis}
+     */
+    void match(int start, int end, int phrase);
+  }
+
+  /** @return the number of phrases */
+  public int phraseCount() {
+    return lengths.limit();
+  }
+
+  /** @return the fingerprint given to {@link Builder#source}, or 0 */
+  public long source() {
+    return source;
+  }
+
+  /** @return the number of states, including the root */
+  public int stateCount() {
+    return labels.limit();
+  }
+
+  /**
+   * Reports every occurrence of every phrase in {@code text}, including overlapping and nested
+   * ones, in order of their end offsets.
+   */
+  public void match(CharSequence text, MatchHandler handler) {
+    int state = ROOT;
+    for (int i = 0; i < text.length(); i++) {
+      state = next(state, text.charAt(i));
+      for (int output = firstOutput(state); output >= 0; output = nextOutput(output)) {
+        final int phrase = phrase(output);
+        handler.match(i + 1 - length(phrase), i + 1, phrase);
+      }
+    }
+  }
+
+  /** @return the start state */
+  int root() {
+    return ROOT;
+  }
+
+  /** @return the first state ending a phrase that is a suffix of {@code state}'s path, or -1 */
+  int firstOutput(int state) {
+    return terminals.get(state) >= 0 ? state : outputs.get(state);
+  }
+
+  /** @return the next state ending a phrase after the given output state, or -1 */
+  int nextOutput(int output) {
+    return outputs.get(output);
+  }
+
+  /** @return the phrase ending at the given output state */
+  int phrase(int output) {
+    return terminals.get(output);
+  }
+
+  /** @return the length of the given phrase */
+  public int length(int phrase) {
+    return lengths.get(phrase);
+  }
+
+  /** @return the length of the longest phrase */
+  public int maxLength() {
+    int max = maxLength;
+    if (max < 0) {
+      max = 0;
+      for (int phrase = 0; phrase < lengths.limit(); phrase++) {
+        max = Math.max(max, lengths.get(phrase));
+      }
+      maxLength = max;
+    }
+    return max;
+  }
+
+  /** @return the state reached from {@code state} on {@code c}, following failure links as needed */
+  int next(int state, char c) {
+    while (true) {
+      final int child = child(state, c);
+      if (child >= 0) {
+        return child;
+      }
+      if (state == ROOT) {
+        return ROOT;
+      }
+      state = failures.get(state);
+    }
+  }
+
+  /** @return the child of {@code state} on {@code c}, or -1 */
+  private int child(int state, char c) {
+    int lo = firstChildren.get(state), hi = firstChildren.get(state + 1) - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final char label = labels.get(mid);
+      if (label < c) {
+        lo = mid + 1;
+      } else if (label > c) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the {@link CUI} codes of the given phrase, ascending */
+  public int[] cuis(int phrase) {
+    final int start = cuiOffsets.get(phrase);
+    final int[] results = new int[cuiOffsets.get(phrase + 1) - start];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = cuis.get(start + i);
+    }
+    return results;
+  }
+
+  /** Accumulates (phrase, CUI) pairs and compiles them into an automaton.  Not thread-safe. */
+  public static class Builder {
+    /** Trie edges, keyed by (state << 16 | character) */
+    private final TLongIntHashMap edges    = new TLongIntHashMap();
+    private final TIntArrayList   terminal = new TIntArrayList();
+    private final TIntArrayList   lengths  = new TIntArrayList();
+    private final TIntArrayList   pairs    = new TIntArrayList();
+    private final TIntArrayList   pairCuis = new TIntArrayList();
+    private int                   states   = 1;
+    private long                  source   = 0;
+
+    public Builder() {
+      terminal.add(-1);
+    }
+
+    /** Adds a phrase of the CUI with the given {@link CUI} code */
+    public Builder add(CharSequence phrase, int cui) {
+      if (phrase.length() == 0) {
+        throw new IllegalArgumentException("Empty phrase");
+      }
+      int state = ROOT;
+      for (int i = 0; i < phrase.length(); i++) {
+        final long key = ((long) state << 16) | phrase.charAt(i);
+        int child = edges.get(key);
+        if (child == edges.getNoEntryValue()) {
+          child = states++;
+          edges.put(key, child);
+          terminal.add(-1);
+        }
+        state = child;
+      }
+      if (terminal.getQuick(state) < 0) {
+        terminal.setQuick(state, lengths.size());
+        lengths.add(phrase.length());
+      }
+      pairs.add(terminal.getQuick(state));
+      pairCuis.add(cui);
+      return this;
+    }
+
+    /** Records a fingerprint of the data the automaton is built from, e.g. {@link LexiconImage#fingerprint} */
+    public Builder source(long source) {
+      this.source = source;
+      return this;
+    }
+
+    /** Compiles the automaton into memory */
+    public PhraseAutomaton build() {
+      final ByteBuffer[] views = new ByteBuffer[SECTIONS + 1];
+      final SectionFile.Writer writer = compile();
+      for (int tag = 1; tag <= SECTIONS; tag++) {
+        views[tag] = writer.section(tag);
+      }
+      return new PhraseAutomaton(views);
+    }
+
+    /** Compiles the automaton and writes it to the given path */
+    public void write(Path path) throws IOException {
+      compile().write(path, MAGIC, VERSION);
+      LOGGER.info("Wrote phrase automaton {} with {} phrases and {} states", path, lengths.size(), states);
+    }
+
+    private SectionFile.Writer compile() {
+      // Group trie edges by parent, sorted by character, then renumber states breadth-first
+      final long[] sorted = new long[edges.size()];
+      final int[] children = new int[states + 1];
+      int e = 0;
+      for (long key : edges.keys()) {
+        sorted[e++] = key;
+        children[(int) (key >>> 16) + 1]++;
+      }
+      Arrays.sort(sorted);
+      for (int s = 0; s < states; s++) {
+        children[s + 1] += children[s];
+      }
+      final int[] renumbered = new int[states];
+      final int[] parents = new int[states];
+      final int[] firstChildren = new int[states + 1];
+      final char[] labels = new char[states];
+      final int[] queue = new int[states];
+      int next = 1;
+      for (int head = 0; head < states; head++) {
+        final int old = queue[head], state = head;
+        renumbered[old] = state;
+        firstChildren[state] = next;
+        for (int i = children[old]; i < children[old + 1]; i++) {
+          final int child = edges.get(sorted[i]);
+          queue[next] = child;
+          parents[next] = state;
+          labels[next] = (char) sorted[i];
+          next++;
+        }
+      }
+      firstChildren[states] = next;
+
+      // Failure and output links, parents before children
+      final int[] terminals = new int[states];
+      for (int old = 0; old < states; old++) {
+        terminals[renumbered[old]] = terminal.getQuick(old);
+      }
+      final int[] failures = new int[states];
+      final int[] outputs = new int[states];
+      outputs[ROOT] = -1;
+      for (int state = 1; state < states; state++) {
+        int failure = ROOT;
+        if (parents[state] != ROOT) {
+          for (int f = failures[parents[state]]; ; f = failures[f]) {
+            final int child = child(firstChildren, labels, f, labels[state]);
+            if (child >= 0) {
+              failure = child;
+              break;
+            }
+            if (f == ROOT) {
+              break;
+            }
+          }
+        }
+        failures[state] = failure;
+        outputs[state] = terminals[failure] >= 0 ? failure : outputs[failure];
+      }
+
+      // CUIs of each phrase, ascending and distinct
+      final int p = lengths.size();
+      final int[] cuiOffsets = new int[p + 1];
+      final long[] entries = new long[pairs.size()];
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = ((long) pairs.getQuick(i) << 32) | pairCuis.getQuick(i);
+      }
+      Arrays.sort(entries);
+      final TIntArrayList cuis = new TIntArrayList(entries.length);
+      for (int i = 0; i < entries.length; i++) {
+        if (i == 0 || entries[i] != entries[i - 1]) {
+          cuis.add((int) entries[i]);
+          cuiOffsets[(int) (entries[i] >>> 32) + 1]++;
+        }
+      }
+      for (int i = 0; i < p; i++) {
+        cuiOffsets[i + 1] += cuiOffsets[i];
+      }
+
+      final ByteBuffer labelBytes = ByteBuffer.allocate(states * Character.BYTES).order(SectionFile.ORDER);
+      labelBytes.asCharBuffer().put(labels);
+      return new SectionFile.Writer()
+          .add(FIRST_CHILDREN, firstChildren)
+          .add(LABELS, labelBytes)
+          .add(FAILURES, failures)
+          .add(OUTPUTS, outputs)
+          .add(TERMINALS, terminals)
+          .add(LENGTHS, lengths.toArray())
+          .add(CUI_OFFSETS, cuiOffsets)
+          .add(CUIS, cuis.toArray())
+          .add(SOURCE, new long[]{source});
+    }
+
+    private static int child(int[] firstChildren, char[] labels, int state, char c) {
+      int lo = firstChildren[state], hi = firstChildren[state + 1] - 1;
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (labels[mid] < c) {
+          lo = mid + 1;
+        } else if (labels[mid] > c) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+  }
+}
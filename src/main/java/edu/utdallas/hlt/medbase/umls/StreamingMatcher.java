@@ -0,0 +1,117 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import com.google.common.base.CharMatcher;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Matches the '|'-delimited phrases of a {@link PhraseAutomaton} against text fed to it in chunks.
+ *
+ * Text is normalized on the fly: it is lowercased, every run of whitespace becomes a single '|',
+ * and a '|' is implied before the first and after the last character.  The automaton state is
+ * carried across chunks, so matches may span chunk boundaries, and matches are reported with the
+ * offsets of the matched words in the original text.  Only the original offsets of the last
+ * {@link PhraseAutomaton#maxLength()} normalized characters are kept, so memory is bounded by the
+ * longest phrase rather than the text.  Not thread-safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StreamingMatcher {
+  private static final char SEPARATOR = '|';
+
+  /** Characters read from a {@link Reader} at a time */
+  private static final int CHUNK = 1 << 16;
+
+  /** Receives each match, with the offsets of the matched words in the original text */
+  @FunctionalInterface
+  public interface MatchHandler {
+    void match(long start, long end, int phrase);
+  }
+
+  private final PhraseAutomaton automaton;
+  private final MatchHandler    handler;
+
+  /* Original offsets of the most recent normalized characters, indexed by position & mask */
+  private final long[] offsets;
+  private final int    mask;
+
+  private int     state;
+  private long    position; // of the next normalized character
+  private long    offset;   // of the next original character
+  private boolean separated;
+
+  public StreamingMatcher(PhraseAutomaton automaton, MatchHandler handler) {
+    this.automaton = automaton;
+    this.handler = handler;
+    this.offsets = new long[Integer.highestOneBit(Math.max(1, automaton.maxLength())) << 1];
+    this.mask = offsets.length - 1;
+    reset();
+  }
+
+  /** Starts a new text */
+  public void reset() {
+    state = automaton.root();
+    position = 0;
+    offset = 0;
+    push(SEPARATOR, -1);
+    separated = true;
+  }
+
+  /** Matches the next chunk of the text */
+  public StreamingMatcher feed(CharSequence chunk) {
+    for (int i = 0; i < chunk.length(); i++) {
+      feed(chunk.charAt(i));
+    }
+    return this;
+  }
+
+  /** Matches the next chunk of the text */
+  public StreamingMatcher feed(char[] chunk, int start, int length) {
+    for (int i = start; i < start + length; i++) {
+      feed(chunk[i]);
+    }
+    return this;
+  }
+
+  private void feed(char c) {
+    if (CharMatcher.whitespace().matches(c)) {
+      if (!separated) {
+        push(SEPARATOR, offset);
+        separated = true;
+      }
+    } else {
+      push(Character.toLowerCase(c), offset);
+      separated = false;
+    }
+    offset++;
+  }
+
+  /** Ends the text, reporting the matches at its end, and starts a new one */
+  public void finish() {
+    if (!separated) {
+      push(SEPARATOR, offset);
+    }
+    reset();
+  }
+
+  /** Matches the whole of the given text, reading it in chunks */
+  public void match(Reader reader) throws IOException {
+    final char[] chunk = new char[CHUNK];
+    for (int read; (read = reader.read(chunk)) >= 0; ) {
+      feed(chunk, 0, read);
+    }
+    finish();
+  }
+
+  private void push(char c, long original) {
+    offsets[(int) position & mask] = original;
+    position++;
+    state = automaton.next(state, c);
+    for (int output = automaton.firstOutput(state); output >= 0; output = automaton.nextOutput(output)) {
+      final int phrase = automaton.phrase(output);
+      // Phrases start and end with a separator; report the words in between
+      final long first = position - automaton.length(phrase) + 1, last = position - 1;
+      handler.match(offsets[(int) first & mask], offsets[(int) last & mask], phrase);
+    }
+  }
+}
@@ -0,0 +1,391 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.utdallas.hlt.medbase.io.SectionFile;
+import edu.utdallas.hltri.conf.Config;
+import edu.utdallas.hltri.logging.Logger;
+
+/**
+ * Read-only, memory-mapped index of the English phrases and CUIs in MRCONSO.RRF.
+ *
+ * The index is built once from MRCONSO by {@link #build} (or {@code main}) and opened with
+ * {@link #open}, so lookups are served from the page cache instead of from in-heap multimaps.
+ * Phrases (lowercased) are stored once as UTF-8 in a pool sorted by their bytes and CUIs as sorted
+ * {@link CUI} codes, and a phrase or CUI id is its rank; phrase-to-CUI and CUI-to-phrase postings
+ * are stored as compressed sparse rows over those ids.  The index records the MRCONSO file and
+ * filter it was built from, so that stale indices are detected.  The file is a {@link SectionFile}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class UMLSIndex {
+  private static final Logger LOGGER = Logger.get(UMLSIndex.class);
+
+  static final long MAGIC = 0x554d4c53494e4458L; // "UMLSINDX"
+
+  /** Bump whenever the section layout or its contents change; indices with any other version are rebuilt */
+  static final int VERSION = 3;
+
+  /* Section tags */
+  static final int PHRASE_OFFSETS     = 1; // int[p + 1], offsets into PHRASE_BYTES
+  static final int PHRASE_BYTES       = 2; // byte[], distinct UTF-8 lowercased phrases, sorted by bytes
+  static final int CUIS               = 3; // int[c], distinct CUI codes, ascending
+  static final int PHRASE_CUI_OFFSETS = 4; // int[p + 1], offsets into PHRASE_CUIS
+  static final int PHRASE_CUIS        = 5; // int[e], CUI ids of each phrase, ascending
+  static final int CUI_PHRASE_OFFSETS = 6; // int[c + 1], offsets into CUI_PHRASES
+  static final int CUI_PHRASES        = 7; // int[e], phrase ids of each CUI, ascending
+  static final int SOURCE             = 8; // MRCONSO size, modification time, CRC32 and filter, as in LexiconImage
+  private static final int SECTIONS = SOURCE;
+
+  private final LexiconImage.Source source;
+  private final Pool      phrases;
+  private final IntBuffer cuis;
+  private final IntBuffer phraseCuiOffsets, phraseCuis;
+  private final IntBuffer cuiPhraseOffsets, cuiPhrases;
+
+  private UMLSIndex(ByteBuffer[] views) {
+    this.source = LexiconImage.Source.read(views[SOURCE]);
+    this.phrases = new Pool(views[PHRASE_OFFSETS].asIntBuffer(), views[PHRASE_BYTES]);
+    this.cuis = views[CUIS].asIntBuffer();
+    this.phraseCuiOffsets = views[PHRASE_CUI_OFFSETS].asIntBuffer();
+    this.phraseCuis = views[PHRASE_CUIS].asIntBuffer();
+    this.cuiPhraseOffsets = views[CUI_PHRASE_OFFSETS].asIntBuffer();
+    this.cuiPhrases = views[CUI_PHRASES].asIntBuffer();
+  }
+
+  /**
+   * Maps the index at the given path read-only.
+   *
+   * @throws IOException if the file is missing, truncated, or was written by another version
+   */
+  public static UMLSIndex open(Path path) throws IOException {
+    final UMLSIndex index = new UMLSIndex(SectionFile.map(path, MAGIC, VERSION, SECTIONS, "UMLS index"));
+    LOGGER.info("Mapped UMLS index {} with {} phrases and {} CUIs", path, index.phraseCount(), index.cuiCount());
+    return index;
+  }
+
+  /**
+   * Maps the index at the given path if it was built from the current contents of {@code mrconso}
+   * with the given filter.  If {@code mrconso} is missing, indices built with the same filter are
+   * trusted, so deployments may ship the index alone.
+   *
+   * @return the index, or null if it is missing, unreadable or stale
+   */
+  public static UMLSIndex openIfCurrent(Path path, Path mrconso, String filter) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    final UMLSIndex index;
+    try {
+      index = open(path);
+    } catch (IOException ex) {
+      LOGGER.warn("Ignoring unreadable UMLS index {}: {}", path, ex.getMessage());
+      return null;
+    }
+    if (!index.source.filter.equals(filter)) {
+      LOGGER.info("UMLS index {} was built with another filter ({})", path, index.source.filter);
+      return null;
+    }
+    if (!Files.exists(mrconso)) {
+      LOGGER.warn("Cannot verify UMLS index {} against missing {}", path, mrconso);
+    } else {
+      final LexiconImage.Source current = index.source.current(mrconso);
+      if (current == null) {
+        LOGGER.info("UMLS index {} was built from another version of {}", path, mrconso);
+        return null;
+      }
+      if (current != index.source) {
+        current.record(path, MAGIC, VERSION, SOURCE);
+      }
+    }
+    return index;
+  }
+
+  /** Builds the index of the English rows of {@code mrconso} at {@code path} */
+  public static void build(Path mrconso, Path path) throws IOException {
+    build(mrconso, MRCONSOReader.Filter.all().withLanguages("ENG"), path);
+  }
+
+  /** Builds the index of the rows of {@code mrconso} accepted by {@code filter} at {@code path} */
+  public static void build(Path mrconso, MRCONSOReader.Filter filter, Path path) throws IOException {
+    final long start = System.currentTimeMillis();
+    LOGGER.info("Building UMLS index from {}...", mrconso);
+    final Builder builder = new Builder();
+    for (Rows chunk : new MRCONSOReader(mrconso, filter).read(Rows::new, (record, rows) -> {
+      rows.cuis.add(CUI.encode(record.cui()));
+      rows.phrases.add(record.string().toLowerCase());
+    })) {
+      for (int i = 0; i < chunk.cuis.size(); i++) {
+        builder.add(chunk.cuis.getQuick(i), chunk.phrases.get(i));
+      }
+    }
+    builder.write(path, mrconso, filter.toString());
+    LOGGER.info("Built UMLS index {} in {}ms", path, System.currentTimeMillis() - start);
+  }
+
+  /** (CUI, phrase) rows parsed from one chunk of MRCONSO */
+  private static class Rows {
+    final TIntArrayList cuis    = new TIntArrayList();
+    final List<String>  phrases = new ArrayList<>();
+  }
+
+  /** Builds the index of MRCONSO at args[0] at args[1], filtered by {@code medbase.umls.mrconso} */
+  public static void main(String... args) throws IOException {
+    build(Paths.get(args[0]), MRCONSOReader.Filter.fromConfig(Config.load("medbase.umls.mrconso")), Paths.get(args[1]));
+  }
+
+  /** @return the number of distinct phrases */
+  public int phraseCount() {
+    return phrases.size();
+  }
+
+  /** @return the number of distinct CUIs */
+  public int cuiCount() {
+    return cuis.limit();
+  }
+
+  /** @return an unmodifiable view of the CUIs of all concepts with the given (lowercased) phrase */
+  public Set<String> getIds(String phrase) {
+    return CUI.asSet(getCuis(phrase));
+  }
+
+  /** @return the {@link CUI} codes of all concepts with the given (lowercased) phrase, ascending */
+  public int[] getCuis(String phrase) {
+    final int id = phrases.find(phrase);
+    if (id < 0) {
+      return new int[0];
+    }
+    final int start = phraseCuiOffsets.get(id);
+    final int[] results = new int[phraseCuiOffsets.get(id + 1) - start];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = cuis.get(phraseCuis.get(start + i));
+    }
+    return results;
+  }
+
+  /** @return the (lowercased) phrases of the given CUI */
+  public Set<String> getPhrases(String cui) {
+    return CUI.isValid(cui) ? getPhrases(CUI.encode(cui)) : new HashSet<>();
+  }
+
+  /** @return the (lowercased) phrases of the CUI with the given {@link CUI} code */
+  public Set<String> getPhrases(int cui) {
+    final int id = findCui(cui);
+    final Set<String> results = new HashSet<>();
+    if (id >= 0) {
+      for (int i = cuiPhraseOffsets.get(id), end = cuiPhraseOffsets.get(id + 1); i < end; i++) {
+        results.add(phrases.get(cuiPhrases.get(i)));
+      }
+    }
+    return results;
+  }
+
+  /** @return the id of the CUI with the given code, or -1 if it is not indexed */
+  private int findCui(int code) {
+    int lo = 0, hi = cuis.limit() - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int value = cuis.get(mid);
+      if (value < code) {
+        lo = mid + 1;
+      } else if (value > code) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** Distinct strings stored as UTF-8 in one buffer, sorted by their bytes */
+  private static class Pool {
+    private final IntBuffer  offsets;
+    private final ByteBuffer bytes;
+
+    Pool(IntBuffer offsets, ByteBuffer bytes) {
+      this.offsets = offsets;
+      this.bytes = bytes;
+    }
+
+    int size() {
+      return offsets.limit() - 1;
+    }
+
+    String get(int id) {
+      final int start = offsets.get(id);
+      final byte[] value = new byte[offsets.get(id + 1) - start];
+      final ByteBuffer view = bytes.duplicate();
+      view.position(start);
+      view.get(value);
+      return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /** @return the id of the given string, or -1 if it is not in the pool */
+    int find(String value) {
+      final byte[] key = value.getBytes(StandardCharsets.UTF_8);
+      int lo = 0, hi = size() - 1;
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        final int cmp = compare(mid, key);
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else if (cmp > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    private int compare(int id, byte[] key) {
+      final int start = offsets.get(id), end = offsets.get(id + 1);
+      final int length = Math.min(end - start, key.length);
+      for (int i = 0; i < length; i++) {
+        final int cmp = (bytes.get(start + i) & 0xff) - (key[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return (end - start) - key.length;
+    }
+  }
+
+  /** Accumulates (CUI, phrase) pairs and writes them as an index.  Not thread-safe. */
+  public static class Builder {
+    private final Map<String, Integer> phraseIds   = new HashMap<>();
+    private final TIntArrayList        pairPhrases = new TIntArrayList();
+    private final TIntArrayList        pairCuis    = new TIntArrayList();
+
+    public void add(String cui, String phrase) {
+      add(CUI.encode(cui), phrase);
+    }
+
+    /** Adds a phrase of the CUI with the given {@link CUI} code */
+    public void add(int cui, String phrase) {
+      pairCuis.add(cui);
+      pairPhrases.add(intern(phraseIds, phrase));
+    }
+
+    private static int intern(Map<String, Integer> ids, String value) {
+      Integer id = ids.get(value);
+      if (id == null) {
+        id = ids.size();
+        ids.put(value, id);
+      }
+      return id;
+    }
+
+    /**
+     * Writes the index to {@code path}, recording {@code mrconso} and {@code filter} as its source
+     */
+    public void write(Path path, Path mrconso, String filter) throws IOException {
+      final SectionFile.Writer writer = new SectionFile.Writer();
+      // Re-number phrases by their rank in byte order and CUIs by the rank of their code
+      final int[] phraseRanks = pool(phraseIds, writer, PHRASE_OFFSETS, PHRASE_BYTES);
+      final int[] codes = new TIntHashSet(pairCuis).toArray();
+      Arrays.sort(codes);
+      final int e = pairPhrases.size();
+      final int[] phrases = new int[e], cuis = new int[e];
+      for (int i = 0; i < e; i++) {
+        phrases[i] = phraseRanks[pairPhrases.getQuick(i)];
+        cuis[i] = Arrays.binarySearch(codes, pairCuis.getQuick(i));
+      }
+      final Postings phraseCuis = new Postings(phraseRanks.length, phrases, cuis);
+      final Postings cuiPhrases = new Postings(codes.length, cuis, phrases);
+      writer.add(CUIS, codes)
+            .add(PHRASE_CUI_OFFSETS, phraseCuis.offsets)
+            .add(PHRASE_CUIS, phraseCuis.values)
+            .add(CUI_PHRASE_OFFSETS, cuiPhrases.offsets)
+            .add(CUI_PHRASES, cuiPhrases.values)
+            .add(SOURCE, LexiconImage.Source.of(mrconso, filter).write())
+            .write(path, MAGIC, VERSION);
+      LOGGER.info("Wrote UMLS index {} with {} phrases, {} CUIs and {} mappings", path, phraseRanks.length, codes.length, phraseCuis.values.length);
+    }
+
+    /** Adds the given strings as a sorted pool; @return the rank of each string, by insertion id */
+    private static int[] pool(Map<String, Integer> ids, SectionFile.Writer writer, int offsetsTag, int bytesTag) {
+      final byte[][] bytes = new byte[ids.size()][];
+      for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+        bytes[entry.getValue()] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      }
+      final Integer[] sorted = new Integer[bytes.length];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, (a, b) -> compareBytes(bytes[a], bytes[b]));
+      final int[] ranks = new int[bytes.length];
+      final int[] offsets = new int[bytes.length + 1];
+      for (int r = 0; r < sorted.length; r++) {
+        ranks[sorted[r]] = r;
+        offsets[r + 1] = offsets[r] + bytes[sorted[r]].length;
+      }
+      final ByteBuffer pool = ByteBuffer.allocate(offsets[bytes.length]);
+      for (Integer id : sorted) {
+        pool.put(bytes[id]);
+      }
+      pool.flip();
+      writer.add(offsetsTag, offsets).add(bytesTag, pool);
+      return ranks;
+    }
+  }
+
+  /** Compares byte strings as unsigned bytes, i.e. UTF-8 strings by code point */
+  static int compareBytes(byte[] a, byte[] b) {
+    final int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /** CSR postings with each row sorted ascending and duplicates removed */
+  static class Postings {
+    final int[] offsets, values;
+
+    Postings(int n, int[] rows, int[] columns) {
+      final int[] counts = new int[n + 1];
+      for (int row : rows) {
+        counts[row + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        counts[i + 1] += counts[i];
+      }
+      final int[] sorted = new int[rows.length];
+      final int[] fill = Arrays.copyOf(counts, n);
+      for (int i = 0; i < rows.length; i++) {
+        sorted[fill[rows[i]]++] = columns[i];
+      }
+      this.offsets = new int[n + 1];
+      int size = 0;
+      for (int i = 0; i < n; i++) {
+        Arrays.sort(sorted, counts[i], counts[i + 1]);
+        for (int j = counts[i]; j < counts[i + 1]; j++) {
+          if (j == counts[i] || sorted[j] != sorted[j - 1]) {
+            sorted[size++] = sorted[j];
+          }
+        }
+        offsets[i + 1] = size;
+      }
+      this.values = Arrays.copyOf(sorted, size);
+    }
+  }
+}
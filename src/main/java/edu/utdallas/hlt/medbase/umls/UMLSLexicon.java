@@ -2,17 +2,22 @@ package edu.utdallas.hlt.medbase.umls;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Sets;
 
-import com.googlecode.concurrenttrees.common.KeyValuePair;
-import com.googlecode.concurrenttrees.radix.node.concrete.SmartArrayBasedNodeFactory;
-import com.googlecode.concurrenttrees.radixinverted.ConcurrentInvertedRadixTree;
-import com.googlecode.concurrenttrees.radixinverted.InvertedRadixTree;
+import gnu.trove.list.array.TIntArrayList;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import edu.utdallas.hltri.conf.Config;
 import edu.utdallas.hltri.logging.Logger;
@@ -29,103 +34,237 @@ import edu.utdallas.hltri.scribe.text.annotation.Chunk;
  */
 @SuppressWarnings("unused")
 public class UMLSLexicon implements Annotator<BaseDocument> {
-  private final Logger                         log     = Logger.get(UMLSLexicon.class);
-  private final InvertedRadixTree<Set<String>> lexicon = new ConcurrentInvertedRadixTree<>(new SmartArrayBasedNodeFactory());
+  private static final Logger log = Logger.get(UMLSLexicon.class);
 
+  private final PhraseAutomaton lexicon;
+
+  /** Content view flag of the concept names kept in the lexicon */
+  private static final int CONTENT_VIEW = 512;
 
   private UMLSLexicon() {
-    final String umlsPath = Config.load("medbase.umls").getString("path");
-    log.info("Loading UMLS data from {}...", umlsPath);
-    final StringBuilder sb = new StringBuilder();
-    int field;
-    boolean english;
-    try (final BufferedReader reader = new BufferedReader(new FileReader(umlsPath))) {
-      for (String line, phrase = null, id = null; (line = reader.readLine()) != null; ) {
-        sb.setLength(0);
-        english = true;
-        field = 0;
-        char c;
-        for (int i = 0; i < line.length(); i++) {
-          c = line.charAt(i);
-          if ('|' == c) {
-            if (field == 0) {
-              id = sb.toString();
-//              log.info("Got ID |{}| from line {}", id, line);
-            } else if (field == 14) {
-              phrase = '|' + sb.toString() + '|';
-//              log.info("Got phrase |{}| from line {}", phrase, line);
-            } else if (field == 1 && !"ENG".equals(sb.toString())) {
-//              log.info("Got lang |{}| from line {}", sb.toString(), line);
-              english = false;
-              break;
-            } else if (field == 16 && !"N".equals(sb.toString())) {
-//              log.info("Got status |{}| from line {}", sb.toString(), line);
-              english = false;
-              break;
-            } else if (field == 17) {
-              boolean match = sb.length() > 0 && (Integer.valueOf(sb.toString()) & 512) != 0;
-              if (!match) {
-                english = false;
-                break;
-              }
-            }
-            sb.setLength(0);
-            field++;
-          } else {
-            if (field == 0 || field == 1 || field == 16 || field == 17) {
-              sb.append(c);
-            } else if (field == 14) {
-              if (CharMatcher.WHITESPACE.matches(c)) {
-                sb.append('|');
-              } else {
-                if (Character.isUpperCase(line.charAt(i + 1))) {
-                  english = false;
-                  break;
-                } else {
-                  sb.append(Character.toLowerCase(c));
-                }
-              }
-            }
-          }
-        }
+    this(loadConfigured());
+  }
 
-        if (!english) {
-          continue;
-        }
+  /** Matches the phrases of the given automaton rather than the configured one */
+  UMLSLexicon(PhraseAutomaton lexicon) {
+    this.lexicon = lexicon;
+    this.threadBuffers = ThreadLocal.withInitial(() -> new Buffers(lexicon));
+  }
 
-        log.trace("Mapped {} to {}", phrase, id);
-        final Set<String> previous = lexicon.putIfAbsent(phrase, Sets.newHashSet(id));
-        if (previous != null) {
-          previous.add(id);
-        }
-      }
-      log.info("Loaded {} mappings for {} CUIs", lexicon.size());
+  private static PhraseAutomaton loadConfigured() {
+    try {
+      return load(Config.load("medbase.umls"));
     } catch (IOException ex) {
       throw Throwables.propagate(ex);
     }
   }
 
+  /**
+   * Compiles the lexicon image and automaton configured in {@code medbase.umls}, unless they are
+   * already up to date, so that workers can start without touching MRCONSO.
+   */
+  public static void main(String... args) throws IOException {
+    load(Config.load("medbase.umls"));
+  }
+
+  private static PhraseAutomaton load(Config conf) throws IOException {
+    return load(Paths.get(conf.getString("path")), Paths.get(conf.getString("lexicon-image-path")),
+        Paths.get(conf.getString("lexicon-path")));
+  }
+
+  /**
+   * Maps the lexicon automaton at {@code automatonPath}.  The automaton is rebuilt from the image at
+   * {@code imagePath} if it was built from another image, and the image is recompiled from
+   * {@code mrconso} if that or the configured filter changed since it was compiled.
+   */
+  private static PhraseAutomaton load(Path mrconso, Path imagePath, Path automatonPath) throws IOException {
+    final MRCONSOReader.Filter filter = MRCONSOReader.Filter.fromConfig(Config.load("medbase.umls.mrconso")).withSuppress("N");
+    // Everything besides MRCONSO itself that determines the contents of the lexicon
+    final String description = filter + ", CVF & " + CONTENT_VIEW + ", no capitals inside words";
+    LexiconImage image = LexiconImage.openIfCurrent(imagePath, mrconso, description);
+    if (image == null) {
+      compile(mrconso, filter).write(imagePath, mrconso, description);
+      image = LexiconImage.open(imagePath);
+    }
+
+    if (Files.exists(automatonPath)) {
+      try {
+        final PhraseAutomaton automaton = PhraseAutomaton.open(automatonPath);
+        if (automaton.source() == image.fingerprint()) {
+          return automaton;
+        }
+        log.info("Rebuilding UMLS lexicon {} from updated image {}", automatonPath, imagePath);
+      } catch (IOException ex) {
+        log.warn("Rebuilding unreadable UMLS lexicon {}: {}", automatonPath, ex.getMessage());
+      }
+    }
+    final long start = System.currentTimeMillis();
+    final LexiconImage source = image;
+    final PhraseAutomaton.Builder builder = new PhraseAutomaton.Builder().source(source.fingerprint());
+    source.forEach((id, phrase) -> {
+      for (int cui : source.cuis(id)) {
+        builder.add(phrase, cui);
+      }
+    });
+    builder.write(automatonPath);
+    log.info("Built UMLS lexicon {} from {} in {}ms", automatonPath, imagePath, System.currentTimeMillis() - start);
+    return PhraseAutomaton.open(automatonPath);
+  }
+
+  /** Parses the phrases of the lexicon from MRCONSO */
+  private static LexiconImage.Builder compile(Path mrconso, MRCONSOReader.Filter filter) throws IOException {
+    final MRCONSOReader reader = new MRCONSOReader(mrconso, filter);
+    final LexiconImage.Builder builder = new LexiconImage.Builder();
+    int count = 0;
+    for (Entries chunk : reader.read(Entries::new, UMLSLexicon::parse)) {
+      for (int i = 0; i < chunk.phrases.size(); i++) {
+        log.trace("Mapped {} to {}", chunk.phrases.get(i), chunk.cuis.getQuick(i));
+        builder.add(chunk.phrases.get(i), chunk.cuis.getQuick(i));
+      }
+      count += chunk.phrases.size();
+    }
+    log.info("Loaded {} mappings", count);
+    return builder;
+  }
+
+  /** '|'-delimited phrases and their CUI codes parsed from one chunk of MRCONSO */
+  private static class Entries {
+    final List<String>  phrases = new ArrayList<>();
+    final TIntArrayList cuis    = new TIntArrayList();
+  }
+
+  /**
+   * Adds the name of the given record as a lowercased, '|'-delimited phrase, unless it has an
+   * uppercase letter inside a word (i.e., it is an acronym or otherwise case-sensitive)
+   */
+  private static void parse(MRCONSOReader.Record record, Entries entries) {
+    if (!record.inContentView(CONTENT_VIEW)) {
+      return;
+    }
+    final String string = record.string();
+    final StringBuilder sb = new StringBuilder(string.length() + 2).append('|');
+    for (int i = 0; i < string.length(); i++) {
+      final char c = string.charAt(i);
+      if (CharMatcher.whitespace().matches(c)) {
+        sb.append('|');
+      } else if (i + 1 < string.length() && Character.isUpperCase(string.charAt(i + 1))) {
+        return;
+      } else {
+        sb.append(Character.toLowerCase(c));
+      }
+    }
+    entries.phrases.add(sb.append('|').toString());
+    entries.cuis.add(CUI.encode(record.cui()));
+  }
+
   @SuppressWarnings("WeakerAccess")
   public static Attribute<Chunk, Set<String>> cuis = Attribute.inferred("cuis");
 
+  /**
+   * Per-thread matcher and scratch space, so annotating a document allocates only the annotations
+   * themselves
+   */
+  static class Buffers {
+    final TIntArrayList    starts  = new TIntArrayList();
+    final TIntArrayList    ends    = new TIntArrayList();
+    final TIntArrayList    phrases = new TIntArrayList();
+    final StreamingMatcher matcher;
+
+    Buffers(PhraseAutomaton lexicon) {
+      this.matcher = new StreamingMatcher(lexicon, (start, end, phrase) -> {
+        starts.add((int) start);
+        ends.add((int) end);
+        phrases.add(phrase);
+      });
+    }
+  }
+
+  private final ThreadLocal<Buffers> threadBuffers;
+
+  /**
+   * Finds the mentions in the given text with the calling thread's matcher; the buffers are reused
+   * by the next call on the same thread
+   */
+  Buffers find(CharSequence text) {
+    final Buffers buffers = threadBuffers.get();
+    buffers.starts.resetQuick();
+    buffers.ends.resetQuick();
+    buffers.phrases.resetQuick();
+    buffers.matcher.feed(text).finish();
+    return buffers;
+  }
+
+  /**
+   * Annotates the given documents on the configured number of threads
+   * ({@code medbase.umls.annotation-threads}); see {@link #annotateAll(Stream, int)}.
+   */
+  public <B extends BaseDocument> void annotateAll(Stream<Document<B>> documents) {
+    annotateAll(documents, Config.load("medbase.umls").getInt("annotation-threads"));
+  }
+
+  /**
+   * Annotates the given documents on a dedicated pool of {@code threads} workers (or one per core,
+   * if {@code threads} is not positive), and logs the throughput.  Each document is annotated by a
+   * single worker, so documents need not be thread-safe, but must be distinct.
+   */
+  public <B extends BaseDocument> void annotateAll(Stream<Document<B>> documents, int threads) {
+    final long start = System.currentTimeMillis();
+    final LongAdder docs = new LongAdder(), chars = new LongAdder();
+    forEach(documents, new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors()), document -> {
+      annotate(document);
+      docs.increment();
+      chars.add(document.length());
+    });
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    log.info("Annotated {} documents ({} chars) in {}ms ({} docs/s, {} chars/s)", docs.sum(), chars.sum(), elapsed,
+        docs.sum() * 1000L / elapsed, chars.sum() * 1000L / elapsed);
+  }
+
+  /** Runs {@code action} on every item on the given pool, then shuts the pool down */
+  static <T> void forEach(Stream<T> items, ForkJoinPool pool, Consumer<? super T> action) {
+    try {
+      pool.submit(() -> items.parallel().forEach(action)).join();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Annotates the mentions found in the document.  Scribe only creates annotations one at a time
+   * (checking each for duplicates), so all matching is done first and the annotations are then
+   * created in one pass.
+   */
   @Override public <B extends BaseDocument> void annotate(Document<B> document) {
-    final String text = '|' + CharMatcher.WHITESPACE.replaceFrom(document, '|') + '|';
-    for (KeyValuePair<Set<String>> hit : lexicon.getKeyValuePairsForKeysContainedIn(text)) {
-      final String word = hit.getKey().toString();
-      for (int index = text.indexOf(word); index >= 0; index = text.indexOf(word, index + 1)) {
-        try {
-          final Chunk umlsConcept = Chunk.TYPE.create(document, "umls", index , index + word.length() - 2);
-          umlsConcept.set(cuis, hit.getValue());
-          log.info("Annotated {}", umlsConcept.describe());
-        } catch (DuplicateAnnotationException ex) {
-          final Chunk umlsConcept = Chunk.TYPE.wrap(document, ex.old);
-          umlsConcept.get(cuis).addAll(hit.getValue());
-          log.info("Updated {}", umlsConcept.describe());
-        }
+    final Buffers buffers = find(document);
+    for (int i = 0; i < buffers.phrases.size(); i++) {
+      final Set<String> ids = CUI.decode(lexicon.cuis(buffers.phrases.getQuick(i)));
+      try {
+        final Chunk umlsConcept = Chunk.TYPE.create(document, "umls", buffers.starts.getQuick(i), buffers.ends.getQuick(i));
+        umlsConcept.set(cuis, ids);
+        log.trace("Annotated {}", umlsConcept.describe());
+      } catch (DuplicateAnnotationException ex) {
+        final Chunk umlsConcept = Chunk.TYPE.wrap(document, ex.old);
+        umlsConcept.get(cuis).addAll(ids);
+        log.trace("Updated {}", umlsConcept.describe());
       }
     }
   }
 
+  /** Receives each concept mention found by {@link #match(Reader, MentionHandler)} */
+  @FunctionalInterface
+  public interface MentionHandler {
+    void mention(long start, long end, Set<String> cuis);
+  }
+
+  /**
+   * Finds the concept mentions in the given text, reading it in chunks so that arbitrarily large
+   * inputs are matched in bounded memory.  Offsets are relative to the start of the text.
+   */
+  public void match(Reader reader, MentionHandler handler) throws IOException {
+    new StreamingMatcher(lexicon, (start, end, phrase) -> handler.mention(start, end, CUI.decode(lexicon.cuis(phrase))))
+        .match(reader);
+  }
+
   private static class LazyUMLSLoader {
     private static final UMLSLexicon INSTANCE = new UMLSLexicon();
   }
@@ -135,12 +274,14 @@ public class UMLSLexicon implements Annotator<BaseDocument> {
   }
 
   /**
-   * Returns a lazy iterable which returns the set of keys in the tree which are contained in the given document.
+   * Returns the set of phrases in the lexicon which are contained in the given document.
    *
-   * @param document A document to be scanned for keys contained in the tree
-   * @return The set of keys in the tree which are contained in the given document
+   * @param document A document to be scanned for phrases in the lexicon
+   * @return The set of phrases in the lexicon which are contained in the given document, in order of their first occurrence
    */
   public Iterable<CharSequence> findMatches(CharSequence document) {
-    return lexicon.getKeysContainedIn(document);
+    final Set<CharSequence> matches = new LinkedHashSet<>();
+    lexicon.match(document, (start, end, phrase) -> matches.add(document.subSequence(start, end).toString()));
+    return matches;
   }
 }
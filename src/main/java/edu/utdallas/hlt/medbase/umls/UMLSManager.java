@@ -1,182 +1,350 @@
 package edu.utdallas.hlt.medbase.umls;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.utdallas.hlt.medbase.io.RecordLog;
 import edu.utdallas.hltri.conf.Config;
 import edu.utdallas.hltri.util.AbstractExpander;
 import edu.utdallas.hltri.util.Expansion;
 import edu.utdallas.hltri.logging.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Maps phrases to UMLS CUIs and back.
+ *
+ * Lookups are served from the memory-mapped {@link UMLSIndex} through two bounded caches (one per
+ * direction) that are safe for concurrent use: each miss only blocks lookups of the same key.
+ * The index is opened (or built) and the persistent cache log replayed once, on first use; the
+ * log is discarded whenever the index is rebuilt, since its lookups may then be stale.  Misses
+ * are appended to the log, and the log compacted, by a background writer, so lookups never wait
+ * on disk.
  *
  * @author travis
  */
 public class UMLSManager extends AbstractExpander<CharSequence, String> implements Closeable {
   private static final Logger LOGGER = Logger.get(UMLSManager.class);
 
-  private SetMultimap<String, String> PHRASE_TO_IDS       = null;
-  private SetMultimap<String, String> ID_TO_PHRASES       = null;
-  private SetMultimap<String, String> CACHE_PHRASE_TO_IDS = HashMultimap.create();
-  private SetMultimap<String, String> CACHE_ID_TO_PHRASES = HashMultimap.create();
-  private HashSet<String>             CACHE_PHRASES       = new HashSet<>();
-  private HashSet<String>             CACHE_IDS           = new HashSet<>();
+  /* Cache log records: (kind, key, value count, values), with CUIs as CUI codes */
+  private static final long CACHE_MAGIC    = 0x554d4c5343414348L; // "UMLSCACH"
+  private static final int  CACHE_VERSION  = 2;
+  private static final byte PHRASE_TO_IDS  = 0;
+  private static final byte ID_TO_PHRASES  = 1;
+
+  /**
+   * The cache log is compacted once it has grown this many times over since it was last compacted,
+   * by at least COMPACTION_MIN_RECORDS appended records
+   */
+  private static final int COMPACTION_RATIO       = 2;
+  private static final int COMPACTION_MIN_RECORDS = 10_000;
+
+  /** Seconds close waits for the writer to persist pending misses */
+  private static final int CLOSE_TIMEOUT_SECONDS = 60;
+
+  private final Supplier<UMLSIndex>         INDEX;
+  private final Supplier<RecordLog>         CACHE_LOG;
+  private final Cache<String, int[]>        CACHE_PHRASE_TO_IDS;
+  private final Cache<Integer, Set<String>> CACHE_ID_TO_PHRASES;
+
+  /** Appends misses to the cache log and compacts it, in order */
+  private final ExecutorService writer;
 
-  private final String umlsPath, cachePath;
+  /** Set once the cache log has been replayed, and cleared when it is closed */
+  private volatile boolean cacheLoaded = false;
+
+  /** Set if the index had to be (re)built when it was opened */
+  private volatile boolean indexRebuilt = false;
+
+  private final String umlsPath, cachePath, indexPath;
 
   private final static Config conf = Config.load("medbase.umls");
 
   public UMLSManager() {
-    this(conf.getString("path"), conf.getString("cache-path"));
+    this(conf.getString("path"), conf.getString("cache-path"), conf.getString("index-path"));
   }
 
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+  @SuppressWarnings("WeakerAccess")
+  public UMLSManager(String umlsPath, String cachePath) {
+    this(umlsPath, cachePath, conf.getString("index-path"));
+  }
 
-  private final Lock read  = readWriteLock.readLock();
-  private final Lock write = readWriteLock.writeLock();
+  /**
+   * @param umlsPath  path to MRCONSO.RRF, which the index at {@code indexPath} is checked against and
+   *                  (re)built from if stale
+   * @param indexPath path to the {@link UMLSIndex} serving lookups
+   */
+  @SuppressWarnings("WeakerAccess")
+  public UMLSManager(String umlsPath, String cachePath, String indexPath) {
+    this(umlsPath, cachePath, indexPath, conf.getLong("cache-size"));
+  }
 
-  @SuppressWarnings({"unchecked", "WeakerAccess"})
-  public UMLSManager(String umlsPath, String cachePath) {
+  /**
+   * @param cacheSize maximum number of phrases, and of CUIs, kept in memory; the least valuable
+   *                  entries are evicted beyond that
+   */
+  @SuppressWarnings("WeakerAccess")
+  public UMLSManager(String umlsPath, String cachePath, String indexPath, long cacheSize) {
     super("UMLS");
     this.umlsPath = umlsPath;
     this.cachePath = cachePath;
+    this.indexPath = indexPath;
+    this.INDEX = Suppliers.memoize(this::openIndex);
+    this.CACHE_LOG = Suppliers.memoize(this::openCacheLog);
+    this.CACHE_PHRASE_TO_IDS = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+    this.CACHE_ID_TO_PHRASES = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+    this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("umls-cache-writer").build());
+  }
+
+  /**
+   * Maps the UMLS index, building it from MRCONSO first if it is missing, unreadable, or was built
+   * from another version of MRCONSO or with another filter
+   */
+  private UMLSIndex openIndex() {
+    final Path path = Paths.get(indexPath), mrconso = Paths.get(umlsPath);
+    final MRCONSOReader.Filter filter = MRCONSOReader.Filter.fromConfig(Config.load("medbase.umls.mrconso"));
     try {
-      LOGGER.debug("Loading UMLS cache from {}.", this.cachePath);
-      try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cachePath)))) {
-        CACHE_PHRASE_TO_IDS = (SetMultimap<String, String>) in.readObject();
-        CACHE_ID_TO_PHRASES = (SetMultimap<String, String>) in.readObject();
-        CACHE_PHRASES = (HashSet<String>) in.readObject();
-        CACHE_IDS = (HashSet<String>) in.readObject();
+      final UMLSIndex index = UMLSIndex.openIfCurrent(path, mrconso, filter.toString());
+      if (index != null) {
+        return index;
       }
-    } catch (ClassNotFoundException | IOException ex) {
-      LOGGER.warn("Failed to load cached data: {}");
+      UMLSIndex.build(mrconso, filter, path);
+      indexRebuilt = true;
+      return UMLSIndex.open(path);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
     }
   }
 
-  private synchronized void loadUMLSData() {
-    write.lock();
+  /**
+   * Replays the cache log into the in-memory caches; misses are then appended to the log as they
+   * happen, so the cache survives crashes without being rewritten on every change.
+   */
+  private RecordLog openCacheLog() {
     try {
-      PHRASE_TO_IDS = HashMultimap.create();
-      ID_TO_PHRASES = HashMultimap.create();
-      LOGGER.info("Loading UMLS data from {}...", umlsPath);
-      try (BufferedReader reader = new BufferedReader(new FileReader(umlsPath))) {
-        //noinspection UnusedAssignment
-        String line, phrase = "", id = "";
-        Splitter splitter = Splitter.on('|');
-        List<String> fields;
-        while ((line = reader.readLine()) != null) {
-          fields = splitter.splitToList(line);
-          id = fields.get(0).intern();
-          phrase = fields.get(14).toLowerCase();
-
-          if ("ENG".equals(fields.get(1))) {
-            PHRASE_TO_IDS.put(phrase, id);
-            ID_TO_PHRASES.put(id, phrase);
-          }
-        }
-        LOGGER.info("Loaded {} mappings for {} CUIs", PHRASE_TO_IDS.size(), ID_TO_PHRASES.size());
-      } catch (IOException ex) {
-        LOGGER.error("IOException", ex);
+      // Mapping the index is cheap unless it must be rebuilt, which invalidates the cache log
+      INDEX.get();
+      if (indexRebuilt && Files.deleteIfExists(Paths.get(cachePath))) {
+        LOGGER.info("Discarded UMLS cache {} of the previous index", cachePath);
       }
-    } finally {
-      write.unlock();
+      final long start = System.currentTimeMillis();
+      final RecordLog cacheLog = RecordLog.open(Paths.get(cachePath), CACHE_MAGIC, CACHE_VERSION, this::replay);
+      LOGGER.debug("Loaded {} phrases and {} CUIs from UMLS cache {} in {}ms",
+          CACHE_PHRASE_TO_IDS.estimatedSize(), CACHE_ID_TO_PHRASES.estimatedSize(), cachePath, System.currentTimeMillis() - start);
+      cacheLoaded = true;
+      return cacheLog;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
     }
   }
 
-  @Override public void close() {
-    read.lock();
-    try {
-      LOGGER.info("Saving UMLS cache to {}.", cachePath);
-      //noinspection ResultOfMethodCallIgnored
-      new File(cachePath).getParentFile().mkdirs();
-      try (ObjectOutputStream out = new ObjectOutputStream(
-          new BufferedOutputStream(new FileOutputStream(cachePath)))) {
-        out.writeObject(CACHE_PHRASE_TO_IDS);
-        out.writeObject(CACHE_ID_TO_PHRASES);
-        out.writeObject(CACHE_PHRASES);
-        out.writeObject(CACHE_IDS);
-      } catch (IOException ex) {
-        LOGGER.error("Failed to save cache: ", ex);
+  private void replay(ByteBuffer record) {
+    final byte kind = record.get();
+    if (kind == PHRASE_TO_IDS) {
+      final String phrase = readString(record);
+      final int[] cuis = new int[record.getInt()];
+      for (int i = 0; i < cuis.length; i++) {
+        cuis[i] = record.getInt();
+      }
+      CACHE_PHRASE_TO_IDS.put(phrase, cuis);
+    } else {
+      final int cui = record.getInt();
+      final ImmutableSet.Builder<String> phrases = ImmutableSet.builder();
+      for (int i = record.getInt(); i > 0; i--) {
+        phrases.add(readString(record));
       }
-    } finally {
-      read.unlock();
+      CACHE_ID_TO_PHRASES.put(cui, phrases.build());
     }
   }
 
-  @SuppressWarnings("WeakerAccess")
-  public Set<String> getIds(String phrase) {
-    read.lock();
-    boolean empty;
-    Set<String> ids;
+  /** @return the kind and phrase or CUI of a cache log record, as a view of the record */
+  private static ByteBuffer recordKey(ByteBuffer record) {
+    record.limit(record.get(0) == PHRASE_TO_IDS ? 1 + Integer.BYTES + record.getInt(1) : 1 + Integer.BYTES);
+    return record;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] phraseRecord(String phrase, int[] cuis) {
     try {
-      ids = CACHE_PHRASE_TO_IDS.get(phrase);
-      if (CACHE_PHRASES.contains(phrase))
-        return ids;
-      empty = PHRASE_TO_IDS == null;
-    } finally {
-      read.unlock();
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(PHRASE_TO_IDS);
+      writeString(out, phrase);
+      out.writeInt(cuis.length);
+      for (int cui : cuis) {
+        out.writeInt(cui);
+      }
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
     }
+  }
 
-    write.lock();
+  private static byte[] cuiRecord(int cui, Set<String> phrases) {
     try {
-      LOGGER.debug("Phrase \"{}\" not found in UMLS cache.", phrase);
-      if (empty) {
-        loadUMLSData();
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(ID_TO_PHRASES);
+      out.writeInt(cui);
+      out.writeInt(phrases.size());
+      for (String phrase : phrases) {
+        writeString(out, phrase);
       }
-
-      ids = PHRASE_TO_IDS.get(phrase);
-      CACHE_PHRASE_TO_IDS.putAll(phrase, ids);
-      CACHE_PHRASES.add(phrase);
-      return ids;
-    } finally {
-      write.unlock();
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
     }
   }
 
-  @SuppressWarnings("WeakerAccess")
-  public Set<String> getPhrases(String id) {
-    read.lock();
-    boolean empty;
-    Set<String> phrases;
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Has the writer append a freshly cached entry to the cache log, compacting the log as it grows,
+   * since entries cached again after being evicted supersede their earlier records; failures only
+   * cost persistence.  Must be called outside of the caches' loaders, which hold a lock.
+   */
+  private void persist(Object key, byte[] record) {
+    if (!cacheLoaded) {
+      return;
+    }
     try {
-      phrases = CACHE_ID_TO_PHRASES.get(id);
-      if (CACHE_IDS.contains(id))
-        return phrases;
-      empty = ID_TO_PHRASES == null;
-    } finally {
-      read.unlock();
+      writer.execute(() -> {
+        try {
+          final RecordLog cacheLog = CACHE_LOG.get();
+          cacheLog.append(record);
+          cacheLog.compactIfStale(UMLSManager::recordKey, COMPACTION_RATIO, COMPACTION_MIN_RECORDS);
+        } catch (IOException ex) {
+          LOGGER.warn("Failed to persist UMLS cache entry for \"{}\": {}", key, ex.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOGGER.debug("Not persisting UMLS cache entry for \"{}\" after close", key);
     }
+  }
 
-    write.lock();
+  /** Rewrites the cache log with the last record of each phrase and CUI it holds, once pending misses are persisted */
+  void compactCacheLog() throws IOException {
     try {
-      if (empty) {
-        loadUMLSData();
+      writer.submit(() -> {}).get();
+    } catch (InterruptedException | ExecutionException ex) {
+      throw new IllegalStateException(ex);
+    }
+    CACHE_LOG.get().compact(UMLSManager::recordKey);
+  }
+
+  /** Waits up to {@link #CLOSE_TIMEOUT_SECONDS} for pending misses to be persisted, then closes the cache log */
+  @Override public synchronized void close() {
+    writer.shutdown();
+    if (cacheLoaded) {
+      cacheLoaded = false;
+      LOGGER.debug("Closing UMLS cache {}; phrases: {}; CUIs: {}", cachePath, getPhraseCacheStats(), getIdCacheStats());
+      try {
+        if (!writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          LOGGER.warn("Closing UMLS cache {} with misses still being persisted", cachePath);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
       }
-      phrases = ID_TO_PHRASES.get(id);
-      CACHE_ID_TO_PHRASES.putAll(id, phrases);
-      CACHE_IDS.add(id);
-      return phrases;
-    } finally {
-      write.unlock();
+      try {
+        final RecordLog cacheLog = CACHE_LOG.get();
+        cacheLog.compactIfStale(UMLSManager::recordKey, COMPACTION_RATIO, COMPACTION_MIN_RECORDS);
+        cacheLog.close();
+      } catch (IOException ex) {
+        LOGGER.error("Failed to close cache: ", ex);
+      }
+    }
+  }
+
+  /** @return hit, miss, load and eviction counts of the phrase to CUI cache */
+  @SuppressWarnings("WeakerAccess")
+  public CacheStats getPhraseCacheStats() {
+    return CACHE_PHRASE_TO_IDS.stats();
+  }
+
+  /** @return hit, miss, load and eviction counts of the CUI to phrase cache */
+  @SuppressWarnings("WeakerAccess")
+  public CacheStats getIdCacheStats() {
+    return CACHE_ID_TO_PHRASES.stats();
+  }
+
+  /** @return an unmodifiable view of the CUIs of all concepts with the given (lowercased) phrase */
+  @SuppressWarnings("WeakerAccess")
+  public Set<String> getIds(String phrase) {
+    return CUI.asSet(getCuis(phrase));
+  }
+
+  /**
+   * @return the {@link CUI} codes of all concepts with the given (lowercased) phrase, ascending;
+   * the array is shared and must not be modified
+   */
+  @SuppressWarnings("WeakerAccess")
+  public int[] getCuis(String phrase) {
+    CACHE_LOG.get();
+    // Set only in the thread that loaded the entry, which then persists it outside the loader
+    final int[][] loaded = new int[1][];
+    final int[] cuis = CACHE_PHRASE_TO_IDS.get(phrase, key -> {
+      LOGGER.debug("Phrase \"{}\" not found in UMLS cache.", key);
+      return loaded[0] = INDEX.get().getCuis(key);
+    });
+    if (loaded[0] != null) {
+      persist(phrase, phraseRecord(phrase, cuis));
+    }
+    return cuis;
+  }
+
+  /** @return the (lowercased) phrases of the given CUI */
+  @SuppressWarnings("WeakerAccess")
+  public Set<String> getPhrases(String id) {
+    return CUI.isValid(id) ? getPhrases(CUI.encode(id)) : ImmutableSet.of();
+  }
+
+  /** @return the (lowercased) phrases of the CUI with the given {@link CUI} code */
+  @SuppressWarnings("WeakerAccess")
+  public Set<String> getPhrases(int cui) {
+    CACHE_LOG.get();
+    final boolean[] loaded = new boolean[1];
+    final Set<String> phrases = CACHE_ID_TO_PHRASES.get(cui, key -> {
+      loaded[0] = true;
+      return ImmutableSet.copyOf(INDEX.get().getPhrases(key));
+    });
+    if (loaded[0]) {
+      persist(CUI.decode(cui), cuiRecord(cui, phrases));
     }
+    return phrases;
   }
 
   @Override public Set<String> getExpansions(CharSequence cs) {
     String phrase = cs.toString();
     phrase = phrase.toLowerCase();
-    Set<String> ids = getIds(phrase);
     Set<String> results = new HashSet<>();
 
-    for (String id : ids) {
-      results.addAll(getPhrases(id));
+    for (int cui : getCuis(phrase)) {
+      results.addAll(getPhrases(cui));
     }
 
     Expansion.reduceEntries(results);
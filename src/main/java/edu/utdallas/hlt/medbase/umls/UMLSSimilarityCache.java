@@ -0,0 +1,302 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import edu.utdallas.hlt.medbase.io.RecordLog;
+import edu.utdallas.hlt.medbase.umls.UMLSSimilarityFactory.Similarity;
+import edu.utdallas.hlt.medbase.umls.UMLSSimilarityFactory.UMLSMetric;
+import edu.utdallas.hltri.conf.Config;
+import edu.utdallas.hltri.logging.Logger;
+import edu.utdallas.hltri.struct.Pair;
+
+/**
+ * Caches the scores of {@link UMLSMetric}s, so that pairs scored before (in this or an earlier run)
+ * cost no round trip to the UMLS::Similarity server.
+ *
+ * Scores are keyed on the measure and the pair of terms; for {@link Similarity#symmetric} measures
+ * the pair is unordered, so (t1, t2) and (t2, t1) share an entry.  Terms are trimmed, and keyed
+ * case-insensitively: every cached measure scores the concepts the server maps each term (or CUI)
+ * to, and that mapping ignores case.  Scores of
+ * {@link Similarity#RANDOM} are never cached.  Scores are held in a bounded in-memory cache, and
+ * a background writer appends every newly computed score to a {@link RecordLog} that is replayed
+ * on startup.  One cache may serve any number of metrics, and is safe for concurrent use: pairs
+ * are scored outside of the cache's locks, so a pair missed by several threads at once may be
+ * scored more than once.
+ */
+@SuppressWarnings("WeakerAccess")
+public class UMLSSimilarityCache implements Closeable {
+  private static final Logger LOGGER = Logger.get(UMLSSimilarityCache.class);
+
+  /* Cache log records: (key, score) */
+  private static final long CACHE_MAGIC   = 0x554d4c5353494d43L; // "UMLSSIMC"
+  private static final int  CACHE_VERSION = 2;
+
+  /**
+   * The cache log is compacted once it has grown this many times over since it was last compacted,
+   * by at least COMPACTION_MIN_RECORDS appended records
+   */
+  private static final int COMPACTION_RATIO       = 2;
+  private static final int COMPACTION_MIN_RECORDS = 10_000;
+
+  /** Pairs read from a warm-up file per bulk request */
+  private static final int WARM_UP_BATCH = 10_000;
+
+  /** Seconds close waits for the writer to persist pending scores */
+  private static final int CLOSE_TIMEOUT_SECONDS = 60;
+
+  private final Cache<String, Double> cache;
+  private final RecordLog             cacheLog;
+  private final Path                  cachePath;
+
+  /** Appends scores to the cache log and compacts it, in order */
+  private final ExecutorService writer =
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("umls-similarity-cache-writer").build());
+
+  public UMLSSimilarityCache() {
+    this(Config.load("medbase.umls"));
+  }
+
+  private UMLSSimilarityCache(Config conf) {
+    this(Paths.get(conf.getString("similarity-cache-path")), conf.getLong("similarity-cache-size"));
+  }
+
+  /**
+   * Replays the cache log at {@code cachePath} into memory
+   *
+   * @param cacheSize maximum number of scores kept in memory; the least valuable entries are
+   *                  evicted beyond that
+   */
+  public UMLSSimilarityCache(Path cachePath, long cacheSize) {
+    this.cachePath = cachePath;
+    this.cache = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+    try {
+      final long start = System.currentTimeMillis();
+      this.cacheLog = RecordLog.open(cachePath, CACHE_MAGIC, CACHE_VERSION, this::replay);
+      LOGGER.debug("Loaded {} similarity scores from {} in {}ms", cache.estimatedSize(), cachePath,
+          System.currentTimeMillis() - start);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /** @return the cache key of the given pair under the given measure */
+  static String key(Similarity similarity, String t1, String t2) {
+    final String k1 = t1.trim().toLowerCase(Locale.ROOT), k2 = t2.trim().toLowerCase(Locale.ROOT);
+    if (similarity.symmetric && k1.compareTo(k2) > 0) {
+      return similarity.name + ' ' + k2 + ' ' + k1;
+    }
+    return similarity.name + ' ' + k1 + ' ' + k2;
+  }
+
+  /** @return the score of the given pair under {@code metric}, computed only if it is not cached */
+  public double apply(UMLSMetric metric, String t1, String t2) {
+    final Similarity similarity = metric.getSimilarity();
+    if (similarity == Similarity.RANDOM) {
+      return metric.apply(t1, t2);
+    }
+    final String key = key(similarity, t1, t2);
+    final Double cached = cache.getIfPresent(key);
+    if (cached != null) {
+      return cached;
+    }
+    // Scored outside of the cache, so other keys never wait on the server
+    final double score = metric.apply(t1.trim(), t2.trim());
+    cache.put(key, score);
+    persist(Collections.singletonList(record(key, score)));
+    return score;
+  }
+
+  /**
+   * @return the scores of the given pairs under {@code metric}, in order; the pairs that are not
+   * cached are scored with one pipelined bulk request
+   */
+  public double[] apply(UMLSMetric metric, List<Pair<String, String>> pairs) {
+    final Similarity similarity = metric.getSimilarity();
+    if (similarity == Similarity.RANDOM) {
+      return metric.apply(pairs);
+    }
+    final List<String> keys = new ArrayList<>(pairs.size());
+    for (Pair<String, String> pair : pairs) {
+      keys.add(key(similarity, pair.first(), pair.second()));
+    }
+    final Map<String, Double> cached = cache.getAllPresent(keys);
+
+    // Score each missing key once, however often it occurs
+    final Map<String, Pair<String, String>> missing = new LinkedHashMap<>();
+    for (int i = 0; i < pairs.size(); i++) {
+      if (!cached.containsKey(keys.get(i))) {
+        missing.putIfAbsent(keys.get(i), Pair.of(pairs.get(i).first().trim(), pairs.get(i).second().trim()));
+      }
+    }
+    final Map<String, Double> computed = score(metric, missing);
+
+    final double[] scores = new double[pairs.size()];
+    for (int i = 0; i < scores.length; i++) {
+      final Double score = cached.get(keys.get(i));
+      scores[i] = score != null ? score : computed.get(keys.get(i));
+    }
+    return scores;
+  }
+
+  /** Scores the given pairs in bulk, caching and persisting the results */
+  private Map<String, Double> score(UMLSMetric metric, Map<String, Pair<String, String>> pairs) {
+    final Map<String, Double> scores = new LinkedHashMap<>(pairs.size() * 2);
+    if (pairs.isEmpty()) {
+      return scores;
+    }
+    final double[] results = metric.apply(new ArrayList<>(pairs.values()));
+    final List<byte[]> records = new ArrayList<>(results.length);
+    int i = 0;
+    for (String key : pairs.keySet()) {
+      scores.put(key, results[i]);
+      cache.put(key, results[i]);
+      records.add(record(key, results[i]));
+      i++;
+    }
+    persist(records);
+    return scores;
+  }
+
+  /**
+   * Scores every pair in the given file under {@code metric}, so that later lookups are served from
+   * the cache.  Each line holds two whitespace-separated terms; other lines are skipped.
+   *
+   * @return the number of pairs that had to be scored
+   */
+  public int warmUp(UMLSMetric metric, Path pairs) throws IOException {
+    final long start = System.currentTimeMillis();
+    final Similarity similarity = metric.getSimilarity();
+    final Map<String, Pair<String, String>> missing = new LinkedHashMap<>();
+    int read = 0, scored = 0;
+    try (BufferedReader reader = Files.newBufferedReader(pairs, StandardCharsets.UTF_8)) {
+      for (String line; (line = reader.readLine()) != null; ) {
+        final String[] terms = line.trim().split("\\s+");
+        if (terms.length != 2) {
+          continue;
+        }
+        read++;
+        final String key = key(similarity, terms[0], terms[1]);
+        if (cache.asMap().containsKey(key)) {
+          continue;
+        }
+        missing.putIfAbsent(key, Pair.of(terms[0], terms[1]));
+        if (missing.size() >= WARM_UP_BATCH) {
+          scored += score(metric, missing).size();
+          missing.clear();
+        }
+      }
+    }
+    scored += score(metric, missing).size();
+    LOGGER.info("Warmed up {} similarity cache with {} pairs from {} ({} scored) in {}ms", similarity.name, read,
+        pairs, scored, System.currentTimeMillis() - start);
+    return scored;
+  }
+
+  /** @return hit, miss, load and eviction counts of the cache */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  private void replay(ByteBuffer record) {
+    final byte[] key = new byte[record.getInt()];
+    record.get(key);
+    cache.put(new String(key, StandardCharsets.UTF_8), record.getDouble());
+  }
+
+  /** @return the key of a cache log record, as a view of the record */
+  private static ByteBuffer recordKey(ByteBuffer record) {
+    record.limit(Integer.BYTES + record.getInt(0));
+    return record;
+  }
+
+  private static byte[] record(String key, double score) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(keyBytes.length);
+      out.write(keyBytes);
+      out.writeDouble(score);
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Has the writer append freshly computed scores to the cache log, compacting the log as it grows,
+   * since scores computed again after being evicted supersede their earlier records; failures only
+   * cost persistence
+   */
+  private void persist(List<byte[]> records) {
+    try {
+      writer.execute(() -> {
+        try {
+          for (byte[] record : records) {
+            cacheLog.append(record);
+          }
+          cacheLog.compactIfStale(UMLSSimilarityCache::recordKey, COMPACTION_RATIO, COMPACTION_MIN_RECORDS);
+        } catch (IOException ex) {
+          LOGGER.warn("Failed to persist {} similarity scores: {}", records.size(), ex.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOGGER.debug("Not persisting {} similarity scores after close", records.size());
+    }
+  }
+
+  /** Rewrites the cache log with the last score of each pair it holds, once pending scores are persisted */
+  void compactCacheLog() throws IOException {
+    try {
+      writer.submit(() -> {}).get();
+    } catch (InterruptedException | ExecutionException ex) {
+      throw new IllegalStateException(ex);
+    }
+    cacheLog.compact(UMLSSimilarityCache::recordKey);
+  }
+
+  /** Waits up to {@link #CLOSE_TIMEOUT_SECONDS} for pending scores to be persisted, then closes the cache log */
+  @Override public synchronized void close() {
+    LOGGER.debug("Closing similarity cache {}; hit rate: {}; {}", cachePath, getStats().hitRate(), getStats());
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOGGER.warn("Closing similarity cache {} with scores still being persisted", cachePath);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      cacheLog.compactIfStale(UMLSSimilarityCache::recordKey, COMPACTION_RATIO, COMPACTION_MIN_RECORDS);
+      cacheLog.close();
+    } catch (IOException ex) {
+      LOGGER.error("Failed to close similarity cache: ", ex);
+    }
+  }
+}
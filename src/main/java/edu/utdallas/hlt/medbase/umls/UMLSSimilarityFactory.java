@@ -1,11 +1,33 @@
 package edu.utdallas.hlt.medbase.umls;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.utdallas.hltri.logging.Logger;
+import edu.utdallas.hltri.struct.Pair;
 
 @SuppressWarnings("unused")
 public class UMLSSimilarityFactory {
+  private static final Logger log = Logger.get(UMLSSimilarityFactory.class);
+
+  /** Connections kept open to the UMLS::Similarity server per metric, by default */
+  public static final int DEFAULT_CONNECTIONS = 4;
+
   final InetAddress address;
   final int port;
 
@@ -15,23 +37,30 @@ public class UMLSSimilarityFactory {
   }
 
   public static enum Similarity {
-    CONCEPTUAL_DISTANCE ("cdist"),
-    JIANG_CONRATH       ("jcn"),
-    LEACOCK_CHODOROW    ("lch"),
-    LESK                ("lesk"),
-    LIN                 ("lin"),
-    NGUYEN_ALMUBAID     ("nam"),
-    EDGE_COUNTING       ("path"),
-    RANDOM              ("random"),
-    RESNIK              ("res"),
-    CONTEXT_VECTOR      ("vector"),
-    WU_PALMER           ("wup"),
-    ZHONG               ("zhong");
+    CONCEPTUAL_DISTANCE ("cdist",  true),
+    JIANG_CONRATH       ("jcn",    true),
+    LEACOCK_CHODOROW    ("lch",    true),
+    LESK                ("lesk",   false),
+    LIN                 ("lin",    true),
+    NGUYEN_ALMUBAID     ("nam",    true),
+    EDGE_COUNTING       ("path",   true),
+    RANDOM              ("random", false),
+    RESNIK              ("res",    true),
+    CONTEXT_VECTOR      ("vector", false),
+    WU_PALMER           ("wup",    true),
+    ZHONG               ("zhong",  true);
 
     public final String name;
 
-    private Similarity(String name) {
+    /**
+     * True if the score of (t1, t2) is always that of (t2, t1).  The relatedness measures built on
+     * extended definitions and co-occurrence vectors are not guaranteed to be.
+     */
+    public final boolean symmetric;
+
+    private Similarity(String name, boolean symmetric) {
       this.name = name;
+      this.symmetric = symmetric;
     }
   }
 
@@ -40,46 +69,201 @@ public class UMLSSimilarityFactory {
     return new UMLSMetric(address, port, similarity);
   }
 
+  public UMLSMetric getUMLSSimilarity(final Similarity similarity, int connections) {
+    return new UMLSMetric(address, port, similarity, connections);
+  }
+
+  /**
+   * Client of a UMLS::Similarity server computing one measure.
+   *
+   * The server answers each request line ("term1 term2 measure") with one line holding the score,
+   * in order, so bulk requests are pipelined: they are split into batches of {@link #PIPELINE}
+   * pairs, and each batch is written to one connection with a single flush before its responses are
+   * read back.  Batches are spread over a pool of connections, each used by one thread at a time, so
+   * metrics are thread-safe.
+   */
   public static class UMLSMetric implements Closeable {
+    /** Requests written per flush; small enough that neither side blocks on a full socket buffer */
+    static final int PIPELINE = 128;
 
-    final Socket socket;
-    final BufferedWriter writer;
-    final BufferedReader reader;
+    /** How long {@link #close} waits for running batches */
+    static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    final InetAddress address;
+    final int port;
     final Similarity similarity;
 
+    private final BlockingQueue<Connection> idle;
+    private final Semaphore                 permits;
+    private final ExecutorService           executor;
+
+    /** Set by {@link #close}; connections returned afterwards are closed rather than kept */
+    private volatile boolean closed = false;
+
     public UMLSMetric(InetAddress address, int port, Similarity similarity) {
+      this(address, port, similarity, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Connects to the server, keeping up to {@code connections} connections open
+     *
+     * @throws UncheckedIOException if the server cannot be reached
+     */
+    public UMLSMetric(InetAddress address, int port, Similarity similarity, int connections) {
+      if (connections < 1) {
+        throw new IllegalArgumentException("Need at least one connection, got " + connections);
+      }
+      this.address = address;
+      this.port = port;
+      this.similarity = similarity;
+      this.idle = new ArrayBlockingQueue<>(connections);
+      this.permits = new Semaphore(connections);
+      this.executor = Executors.newFixedThreadPool(connections,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("umls-" + similarity.name + "-%d").build());
       try {
-        socket = new Socket(address, port);
-        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.similarity = similarity;
-      }  catch (IOException ex) {
-        throw new RuntimeException(ex);
+        // Fail fast if the server is down
+        idle.add(new Connection(address, port));
+      } catch (IOException ex) {
+        executor.shutdown();
+        throw new UncheckedIOException(ex);
       }
     }
 
+    public Similarity getSimilarity() {
+      return similarity;
+    }
+
     public double apply(final String t1, final String t2) {
+      return send(Collections.singletonList(Pair.of(t1, t2)))[0];
+    }
+
+    /** @return the similarity of each pair, in order */
+    public double[] apply(final List<Pair<String, String>> pairs) {
       try {
-        // Send message
-        writer.write(t1 + ' ' + t2 + ' ' + similarity.name);
-        writer.newLine();
-        writer.flush();
+        return applyAsync(pairs).join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+
+    public CompletableFuture<Double> applyAsync(final String t1, final String t2) {
+      return CompletableFuture.supplyAsync(() -> apply(t1, t2), executor);
+    }
 
-        // Get response
-        final String similarity = reader.readLine();
-        return Double.valueOf(similarity);
+    /** Scores the given pairs on the pool's threads; the results are in the order of the pairs */
+    public CompletableFuture<double[]> applyAsync(final List<Pair<String, String>> pairs) {
+      final List<CompletableFuture<double[]>> batches = new ArrayList<>((pairs.size() + PIPELINE - 1) / PIPELINE);
+      for (int start = 0; start < pairs.size(); start += PIPELINE) {
+        final List<Pair<String, String>> batch = pairs.subList(start, Math.min(pairs.size(), start + PIPELINE));
+        batches.add(CompletableFuture.supplyAsync(() -> send(batch), executor));
+      }
+      return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+        final double[] results = new double[pairs.size()];
+        for (int i = 0; i < batches.size(); i++) {
+          final double[] batch = batches.get(i).join();
+          System.arraycopy(batch, 0, results, i * PIPELINE, batch.length);
+        }
+        return results;
+      });
+    }
+
+    /** Sends the given pairs over one pooled connection with a single flush */
+    private double[] send(final List<Pair<String, String>> pairs) {
+      permits.acquireUninterruptibly();
+      Connection connection = idle.poll();
+      try {
+        if (connection == null) {
+          connection = new Connection(address, port);
+        }
+        final double[] results = connection.send(pairs, similarity);
+        idle.add(connection);
+        connection = null;
+        if (closed) {
+          // Raced with close(), which may already have drained the pool
+          closeIdle();
+        }
+        return results;
       } catch (IOException ex) {
-        throw new RuntimeException(ex);
+        throw new UncheckedIOException(ex);
+      } finally {
+        if (connection != null) {
+          // The stream may be out of step with our requests; drop the connection
+          connection.close();
+        }
+        permits.release();
       }
     }
 
-     public void close() {
+    /**
+     * Waits up to {@link #CLOSE_TIMEOUT_SECONDS} for submitted batches to finish, then closes all
+     * connections.  Pairs scored synchronously afterwards get a connection of their own, which is
+     * closed after use.
+     */
+    public void close() {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("Closing {} metric with batches still running", similarity.name);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      closed = true;
+      closeIdle();
+    }
+
+    private void closeIdle() {
+      for (Connection connection; (connection = idle.poll()) != null; ) {
+        connection.close();
+      }
+    }
+  }
+
+  /** One connection to the server */
+  private static class Connection {
+    final Socket socket;
+    final BufferedWriter writer;
+    final BufferedReader reader;
+
+    Connection(InetAddress address, int port) throws IOException {
+      socket = new Socket(address, port);
+      socket.setTcpNoDelay(true);
+      writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    double[] send(List<Pair<String, String>> pairs, Similarity similarity) throws IOException {
+      // Send messages
+      for (Pair<String, String> pair : pairs) {
+        writer.write(pair.first() + ' ' + pair.second() + ' ' + similarity.name);
+        writer.newLine();
+      }
+      writer.flush();
+
+      // Get responses, in order
+      final double[] results = new double[pairs.size()];
+      for (int i = 0; i < results.length; i++) {
+        final String response = reader.readLine();
+        if (response == null) {
+          throw new EOFException("UMLS::Similarity server closed the connection");
+        }
+        try {
+          results[i] = Double.parseDouble(response);
+        } catch (NumberFormatException ex) {
+          throw new IOException("Unexpected response from UMLS::Similarity server: " + response, ex);
+        }
+      }
+      return results;
+    }
+
+    void close() {
       try {
-        reader.close();
-        writer.close();
         socket.close();
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+      } catch (IOException ex) {
+        log.warn("Failed to close connection to UMLS::Similarity server: {}", ex.getMessage());
       }
     }
   }
@@ -5,14 +5,21 @@ import com.google.common.collect.Lists;
 import java.io.Serializable;
 import java.util.List;
 
+import edu.utdallas.hlt.medbase.umls.CUI;
 import edu.utdallas.hltri.Describable;
 
 /**
  * Created by rmm120030 on 8/2/16.
  */
 public class MetamapCandidate implements CharSequence, Serializable, Describable {
-  private static final long serialVersionUID = 1L;
-  private final String cui;
+  private static final long serialVersionUID = 2L;
+
+  /** Code of candidates without a well-formed CUI */
+  public static final int NO_CUI = -1;
+
+  /* The CUI's code, or NO_CUI; ids that are not well-formed CUIs are kept as given in otherCui */
+  private final int cui;
+  private final String otherCui;
   private final String name;
   private final Integer score;
   private final Boolean negated;
@@ -20,13 +27,20 @@ public class MetamapCandidate implements CharSequence, Serializable, Describable
 
   private MetamapCandidate(Builder builder) {
     this.cui = builder.cui;
+    this.otherCui = builder.otherCui;
     this.name = builder.name;
     this.score = builder.score;
     this.negated = builder.negated;
     this.semanticTypes = builder.semanticTypes;
   }
 
+  /** @return the CUI of this candidate's concept, or null if it has none */
   public String getCui() {
+    return cui == NO_CUI ? otherCui : CUI.decode(cui);
+  }
+
+  /** @return the {@link CUI} code of this candidate's concept, or {@link #NO_CUI} if it has no well-formed CUI */
+  public int getCuiCode() {
     return cui;
   }
 
@@ -52,14 +66,17 @@ public class MetamapCandidate implements CharSequence, Serializable, Describable
   }
 
   public static class Builder {
-    private String cui;
+    private int cui = NO_CUI;
+    private String otherCui;
     private String name;
     private Integer score;
     private Boolean negated = false;
     private List<String> semanticTypes = Lists.newArrayList();
 
     public Builder cui(String cui) {
-      this.cui = cui;
+      final boolean valid = cui != null && CUI.isValid(cui);
+      this.cui = valid ? CUI.encode(cui) : NO_CUI;
+      this.otherCui = valid ? null : cui;
       return this;
     }
 
@@ -7,11 +7,11 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import edu.utdallas.hlt.medbase.umls.CUI;
 import edu.utdallas.hltri.logging.Logger;
 
 /**
@@ -22,8 +22,6 @@ public class FilteredUmlsCuiMatcher extends UmlsCuiMatcher {
 
   private final Set<String> filteredCuis;
 
-  private final Set<String> seen = new HashSet<>();
-
   protected FilteredUmlsCuiMatcher(int limit, Set<String> cui, Set<String> filteredCuis) {
     super(limit, cui);
     this.filteredCuis = filteredCuis;
@@ -34,7 +32,7 @@ public class FilteredUmlsCuiMatcher extends UmlsCuiMatcher {
   protected void buildCuiTree(String cui, int limit) {
     if (limit > 0) {
       for (String child : umls.getNarrowerCuis(cui)) {
-        if (seen.add(child)) {
+        if (seen.add(CUI.encode(child))) {
           assert child != null;
           assert filteredCuis != null;
           if (!filteredCuis.contains(child)) {
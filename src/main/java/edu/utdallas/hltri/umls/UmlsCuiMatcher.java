@@ -1,5 +1,8 @@
 package edu.utdallas.hltri.umls;
 
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
@@ -15,6 +18,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import edu.utdallas.hlt.medbase.umls.CUI;
 import edu.utdallas.hltri.conf.Config;
 import edu.utdallas.hltri.logging.Logger;
 import edu.utdallas.hltri.util.CharMatchers;
@@ -36,7 +40,7 @@ public class UmlsCuiMatcher extends PatternMatcher {
 
   protected final Set<String> seedCuis;
 
-  protected final Set<String> seen = new HashSet<>();
+  protected final TIntSet seen = new TIntHashSet();
 
   protected void putAtoms(String cui) {
     numCuis++;
@@ -66,7 +70,7 @@ public class UmlsCuiMatcher extends PatternMatcher {
   protected void buildCuiTree(String cui, int limit) {
     if (limit > 0) {
       for (String child : umls.getNarrowerCuis(cui)) {
-        if (seen.add(child)) {
+        if (seen.add(CUI.encode(child))) {
           putAtoms(child);
           buildCuiTree(child, limit - 1);
         }
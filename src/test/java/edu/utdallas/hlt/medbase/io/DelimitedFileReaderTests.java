@@ -0,0 +1,95 @@
+package edu.utdallas.hlt.medbase.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DelimitedFileReaderTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path write(String contents) throws IOException {
+    final Path path = folder.newFile().toPath();
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  /** @return every parsed row as "column|column|...", in file order */
+  private static List<String> rows(DelimitedFileReader reader, ForkJoinPool pool) throws IOException {
+    final List<String> rows = new ArrayList<>();
+    for (List<String> chunk : reader.read(pool, ArrayList<String>::new, (row, accumulator) -> {
+      final StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < row.columns(); i++) {
+        sb.append(i == 0 ? "" : "|").append(row.getString(i));
+      }
+      accumulator.add(sb.toString());
+    })) {
+      rows.addAll(chunk);
+    }
+    return rows;
+  }
+
+  @Test
+  public void testLinesAcrossChunkBoundaries() throws IOException {
+    final StringBuilder contents = new StringBuilder("id\tname\n");
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      // Lines of varying length, so chunk boundaries land at every position within a line
+      final String name = "caf\u00e9 " + new String(new char[i % 13]).replace('\0', 'x');
+      contents.append(i).append('\t').append(name).append(i % 2 == 0 ? "\r\n" : "\n");
+      expected.add(i + "|" + name);
+    }
+    final Path path = write(contents.toString());
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (long chunkBytes : new long[]{1, 7, 64, 1000, Long.MAX_VALUE}) {
+        assertEquals("chunks of " + chunkBytes, expected, rows(new DelimitedFileReader(path, '\t', true, chunkBytes), pool));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testHeaderAndBlankLines() throws IOException {
+    final ForkJoinPool pool = ForkJoinPool.commonPool();
+    final Path path = write("a\tb\r\n\r\n1\t\n\n2\t3");
+    assertEquals(listOf("1|", "2|3"), rows(new DelimitedFileReader(path, '\t', true, 2), pool));
+    assertEquals(listOf("a|b", "1|", "2|3"), rows(new DelimitedFileReader(path, '\t', false, 2), pool));
+    assertTrue(rows(new DelimitedFileReader(write("header only"), '\t', true), pool).isEmpty());
+    assertTrue(rows(new DelimitedFileReader(write(""), '\t', false), pool).isEmpty());
+  }
+
+  @Test
+  public void testNumericColumns() throws IOException {
+    final Path path = write("138875005|0|x\n900000000000003001|1|y\n");
+    final List<Long> ids = new ArrayList<>();
+    for (List<Long> chunk : new DelimitedFileReader(path, '|', false).read(ArrayList<Long>::new, (row, accumulator) -> {
+      if (row.is(1, '1') || row.is(2, "x")) {
+        accumulator.add(row.getLong(0));
+      }
+    })) {
+      ids.addAll(chunk);
+    }
+    assertEquals(listOf(138875005L, 900000000000003001L), ids);
+  }
+
+  @SafeVarargs
+  private static <T> List<T> listOf(T... values) {
+    final List<T> list = new ArrayList<>();
+    for (T value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
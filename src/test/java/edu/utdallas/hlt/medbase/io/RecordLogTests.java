@@ -0,0 +1,142 @@
+package edu.utdallas.hlt.medbase.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordLogTests {
+  private static final long MAGIC = 0x5245434f52444c47L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<String> replay(Path path) throws IOException {
+    final List<String> records = new ArrayList<>();
+    RecordLog.open(path, MAGIC, 1, buffer -> records.add(StandardCharsets.UTF_8.decode(buffer).toString())).close();
+    return records;
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("first"));
+      log.append(bytes("second"));
+    }
+    assertEquals(Arrays.asList("first", "second"), replay(path));
+    assertEquals(0, replay(folder.getRoot().toPath().resolve("missing.log")).size());
+  }
+
+  @Test
+  public void testTornRecord() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("first"));
+      log.append(bytes("second"));
+    }
+    // Simulate a crash in the middle of writing the last record
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 2);
+    }
+    assertEquals(Arrays.asList("first"), replay(path));
+
+    // Appends after recovery follow the last valid record
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("third"));
+    }
+    assertEquals(Arrays.asList("first", "third"), replay(path));
+  }
+
+  @Test
+  public void testCorruptRecord() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("first"));
+      log.append(bytes("second"));
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes("X")), channel.size() - 1);
+    }
+    assertEquals(Arrays.asList("first"), replay(path));
+  }
+
+  @Test
+  public void testCompact() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("stale"));
+      log.append(bytes("live"));
+      log.compact(Arrays.asList(bytes("live")));
+      assertEquals(1, log.records());
+      log.append(bytes("next"));
+    }
+    assertEquals(Arrays.asList("live", "next"), replay(path));
+    // Logs of another version are discarded
+    try (RecordLog log = RecordLog.open(path, MAGIC, 2, buffer -> {})) {
+      assertEquals(0, log.records());
+    }
+  }
+
+  /** Records are "key=value" */
+  private static String key(ByteBuffer buffer) {
+    final String record = StandardCharsets.UTF_8.decode(buffer).toString();
+    return record.substring(0, record.indexOf('='));
+  }
+
+  @Test
+  public void testCompactByKey() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.append(bytes("a=1"));
+      log.append(bytes("b=1"));
+      log.append(bytes("a=2"));
+      log.append(bytes("c=1"));
+      log.append(bytes("b=2"));
+    }
+    // Compaction reads the records back from the file rather than relying on what its owner holds
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      log.compact(RecordLogTests::key);
+      assertEquals(3, log.records());
+      log.append(bytes("c=2"));
+    }
+    assertEquals(Arrays.asList("a=2", "c=1", "b=2", "c=2"), replay(path));
+  }
+
+  @Test
+  public void testCompactIfStale() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("test.log");
+    try (RecordLog log = RecordLog.open(path, MAGIC, 1, buffer -> {})) {
+      int compactions = 0;
+      for (int i = 0; i < 100; i++) {
+        log.append(bytes("key" + i % 10 + "=" + i));
+        if (log.compactIfStale(RecordLogTests::key, 2, 8)) {
+          compactions++;
+          assertEquals(Math.min(i + 1, 10), log.records());
+        }
+      }
+      // At least 8 appends between compactions, and never more than 2 * 10 + 8 records
+      assertTrue(compactions >= 3 && compactions <= 100 / 8);
+      assertTrue(log.records() <= 28);
+    }
+    final List<String> records = replay(path);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(records.contains("key" + i + "=" + (90 + i)));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SNOMEDManager#filterExpandedConcepts} against the original pairwise
+ * {@code startsWith} implementation on expansions of 100, 1k and 10k names.
+ *
+ * The names are built the way broad IS_A expansions look: a few thousand base findings, many of
+ * which also appear with qualifiers appended ("diabetes mellitus", "diabetes mellitus type 2", ...).
+ * Run with {@code sbt "jmh:run FilterExpandedConceptsBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterExpandedConceptsBenchmark {
+  private static final String[] HEADS = {
+      "disorder", "infarction", "disease", "fracture", "infection", "neoplasm", "syndrome",
+      "injury", "ulcer", "stenosis", "hemorrhage", "inflammation", "deficiency", "lesion"
+  };
+  private static final String[] MODIFIERS = {
+      "acute", "chronic", "bacterial", "viral", "congenital", "malignant", "benign", "traumatic",
+      "myocardial", "renal", "hepatic", "pulmonary", "cerebral", "spinal", "cardiac", "ocular"
+  };
+  private static final String[] QUALIFIERS = {
+      "of left side", "of right side", "with complication", "without complication", "type 1",
+      "type 2", "in pregnancy", "due to trauma", "of childhood", "recurrent"
+  };
+
+  @Param({"100", "1000", "10000"})
+  public int size;
+
+  private Set<String> names;
+
+  @Setup
+  public void setup() {
+    names = names(size, new Random(42));
+  }
+
+  static Set<String> names(int size, Random random) {
+    final Set<String> names = new HashSet<>();
+    while (names.size() < size) {
+      final StringBuilder sb = new StringBuilder();
+      for (int i = random.nextInt(3); i >= 0; i--) {
+        sb.append(MODIFIERS[random.nextInt(MODIFIERS.length)]).append(' ');
+      }
+      sb.append(HEADS[random.nextInt(HEADS.length)]);
+      names.add(sb.toString());
+      if (random.nextBoolean() && names.size() < size) {
+        names.add(sb.append(' ').append(QUALIFIERS[random.nextInt(QUALIFIERS.length)]).toString());
+      }
+    }
+    return names;
+  }
+
+  @Benchmark
+  public Set<String> sorted() {
+    return SNOMEDManager.filterExpandedConcepts(names);
+  }
+
+  @Benchmark
+  public Set<String> pairwise() {
+    return pairwise(names);
+  }
+
+  /** The original implementation of filterExpandedConcepts */
+  static Set<String> pairwise(Set<String> list) {
+    Set<String> concepts = new HashSet<>(list);
+    Set<String> results = new HashSet<>();
+
+    for (Iterator<String> it = concepts.iterator(); it.hasNext();) {
+      String concept = it.next();
+
+      boolean isPrefix = true;
+      for (String other : concepts) {
+        // Compare against all other elements
+        if (!concept.equals(other) && concept.startsWith(other)) {
+          isPrefix = false;
+          break;
+        }
+      }
+
+      if (isPrefix) {
+        results.add(concept);
+      } else {
+        it.remove();
+      }
+    }
+
+    return results;
+  }
+}
@@ -0,0 +1,74 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SNOMEDExpanderTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private SNOMEDManager manager() throws IOException {
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    builder.addConcept(414545008L, "ischemic heart disease");
+    builder.addConcept(22298006L, "myocardial infarction");
+    builder.addConcept(57054005L, "acute myocardial infarction");
+    builder.addConcept(194828000L, "angina");
+    builder.addDescription(22298006L, "heart attack");
+    builder.addRelation(22298006L, SNOMEDRelationshipType.IS_A.getValue(), 414545008L);
+    builder.addRelation(57054005L, SNOMEDRelationshipType.IS_A.getValue(), 22298006L);
+    builder.addRelation(194828000L, SNOMEDRelationshipType.IS_A.getValue(), 414545008L);
+    final Path path = folder.getRoot().toPath().resolve("snomed.snapshot");
+    builder.write(path);
+    return new SNOMEDManager(SNOMEDSnapshot.open(path));
+  }
+
+  @Test
+  public void testBatchMatchesSingleExpansions() throws IOException {
+    final SNOMEDManager snomed = manager();
+    final List<String> terms = Arrays.asList("Ischemic heart disease (disorder)", "heart attack", "angina", "unknown",
+        "heart attack", "ischemic heart disease");
+    for (SNOMEDRelationshipDirection direction : SNOMEDRelationshipDirection.values()) {
+      final Map<String, Set<String>> batch = snomed.getFilteredConcepts(terms, SNOMEDRelationshipType.IS_A, 2, direction);
+      assertEquals(new ArrayList<>(new LinkedHashSet<>(terms)), new ArrayList<>(batch.keySet()));
+      for (String term : terms) {
+        assertEquals(direction + " " + term, snomed.getFilteredConcepts(term, SNOMEDRelationshipType.IS_A, 2, direction),
+            batch.get(term));
+      }
+    }
+    // Both levels of descendants, without the query term itself
+    assertEquals(ImmutableSet.of("myocardial infarction", "acute myocardial infarction", "angina"),
+        snomed.getFilteredConcepts("ischemic heart disease", SNOMEDRelationshipType.IS_A, 2, SNOMEDRelationshipDirection.CHILDREN));
+  }
+
+  @Test
+  public void testExpansionCacheIsBounded() throws IOException {
+    final SNOMEDManager snomed = manager();
+    final SNOMEDExpander expander = new SNOMEDExpander(snomed, SNOMEDRelationshipType.IS_A, 2, SNOMEDRelationshipDirection.CHILDREN, 2);
+    final List<String> terms = Arrays.asList("ischemic heart disease", "heart attack", "angina", "unknown");
+    final Map<String, Set<String>> expanded = expander.expandAll(terms);
+    assertEquals(terms, new ArrayList<>(expanded.keySet()));
+    for (String term : terms) {
+      assertEquals(term, snomed.getFilteredConcepts(term, SNOMEDRelationshipType.IS_A, 2, SNOMEDRelationshipDirection.CHILDREN),
+          expander.getExpansions(term));
+      // Results are copies
+      expander.getExpansions(term).add("x");
+    }
+    assertTrue(expander.cachedTerms() <= 2);
+    assertEquals(ImmutableSet.of("acute myocardial infarction"), expander.getExpansions("heart attack"));
+    assertTrue(expander.getCacheStats().hitCount() > 0);
+  }
+}
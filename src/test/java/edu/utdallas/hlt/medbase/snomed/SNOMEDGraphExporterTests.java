@@ -0,0 +1,163 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SNOMEDGraphExporterTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Concept ids are 1000 + i; concept i has concept i - 1 as FINDING_SITE, and every tenth is also
+   * IS_A concept 0 (a chain of IS_A would make the precomputed closure quadratic)
+   */
+  private SNOMEDSnapshot chain(int size) throws IOException {
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    for (int i = 0; i < size; i++) {
+      builder.addConcept(1000L + i, "concept " + i);
+      if (i > 0) {
+        builder.addRelation(1000L + i, SNOMEDRelationshipType.FINDING_SITE.getValue(), 1000L + i - 1);
+      }
+      if (i % 10 == 5) {
+        builder.addRelation(1000L + i, SNOMEDRelationshipType.IS_A.getValue(), 1000L);
+        // Duplicates are dropped
+        builder.addRelation(1000L + i, SNOMEDRelationshipType.IS_A.getValue(), 1000L);
+      }
+    }
+    final Path path = folder.getRoot().toPath().resolve("snomed.snapshot");
+    builder.write(path);
+    return SNOMEDSnapshot.open(path);
+  }
+
+  private static List<String> lines(Path path) throws IOException {
+    return Files.readAllLines(path, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testTransXUsesDenseIds() throws IOException {
+    // Enough relations for several export chunks
+    final int size = 2 * SNOMEDGraphExporter.CHUNK_EDGES + 17;
+    final SNOMEDSnapshot snapshot = chain(size);
+    final Path directory = folder.getRoot().toPath().resolve("transx");
+    new SNOMEDGraphExporter(snapshot).writeTransX(directory);
+
+    final List<String> entities = lines(directory.resolve("entity2id.tsv"));
+    assertEquals(Integer.toString(size), entities.get(0));
+    assertEquals(size + 1, entities.size());
+    for (int i = 1; i <= size; i++) {
+      final String[] fields = entities.get(i).split("\t");
+      assertEquals(i - 1, Integer.parseInt(fields[1]));
+      assertEquals(i - 1, snapshot.indexOf(Long.parseLong(fields[0])));
+    }
+
+    final List<String> relations = lines(directory.resolve("relation2id.tsv"));
+    assertEquals("2", relations.get(0));
+    final Set<String> types = new HashSet<>();
+    for (String line : relations.subList(1, relations.size())) {
+      final String[] fields = line.split("\t");
+      assertEquals(SNOMEDRelationshipType.valueOf(fields[0]).getValue(), snapshot.graph().typeId(Integer.parseInt(fields[1])));
+      types.add(fields[0]);
+    }
+    assertEquals(2, types.size());
+
+    final int isA = snapshot.graph().typeIndex(SNOMEDRelationshipType.IS_A);
+    final int site = snapshot.graph().typeIndex(SNOMEDRelationshipType.FINDING_SITE);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      final List<String> row = new ArrayList<>();
+      if (i > 0) {
+        row.add(i + "\t" + (i - 1) + "\t" + site);
+      }
+      if (i % 10 == 5) {
+        row.add(i + "\t0\t" + isA);
+      }
+      row.sort(null);
+      expected.addAll(row);
+    }
+    final List<String> triples = lines(directory.resolve("triple2id.tsv"));
+    assertEquals(Integer.toString(expected.size()), triples.get(0));
+    final List<String> actual = new ArrayList<>();
+    for (int from = 1; from < triples.size(); ) {
+      // Sort each concept's row, since the order of relations within a row is not specified
+      int to = from;
+      final String head = triples.get(from).split("\t")[0];
+      while (to < triples.size() && triples.get(to).split("\t")[0].equals(head)) {
+        to++;
+      }
+      final List<String> row = new ArrayList<>(triples.subList(from, to));
+      row.sort(null);
+      actual.addAll(row);
+      from = to;
+    }
+    assertEquals(expected, actual);
+
+    final ByteBuffer binary = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("triple2id.bin"))).order(SNOMEDSnapshot.ORDER);
+    assertEquals(expected.size(), binary.getInt());
+    assertEquals((1 + 3 * expected.size()) * Integer.BYTES, binary.capacity());
+    for (int i = 1; i < triples.size(); i++) {
+      assertEquals(triples.get(i), binary.getInt() + "\t" + binary.getInt() + "\t" + binary.getInt());
+    }
+    assertTrue(!binary.hasRemaining());
+  }
+
+  @Test
+  public void testSimpleNormalizesEachConceptOnce() throws IOException {
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    builder.addConcept(1L, "myocardial infarction");
+    builder.addConcept(2L, "ischemic heart disease");
+    builder.addConcept(3L, "heart structure");
+    builder.addConcept(4L, "acute myocardial infarction");
+    builder.addConcept(5L, "rejected");
+    builder.addConcept(6L, "unrelated");
+    builder.addRelation(1L, SNOMEDRelationshipType.IS_A.getValue(), 2L);
+    builder.addRelation(4L, SNOMEDRelationshipType.IS_A.getValue(), 1L);
+    builder.addRelation(1L, SNOMEDRelationshipType.FINDING_SITE.getValue(), 3L);
+    builder.addRelation(4L, SNOMEDRelationshipType.FINDING_SITE.getValue(), 3L);
+    builder.addRelation(2L, SNOMEDRelationshipType.FINDING_SITE.getValue(), 3L);
+    builder.addRelation(5L, SNOMEDRelationshipType.IS_A.getValue(), 2L);
+    final Path path = folder.getRoot().toPath().resolve("simple.snapshot");
+    builder.write(path);
+    final SNOMEDSnapshot snapshot = SNOMEDSnapshot.open(path);
+
+    for (int threads : new int[]{1, 4}) {
+      final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+      final Path triples = folder.getRoot().toPath().resolve("simple-" + threads + ".tsv");
+      new SNOMEDGraphExporter(snapshot).writeSimple(triples, name -> {
+        calls.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+        // "acute myocardial infarction" normalizes to the same value as its parent, so their relation is dropped
+        return name.equals("rejected") ? Optional.empty() : Optional.of(name.replace("acute ", ""));
+      }, threads);
+
+      assertEquals(5, calls.size());
+      for (Map.Entry<String, AtomicInteger> entry : calls.entrySet()) {
+        assertEquals(entry.getKey(), 1, entry.getValue().get());
+      }
+      final List<String> lines = lines(triples);
+      lines.sort(null);
+      assertEquals(Arrays.asList(
+          "ischemic heart disease\tFINDING_SITE\theart structure",
+          "myocardial infarction\tFINDING_SITE\theart structure",
+          "myocardial infarction\tFINDING_SITE\theart structure",
+          "myocardial infarction\tIS_A\tischemic heart disease"), lines);
+    }
+  }
+}
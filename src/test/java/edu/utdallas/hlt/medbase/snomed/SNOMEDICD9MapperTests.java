@@ -0,0 +1,146 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import com.google.common.collect.ImmutableSet;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SNOMEDICD9MapperTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  static final long ISCHEMIC_HEART_DISEASE = 414545008L;
+  static final long MYOCARDIAL_INFARCTION  = 22298006L;
+  static final long ACUTE_MI               = 57054005L;
+  static final long OLD_MI                 = 1755008L;
+  static final long DIABETES               = 73211009L;
+  static final long UNMAPPED               = 38341003L;
+
+  private Path write(String name, String... lines) throws IOException {
+    final Path path = folder.getRoot().toPath().resolve(name);
+    Files.write(path, (String.join("\r\n", lines) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    return path;
+  }
+
+  /** Acute MI IS_A MI IS_A ischemic heart disease; old MI shares MI's map target */
+  SNOMEDICD9Mapper mapper(boolean precomputeClosure) throws IOException {
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    builder.addConcept(ISCHEMIC_HEART_DISEASE, "ischemic heart disease");
+    builder.addConcept(MYOCARDIAL_INFARCTION, "myocardial infarction");
+    builder.addConcept(ACUTE_MI, "acute myocardial infarction");
+    builder.addConcept(OLD_MI, "old myocardial infarction");
+    builder.addConcept(DIABETES, "diabetes mellitus");
+    builder.addConcept(UNMAPPED, "hypertensive disorder");
+    builder.addRelation(MYOCARDIAL_INFARCTION, SNOMEDRelationshipType.IS_A.getValue(), ISCHEMIC_HEART_DISEASE);
+    builder.addRelation(ACUTE_MI, SNOMEDRelationshipType.IS_A.getValue(), MYOCARDIAL_INFARCTION);
+    final Path snapshot = folder.getRoot().toPath().resolve("snomed-" + precomputeClosure + ".snapshot");
+    builder.write(snapshot);
+
+    final Path mappings = write("mappings.txt",
+        "MAPSETID\tMAPCONCEPTID\tMAPOPTION\tMAPPRIORITY\tMAPTARGETID\tMAPRULE\tMAPADVICE",
+        "100046\t" + ISCHEMIC_HEART_DISEASE + "\t1\t0\t10\t\t",
+        "100046\t" + MYOCARDIAL_INFARCTION + "\t1\t0\t11\t\t",
+        "100046\t" + ACUTE_MI + "\t1\t0\t12\t\t",
+        "100046\t" + OLD_MI + "\t1\t0\t11\t\t",
+        "100046\t" + DIABETES + "\t1\t0\t13\t\t");
+    final Path targets = write("targets.txt",
+        "TARGETID\tTARGETSCHEMEID\tTARGETCODES\tTARGETRULE\tTARGETADVICE",
+        "10\t2.16.840.1.113883.6.5\t414.9\t\t",
+        "11\t2.16.840.1.113883.6.5\t410.90\t\t",
+        "12\t2.16.840.1.113883.6.5\t410.01|410.11|410.01\t\t",
+        "13\t2.16.840.1.113883.6.5\t250.00|\t\t",
+        "14\t2.16.840.1.113883.6.5\t41|41.5\t\t");
+    return new SNOMEDICD9Mapper(new SNOMEDManager(SNOMEDSnapshot.open(snapshot)), targets.toString(), mappings.toString(), precomputeClosure);
+  }
+
+  private static Set<String> codes(SNOMEDICD9Mapper mapper, long conceptId) {
+    final int[] indices = mapper.codesOf(conceptId);
+    if (indices == null) {
+      return null;
+    }
+    final Set<String> codes = new HashSet<>();
+    for (int index : indices) {
+      codes.add(mapper.codes[index]);
+    }
+    return codes;
+  }
+
+  @Test
+  public void testForwardLookup() throws IOException {
+    final SNOMEDICD9Mapper mapper = mapper(false);
+    // Every distinct code is interned once, in sorted order
+    assertArrayEquals(new String[]{"250.00", "41", "41.5", "410.01", "410.11", "410.90", "414.9"}, mapper.codes);
+
+    assertEquals(ImmutableSet.of("414.9"), codes(mapper, ISCHEMIC_HEART_DISEASE));
+    assertEquals(ImmutableSet.of("410.90"), codes(mapper, MYOCARDIAL_INFARCTION));
+    assertEquals(ImmutableSet.of("410.01", "410.11"), codes(mapper, ACUTE_MI));
+    assertEquals(ImmutableSet.of("410.90"), codes(mapper, OLD_MI));
+    assertEquals(ImmutableSet.of("250.00"), codes(mapper, DIABETES));
+    assertNull(codes(mapper, UNMAPPED));
+    // Concepts sharing a map target share its code set
+    assertArrayEquals(mapper.codesOf(MYOCARDIAL_INFARCTION), mapper.codesOf(OLD_MI));
+  }
+
+  @Test
+  public void testGetICD9s() throws IOException {
+    for (boolean precompute : new boolean[]{false, true}) {
+      final SNOMEDICD9Mapper mapper = mapper(precompute);
+      assertEquals(ImmutableSet.of("414.9", "410.90", "410.01", "410.11"), mapper.getICD9s("ischemic heart disease"));
+      assertEquals(ImmutableSet.of("410.90", "410.01", "410.11"), mapper.getICD9s("myocardial infarction"));
+      assertEquals(ImmutableSet.of("410.90"), mapper.getICD9s("old myocardial infarction"));
+      assertEquals(ImmutableSet.of(), mapper.getICD9s("hypertensive disorder"));
+      assertEquals(ImmutableSet.of(), mapper.getICD9s("no such concept"));
+    }
+  }
+
+  @Test
+  public void testPrefixRanges() throws IOException {
+    final SNOMEDICD9Mapper mapper = mapper(false);
+    assertEquals(Arrays.asList("41", "41.5"), mapper.getCodes("41.*"));
+    assertEquals(Arrays.asList("41", "41.5", "410.01", "410.11", "410.90", "414.9"), mapper.getCodes("41*"));
+    assertEquals(Arrays.asList("410.01", "410.11", "410.90"), mapper.getCodes("410.*"));
+    assertEquals(Arrays.asList("410.01", "410.11", "410.90"), mapper.getCodes("410*"));
+    assertEquals(Arrays.asList("410.01"), mapper.getCodes("410.0*"));
+    assertEquals(Arrays.asList("410.90"), mapper.getCodes("410.90"));
+    assertEquals(Arrays.asList("41"), mapper.getCodes("41"));
+    assertEquals(Arrays.asList(), mapper.getCodes("410"));
+    assertEquals(Arrays.asList(), mapper.getCodes("999.*"));
+    assertEquals(Arrays.asList(), mapper.getCodes("0*"));
+    assertEquals(Arrays.asList(mapper.codes), mapper.getCodes("*"));
+  }
+
+  @Test
+  public void testReverseLookup() throws IOException {
+    final SNOMEDICD9Mapper mapper = mapper(false);
+    assertEquals(longs(MYOCARDIAL_INFARCTION, OLD_MI), mapper.getMappedConcepts("410.90"));
+    assertEquals(longs(MYOCARDIAL_INFARCTION, OLD_MI, ACUTE_MI), mapper.getMappedConcepts("410.*"));
+    assertEquals(longs(ACUTE_MI), mapper.getMappedConcepts("410.11"));
+    assertEquals(longs(), mapper.getMappedConcepts("41.*"));
+    assertEquals(longs(), mapper.getMappedConcepts("999"));
+
+    // Mapped concepts plus all of their descendants
+    assertEquals(longs(ISCHEMIC_HEART_DISEASE, MYOCARDIAL_INFARCTION, ACUTE_MI), mapper.getConcepts("414.9"));
+    assertEquals(longs(MYOCARDIAL_INFARCTION, ACUTE_MI, OLD_MI), mapper.getConcepts("410.90"));
+    assertEquals(longs(ISCHEMIC_HEART_DISEASE, MYOCARDIAL_INFARCTION, ACUTE_MI, OLD_MI), mapper.getConcepts("41*"));
+    assertEquals(longs(DIABETES), mapper.getConcepts("250.*"));
+  }
+
+  private static TLongSet longs(long... values) {
+    return new TLongHashSet(values);
+  }
+}
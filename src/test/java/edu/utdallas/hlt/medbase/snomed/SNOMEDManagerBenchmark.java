@@ -0,0 +1,95 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Measures SNOMEDManager lookup throughput as the number of threads grows.
+ *
+ * {@code lockFree} calls the manager directly.  {@code readLocked} routes the same calls through a
+ * shared {@link ReentrantReadWriteLock} read lock, which is what every lookup paid before the
+ * snapshot was published lock-free.  Requires the SNOMED release configured in medbase.snomed.
+ *
+ * Run with {@code sbt "test:runMain edu.utdallas.hlt.medbase.snomed.SNOMEDManagerBenchmark"} to
+ * sweep 1 to 16 threads, or {@code sbt "jmh:run -t 8 SNOMEDManagerBenchmark"} for one thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SNOMEDManagerBenchmark {
+  private static final String[] TERMS = {
+      "myocardial infarction", "pneumonia", "asthma", "diabetes mellitus", "hypertensive disorder",
+      "heart failure", "atrial fibrillation", "sepsis", "chronic kidney disease", "stroke",
+      "anemia", "hypothyroidism", "osteoarthritis", "depressive disorder", "pulmonary embolism"
+  };
+
+  private SNOMEDManager snomed;
+
+  private final Lock read = new ReentrantReadWriteLock().readLock();
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = 0;
+
+    String term() {
+      next = (next + 1) % TERMS.length;
+      return TERMS[next];
+    }
+  }
+
+  @Setup
+  public void setup() {
+    snomed = new SNOMEDManager();
+    // Map (or build) the snapshot outside the measurement
+    snomed.getConceptIds(TERMS[0], SNOMEDRelationshipType.IS_A, 1, SNOMEDRelationshipDirection.CHILDREN);
+  }
+
+  @TearDown
+  public void tearDown() {
+    snomed.close();
+  }
+
+  @Benchmark
+  public Set<Long> lockFree(Cursor cursor) {
+    return snomed.getConceptIds(cursor.term(), SNOMEDRelationshipType.IS_A, 1, SNOMEDRelationshipDirection.CHILDREN);
+  }
+
+  @Benchmark
+  public Set<Long> readLocked(Cursor cursor) {
+    read.lock();
+    try {
+      return snomed.getConceptIds(cursor.term(), SNOMEDRelationshipType.IS_A, 1, SNOMEDRelationshipDirection.CHILDREN);
+    } finally {
+      read.unlock();
+    }
+  }
+
+  public static void main(String... args) throws RunnerException {
+    for (int threads = 1; threads <= 16; threads *= 2) {
+      new Runner(new OptionsBuilder()
+          .include(SNOMEDManagerBenchmark.class.getSimpleName())
+          .threads(threads)
+          .build()).run();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SNOMEDManagerTests {
+  @Test
+  public void testFilterExpandedConcepts() {
+    assertEquals(ImmutableSet.of("heart", "lung"),
+        SNOMEDManager.filterExpandedConcepts(ImmutableSet.of("heart", "heart attack", "heart attack of left side", "lung", "lungs")));
+    assertEquals(ImmutableSet.of(""), SNOMEDManager.filterExpandedConcepts(ImmutableSet.of("", "a", "b")));
+
+    final Random random = new Random(7);
+    for (int size : new int[]{0, 1, 10, 100, 1000}) {
+      final Set<String> names = FilterExpandedConceptsBenchmark.names(size, random);
+      assertEquals(FilterExpandedConceptsBenchmark.pairwise(names), SNOMEDManager.filterExpandedConcepts(names));
+    }
+  }
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRebuildsTruncatedSnapshot() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("snomed.snapshot");
+    final AtomicInteger loads = new AtomicInteger();
+    final SNOMEDManager.ReleaseLoader loader = builder -> {
+      loads.incrementAndGet();
+      builder.addConcept(22298006L, "myocardial infarction");
+      builder.addConcept(414545008L, "ischemic heart disease");
+      builder.addRelation(22298006L, SNOMEDRelationshipType.IS_A.getValue(), 414545008L);
+    };
+    assertEquals(2, SNOMEDManager.openOrBuild(path, loader).size());
+    assertEquals(2, SNOMEDManager.openOrBuild(path, loader).size());
+    assertEquals(1, loads.get());
+
+    // A half-written snapshot is rebuilt rather than failing startup
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() / 2);
+    }
+    final SNOMEDSnapshot rebuilt = SNOMEDManager.openOrBuild(path, loader);
+    assertEquals(2, loads.get());
+    assertEquals("myocardial infarction", rebuilt.name(rebuilt.indexOf(22298006L)));
+  }
+}
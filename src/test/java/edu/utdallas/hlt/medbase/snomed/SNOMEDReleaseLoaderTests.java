@@ -0,0 +1,96 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SNOMEDReleaseLoaderTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path write(String name, String... lines) throws IOException {
+    final Path path = folder.getRoot().toPath().resolve(name);
+    Files.write(path, (String.join("\r\n", lines) + "\r\n").getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private SNOMEDSnapshot load(SNOMEDReleaseLoader.Format format, Path concepts, Path descriptions, Path relationships) throws IOException {
+    final SNOMEDReleaseLoader loader = new SNOMEDReleaseLoader(format, Collections.singletonList("en"));
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    loader.loadConcepts(concepts, descriptions, builder);
+    loader.loadDescriptions(descriptions, builder);
+    loader.loadRelations(relationships, builder);
+    final Path path = folder.getRoot().toPath().resolve(format + ".snapshot");
+    builder.write(path);
+    return SNOMEDSnapshot.open(path);
+  }
+
+  @Test
+  public void testRF2SkipsInactiveRows() throws IOException {
+    final SNOMEDSnapshot snapshot = load(SNOMEDReleaseLoader.Format.RF2,
+        write("concepts.txt",
+            "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId",
+            "22298006\t20020131\t1\t900000000000207008\t900000000000073002",
+            "414545008\t20020131\t1\t900000000000207008\t900000000000074008",
+            "999999001\t20020131\t0\t900000000000207008\t900000000000074008",
+            "57054005\t20020131\t1\t900000000000207008\t900000000000074008"),
+        write("descriptions.txt",
+            "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId",
+            "1\t20020131\t1\t0\t22298006\ten\t900000000000003001\tMyocardial infarction (disorder)\t0",
+            "2\t20020131\t1\t0\t22298006\ten\t900000000000013009\tHeart attack\t0",
+            "3\t20020131\t0\t0\t22298006\ten\t900000000000013009\tCardiac infarction\t0",
+            "4\t20020131\t1\t0\t22298006\tes\t900000000000013009\tInfarto\t0",
+            "5\t20020131\t0\t0\t414545008\ten\t900000000000003001\tOld name (disorder)\t0",
+            "6\t20020131\t1\t0\t414545008\ten\t900000000000003001\tIschemic heart disease (disorder)\t0",
+            "7\t20020131\t1\t0\t999999001\ten\t900000000000003001\tRetired (disorder)\t0"),
+        write("relationships.txt",
+            "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId",
+            "1\t20020131\t1\t0\t22298006\t414545008\t0\t116680003\t0\t0",
+            "2\t20020131\t0\t0\t57054005\t414545008\t0\t116680003\t0\t0"));
+
+    // The inactive concept is dropped; the active one without a name is kept, unnamed
+    assertEquals(3, snapshot.size());
+    assertEquals(-1, snapshot.indexOf(999999001L));
+    final int mi = snapshot.indexOf(22298006L);
+    assertEquals("myocardial infarction", snapshot.name(mi));
+    assertEquals("ischemic heart disease", snapshot.name(snapshot.indexOf(414545008L)));
+    assertEquals("", snapshot.name(snapshot.indexOf(57054005L)));
+    assertArrayEquals(new int[]{mi}, snapshot.lookup("heart attack"));
+    assertEquals(0, snapshot.lookup("cardiac infarction").length);
+    assertEquals(0, snapshot.lookup("infarto").length);
+    assertEquals(1, snapshot.relationCount());
+  }
+
+  @Test
+  public void testRF1() throws IOException {
+    final SNOMEDSnapshot snapshot = load(SNOMEDReleaseLoader.Format.RF1,
+        write("concepts.txt",
+            "CONCEPTID\tCONCEPTSTATUS\tFULLYSPECIFIEDNAME\tCTV3ID\tSNOMEDID\tISPRIMITIVE",
+            "22298006\t0\tMyocardial infarction (disorder)\tX200E\tD3-15000\t0",
+            "414545008\t0\tIschemic heart disease (disorder)\tXaIwm\tD3-13040\t1"),
+        write("descriptions.txt",
+            "DESCRIPTIONID\tDESCRIPTIONSTATUS\tCONCEPTID\tTERM\tINITIALCAPITALSTATUS\tDESCRIPTIONTYPE\tLANGUAGECODE",
+            "1\t0\t22298006\tHeart attack\t0\t2\ten",
+            "2\t1\t22298006\tCardiac infarction\t0\t2\ten",
+            "3\t0\t22298006\tMyocardial infarction (disorder)\t0\t3\ten"),
+        write("relationships.txt",
+            "RELATIONSHIPID\tCONCEPTID1\tRELATIONSHIPTYPE\tCONCEPTID2\tCHARACTERISTICTYPE\tREFINABILITY\tRELATIONSHIPGROUP",
+            "1\t22298006\t116680003\t414545008\t0\t0\t0"));
+
+    final int mi = snapshot.indexOf(22298006L);
+    assertEquals(2, snapshot.size());
+    assertArrayEquals(new int[]{mi}, snapshot.lookup("heart attack"));
+    assertEquals(0, snapshot.lookup("cardiac infarction").length);
+    // The fully specified name and one description
+    assertEquals(2, snapshot.terms(mi).length);
+    assertEquals(1, snapshot.relationCount());
+  }
+}
@@ -0,0 +1,184 @@
+package edu.utdallas.hlt.medbase.snomed;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SNOMEDSnapshotTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private SNOMEDSnapshot build() throws IOException {
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    builder.addConcept(22298006L, "myocardial infarction");
+    builder.addConcept(57054005L, "acute myocardial infarction");
+    builder.addConcept(414545008L, "ischemic heart disease");
+    builder.addConcept(1L, "mi");
+    builder.addConcept(2L, "mi");
+    builder.addDescription(22298006L, "heart attack");
+    builder.addDescription(22298006L, "mi");
+    builder.addDescription(12345L, "unknown");
+    builder.addRelation(22298006L, SNOMEDRelationshipType.IS_A.getValue(), 414545008L);
+    builder.addRelation(57054005L, SNOMEDRelationshipType.IS_A.getValue(), 22298006L);
+    builder.addRelation(57054005L, SNOMEDRelationshipType.FINDING_SITE.getValue(), 80891009L);
+    final Path path = folder.getRoot().toPath().resolve("snomed.snapshot");
+    builder.write(path);
+    return SNOMEDSnapshot.open(path);
+  }
+
+  @Test
+  public void testConcepts() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    // The relation endpoint 80891009 is not a named concept but is still addressable
+    assertEquals(6, snapshot.size());
+    assertEquals("acute myocardial infarction", snapshot.name(snapshot.indexOf(57054005L)));
+    assertEquals("", snapshot.name(snapshot.indexOf(80891009L)));
+    assertEquals(-1, snapshot.indexOf(12345L));
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    assertArrayEquals(new int[]{snapshot.indexOf(22298006L)}, snapshot.lookup("myocardial infarction"));
+    assertEquals(0, snapshot.lookup("myocardial").length);
+  }
+
+  @Test
+  public void testFindTerm() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    assertArrayEquals(snapshot.lookup("myocardial infarction"), snapshot.lookupName("Myocardial Infarction (disorder)"));
+    assertArrayEquals(snapshot.lookup("mi"), snapshot.lookupName(new StringBuilder("MI")));
+    for (String name : new String[]{"mi", "MI (x)", "(mi)", "heart attack", "Heart attack (finding)", "heart",
+                                    "Ischemic heart disease", "", "acute myocardial infarction (", "x(y)", "caf\u00e9"}) {
+      assertEquals(name, snapshot.termId(SNOMEDManager.getParsedName(name)), snapshot.findTerm(name));
+    }
+  }
+
+  @Test
+  public void testDescriptions() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    final int mi = snapshot.indexOf(22298006L);
+    assertArrayEquals(new int[]{mi}, snapshot.lookup("heart attack"));
+    assertArrayEquals(new int[]{snapshot.indexOf(1L), snapshot.indexOf(2L), mi}, snapshot.lookup("mi"));
+    // Names are still the fully specified name, and each distinct term is pooled once
+    assertEquals("myocardial infarction", snapshot.name(mi));
+    assertEquals(3, snapshot.terms(mi).length);
+    assertEquals(5, snapshot.termCount());
+    assertEquals(-1, snapshot.termId("unknown"));
+  }
+
+  @Test
+  public void testGraph() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    final SNOMEDGraph graph = snapshot.graph();
+    assertEquals(3, graph.edgeCount());
+    final int isA = graph.typeIndex(SNOMEDRelationshipType.IS_A);
+    final int mi = snapshot.indexOf(22298006L), acute = snapshot.indexOf(57054005L);
+
+    final long parents = graph.neighbors(acute, isA, SNOMEDRelationshipDirection.PARENTS);
+    assertEquals(1, SNOMEDGraph.end(parents) - SNOMEDGraph.start(parents));
+    assertEquals(mi, graph.target(SNOMEDRelationshipDirection.PARENTS, SNOMEDGraph.start(parents)));
+
+    final TIntArrayList ancestors = new TIntArrayList();
+    graph.traverse(acute, isA, 1, SNOMEDRelationshipDirection.PARENTS, ancestors);
+    assertEquals(new TIntArrayList(new int[]{mi}), ancestors);
+    ancestors.clear();
+    graph.traverse(acute, isA, 5, SNOMEDRelationshipDirection.PARENTS, ancestors);
+    assertEquals(new TIntArrayList(new int[]{mi, snapshot.indexOf(414545008L)}), ancestors);
+
+    final TIntArrayList descendants = new TIntArrayList();
+    graph.traverse(snapshot.indexOf(414545008L), isA, 5, SNOMEDRelationshipDirection.CHILDREN, descendants);
+    assertEquals(new TIntArrayList(new int[]{mi, acute}), descendants);
+
+    assertEquals(-1, graph.typeIndex(SNOMEDRelationshipType.PART_OF));
+  }
+
+  @Test
+  public void testHierarchy() throws IOException {
+    final SNOMEDSnapshot snapshot = build();
+    final SNOMEDHierarchy hierarchy = snapshot.hierarchy();
+    final int ihd = snapshot.indexOf(414545008L), mi = snapshot.indexOf(22298006L), acute = snapshot.indexOf(57054005L);
+    assertTrue(hierarchy.isDescendant(acute, ihd));
+    assertTrue(hierarchy.isDescendant(mi, ihd));
+    assertFalse(hierarchy.isDescendant(ihd, acute));
+    // FINDING_SITE is not part of the hierarchy
+    assertFalse(hierarchy.isDescendant(acute, snapshot.indexOf(80891009L)));
+
+    final long children = hierarchy.descendants(ihd, 1);
+    assertEquals(1, SNOMEDGraph.end(children) - SNOMEDGraph.start(children));
+    assertEquals(mi, hierarchy.descendant(SNOMEDGraph.start(children)));
+
+    // Same result as traversing the graph
+    final int isA = snapshot.graph().typeIndex(SNOMEDRelationshipType.IS_A);
+    for (SNOMEDRelationshipDirection direction : SNOMEDRelationshipDirection.values()) {
+      for (int concept = 0; concept < snapshot.size(); concept++) {
+        final TIntHashSet traversed = new TIntHashSet(), collected = new TIntHashSet();
+        snapshot.graph().traverse(concept, isA, 2, direction, traversed);
+        hierarchy.collect(concept, 2, direction, collected);
+        assertEquals(traversed, collected);
+      }
+    }
+  }
+
+  @Test
+  public void testIsDescendantMatchesAncestors() throws IOException {
+    // A random DAG: each concept is IS_A up to three earlier concepts
+    final Random random = new Random(5);
+    final SNOMEDSnapshot.Builder builder = new SNOMEDSnapshot.Builder();
+    final int n = 300;
+    for (int i = 0; i < n; i++) {
+      builder.addConcept(1000L + i, "concept " + i);
+      for (int j = i == 0 ? 0 : random.nextInt(4); j > 0; j--) {
+        builder.addRelation(1000L + i, SNOMEDRelationshipType.IS_A.getValue(), 1000L + random.nextInt(i));
+      }
+    }
+    final Path path = folder.getRoot().toPath().resolve("dag.snapshot");
+    builder.write(path);
+    final SNOMEDSnapshot snapshot = SNOMEDSnapshot.open(path);
+    final SNOMEDHierarchy hierarchy = snapshot.hierarchy();
+    for (int concept = 0; concept < n; concept++) {
+      final TIntHashSet ancestors = new TIntHashSet();
+      hierarchy.collect(concept, SNOMEDHierarchy.MAX_DEPTH, SNOMEDRelationshipDirection.PARENTS, ancestors);
+      for (int other = 0; other < n; other++) {
+        assertEquals(concept + " < " + other, ancestors.contains(other), hierarchy.isDescendant(concept, other));
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsOtherFiles() throws IOException {
+    final Path path = folder.newFile("snomed.ser").toPath();
+    Files.write(path, new byte[64]);
+    SNOMEDSnapshot.open(path);
+  }
+
+  @Test
+  public void testRejectsTruncatedSnapshot() throws IOException {
+    build();
+    final Path path = folder.getRoot().toPath().resolve("snomed.snapshot");
+    final byte[] bytes = Files.readAllBytes(path);
+    final Path truncated = folder.getRoot().toPath().resolve("truncated.snapshot");
+    for (int length = 0; length < bytes.length; length++) {
+      Files.write(truncated, Arrays.copyOf(bytes, length));
+      try {
+        SNOMEDSnapshot.open(truncated);
+        fail("Opened a snapshot truncated to " + length + " of " + bytes.length + " bytes");
+      } catch (IOException expected) {
+      }
+    }
+  }
+}
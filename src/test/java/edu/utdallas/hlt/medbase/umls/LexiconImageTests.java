@@ -0,0 +1,66 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LexiconImageTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testImage() throws IOException {
+    final Path mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+    Files.write(mrconso, Arrays.asList("C0027051|ENG|P|..."), StandardCharsets.UTF_8);
+    final LexiconImage.Builder builder = new LexiconImage.Builder();
+    final List<String> phrases = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      phrases.add("|heart|attack|" + (char) ('a' + i % 26) + i + "|");
+      builder.add(phrases.get(i), 1000 + i);
+    }
+    builder.add("|heart|attack|a0|", 7);
+    final Path path = folder.getRoot().toPath().resolve("lexicon.image");
+    builder.write(path, mrconso, "ENG");
+
+    final LexiconImage image = LexiconImage.openIfCurrent(path, mrconso, "ENG");
+    assertNotNull(image);
+    assertEquals(40, image.size());
+    final List<String> decoded = new ArrayList<>();
+    image.forEach((id, phrase) -> {
+      decoded.add(phrase);
+      final int i = phrases.indexOf(phrase);
+      assertArrayEquals(i == 0 ? new int[]{7, 1000} : new int[]{1000 + i}, image.cuis(id));
+    });
+    final List<String> sorted = new ArrayList<>(phrases);
+    sorted.sort(null);
+    assertEquals(sorted, decoded);
+
+    // Stale images are detected
+    assertNull(LexiconImage.openIfCurrent(path, mrconso, "ENG, SNOMEDCT_US"));
+    // Touched but unchanged: checksummed once, then its new modification time is recorded
+    Files.setLastModifiedTime(mrconso, FileTime.fromMillis(0));
+    assertNotNull(LexiconImage.openIfCurrent(path, mrconso, "ENG"));
+    assertEquals(0, LexiconImage.open(path).source.modified);
+    assertNotNull(LexiconImage.openIfCurrent(path, mrconso, "ENG"));
+    Files.write(mrconso, Arrays.asList("C0027052|ENG|P|..."), StandardCharsets.UTF_8);
+    assertNull(LexiconImage.openIfCurrent(path, mrconso, "ENG"));
+
+    // Without MRCONSO, an image compiled with the same filter is trusted
+    Files.delete(mrconso);
+    assertNotNull(LexiconImage.openIfCurrent(path, mrconso, "ENG"));
+    assertNull(LexiconImage.openIfCurrent(path, mrconso, "ENG, SNOMEDCT_US"));
+  }
+}
@@ -0,0 +1,48 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MRCONSOReaderTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<String> read(MRCONSOReader.Filter filter) throws IOException {
+    final Path mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+    if (!Files.exists(mrconso)) {
+      Files.write(mrconso, Arrays.asList(
+          "C0027051|ENG|P|L0027051|PF|S0064404|Y|A0090524||||MSH|MH|D009203|Myocardial Infarction|0|N|256|",
+          "C0027051|ENG|S|L0018744|PF|S0047120|N|A0066378||||SNOMEDCT_US|SY|22298006|Heart attack|0|N|512|",
+          "C0027051|GER|P|L1234567|PF|S1234567|Y|A1234567||||MSHGER|MH|D009203|Myokardinfarkt|3|N||",
+          "C0155626|ENG|P|L0155626|PF|S0219473|Y|A0252542||||SNOMEDCT_US|PT|57054005|Acute MI|0|O|512|"),
+          StandardCharsets.UTF_8);
+    }
+    final List<String> names = new ArrayList<>();
+    for (List<String> chunk : new MRCONSOReader(mrconso, filter).read(ArrayList<String>::new,
+        (record, accumulator) -> accumulator.add(record.cui() + ":" + record.string()))) {
+      names.addAll(chunk);
+    }
+    return names;
+  }
+
+  @Test
+  public void testFilters() throws IOException {
+    final MRCONSOReader.Filter english = MRCONSOReader.Filter.all().withLanguages("ENG");
+    assertEquals(4, read(MRCONSOReader.Filter.all()).size());
+    assertEquals(3, read(english).size());
+    assertEquals(Arrays.asList("C0027051:Heart attack", "C0155626:Acute MI"), read(english.withSources("SNOMEDCT_US", "RXNORM")));
+    assertEquals(Arrays.asList("C0155626:Acute MI"), read(english.withTermTypes("PT")));
+    assertEquals(Arrays.asList("C0027051:Myocardial Infarction", "C0027051:Heart attack"), read(english.withSuppress("N")));
+    assertEquals(Arrays.asList("C0027051:Heart attack"), read(english.withTermStatuses("S")));
+  }
+}
@@ -0,0 +1,87 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PhraseAutomatonTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<String> matches(PhraseAutomaton automaton, String text) {
+    final List<String> matches = new ArrayList<>();
+    automaton.match(text, (start, end, phrase) -> matches.add(start + ":" + text.substring(start, end)));
+    Collections.sort(matches);
+    return matches;
+  }
+
+  @Test
+  public void testMatch() throws IOException {
+    final PhraseAutomaton.Builder builder = new PhraseAutomaton.Builder()
+        .add("|heart|", 18787)
+        .add("|heart|attack|", 27051)
+        .add("|attack|", 1)
+        .add("|heart|attack|", 155626)
+        .add("|heart|attack|", 27051);
+    final Path path = folder.getRoot().toPath().resolve("lexicon.automaton");
+    builder.write(path);
+    for (PhraseAutomaton automaton : new PhraseAutomaton[]{builder.build(), PhraseAutomaton.open(path)}) {
+      assertEquals(3, automaton.phraseCount());
+      assertEquals("|heart|attack|".length(), automaton.maxLength());
+      assertEquals("|heart|attack|".length(), automaton.maxLength());
+      final String text = "|a|heart|attack|and|heart|";
+      assertEquals(listOf("2:|heart|", "8:|attack|", "2:|heart|attack|", "19:|heart|"), matches(automaton, text));
+      final List<int[]> cuis = new ArrayList<>();
+      automaton.match("|heart|attack|", (start, end, phrase) -> cuis.add(automaton.cuis(phrase)));
+      assertArrayEquals(new int[]{18787}, cuis.get(0));
+      assertArrayEquals(new int[]{27051, 155626}, cuis.get(1));
+    }
+  }
+
+  private static List<String> listOf(String... values) {
+    final List<String> list = new ArrayList<>();
+    Collections.addAll(list, values);
+    Collections.sort(list);
+    return list;
+  }
+
+  @Test
+  public void testMatchesNaiveSearch() {
+    final Random random = new Random(42);
+    final PhraseAutomaton.Builder builder = new PhraseAutomaton.Builder();
+    final List<String> phrases = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      final String phrase = randomString(random, 1 + random.nextInt(5));
+      phrases.add(phrase);
+      builder.add(phrase, i);
+    }
+    final PhraseAutomaton automaton = builder.build();
+    final String text = randomString(random, 5000);
+    final Set<String> expected = new TreeSet<>();
+    for (String phrase : phrases) {
+      for (int i = text.indexOf(phrase); i >= 0; i = text.indexOf(phrase, i + 1)) {
+        expected.add(i + ":" + phrase);
+      }
+    }
+    assertEquals(new ArrayList<>(expected), matches(automaton, text));
+  }
+
+  private static String randomString(Random random, int length) {
+    final StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(3)));
+    }
+    return sb.toString();
+  }
+}
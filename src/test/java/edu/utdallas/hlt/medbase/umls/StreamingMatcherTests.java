@@ -0,0 +1,59 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingMatcherTests {
+  private static final PhraseAutomaton AUTOMATON = new PhraseAutomaton.Builder()
+      .add("|heart|", 18787)
+      .add("|heart|attack|", 27051)
+      .add("|attack|", 1)
+      .build();
+
+  private static List<String> matches(String text, int chunk) {
+    final List<String> matches = new ArrayList<>();
+    final StreamingMatcher matcher = new StreamingMatcher(AUTOMATON, (start, end, phrase) ->
+        matches.add(start + ":" + text.substring((int) start, (int) end)));
+    for (int i = 0; i < text.length(); i += chunk) {
+      matcher.feed(text.subSequence(i, Math.min(text.length(), i + chunk)));
+    }
+    matcher.finish();
+    Collections.sort(matches);
+    return matches;
+  }
+
+  @Test
+  public void testNormalizesText() {
+    // "attack," is not a word of the lexicon
+    assertEquals(listOf("4:Heart", "20:heart"), matches("  A Heart\n\t ATTACK, heart", 100));
+    assertEquals(listOf("4:Heart", "4:Heart\n\t ATTACK", "12:ATTACK"), matches("  A Heart\n\t ATTACK ", 100));
+  }
+
+  @Test
+  public void testMatchesAcrossChunks() throws IOException {
+    final String text = "a heart attack and\nheart";
+    final List<String> expected = listOf("2:heart", "2:heart attack", "8:attack", "19:heart");
+    for (int chunk = 1; chunk <= text.length(); chunk++) {
+      assertEquals("chunk " + chunk, expected, matches(text, chunk));
+    }
+    final List<String> matches = new ArrayList<>();
+    new StreamingMatcher(AUTOMATON, (start, end, phrase) -> matches.add(start + ":" + text.substring((int) start, (int) end)))
+        .match(new StringReader(text));
+    Collections.sort(matches);
+    assertEquals(expected, matches);
+  }
+
+  private static List<String> listOf(String... values) {
+    final List<String> list = new ArrayList<>();
+    Collections.addAll(list, values);
+    Collections.sort(list);
+    return list;
+  }
+}
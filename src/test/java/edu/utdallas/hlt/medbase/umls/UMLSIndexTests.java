@@ -0,0 +1,105 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UMLSIndexTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testBuildFromMRCONSO() throws IOException {
+    final Path mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+    Files.write(mrconso, Arrays.asList(
+        "C0027051|ENG|P|L0027051|PF|S0064404|Y|A0090524||||MSH|MH|D009203|Myocardial Infarction|0|N||",
+        "C0027051|ENG|S|L0018744|PF|S0047120|N|A0066378||||MSH|EN|D009203|Heart Attack|0|N||",
+        "C0027051|GER|P|L1234567|PF|S1234567|Y|A1234567||||MSHGER|MH|D009203|Myokardinfarkt|3|N||",
+        "C0155626|ENG|P|L0155626|PF|S0219473|Y|A0252542||||MSH|EN|D009203|Acute myocardial infarction|0|N||",
+        "C0155626|ENG|P|L0027051|PF|S0064404|Y|A0090525||||SNOMEDCT|SY|57054005|Myocardial infarction|0|N||"),
+        StandardCharsets.UTF_8);
+    final Path path = folder.getRoot().toPath().resolve("umls.index");
+    UMLSIndex.build(mrconso, path);
+
+    final UMLSIndex index = UMLSIndex.open(path);
+    assertEquals(3, index.phraseCount());
+    assertEquals(2, index.cuiCount());
+    assertEquals(ImmutableSet.of("C0027051", "C0155626"), index.getIds("myocardial infarction"));
+    assertEquals(ImmutableSet.of("myocardial infarction", "heart attack"), index.getPhrases("C0027051"));
+    assertTrue(index.getIds("myokardinfarkt").isEmpty());
+    assertTrue(index.getPhrases("C0000000").isEmpty());
+    assertArrayEquals(new int[]{27051, 155626}, index.getCuis("myocardial infarction"));
+  }
+
+  @Test
+  public void testOpenIfCurrent() throws IOException {
+    final Path mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+    final String row = "C0027051|ENG|P|L0027051|PF|S0064404|Y|A0090524||||MSH|MH|D009203|Myocardial Infarction|0|N||";
+    Files.write(mrconso, Arrays.asList(row), StandardCharsets.UTF_8);
+    final Path path = folder.getRoot().toPath().resolve("umls.index");
+    final MRCONSOReader.Filter filter = MRCONSOReader.Filter.all().withLanguages("ENG");
+    assertNull(UMLSIndex.openIfCurrent(path, mrconso, filter.toString()));
+    UMLSIndex.build(mrconso, filter, path);
+
+    assertNotNull(UMLSIndex.openIfCurrent(path, mrconso, filter.toString()));
+    assertNull(UMLSIndex.openIfCurrent(path, mrconso, filter.withSources("MSH").toString()));
+
+    // Same size and contents, but touched: re-checksummed and still current
+    Files.setLastModifiedTime(mrconso, FileTime.fromMillis(Files.getLastModifiedTime(mrconso).toMillis() + 60_000));
+    assertNotNull(UMLSIndex.openIfCurrent(path, mrconso, filter.toString()));
+    // Same size, other contents
+    Files.write(mrconso, Arrays.asList(row.replace("Infarction", "Infarctiom")), StandardCharsets.UTF_8);
+    Files.setLastModifiedTime(mrconso, FileTime.fromMillis(Files.getLastModifiedTime(mrconso).toMillis() + 120_000));
+    assertNull(UMLSIndex.openIfCurrent(path, mrconso, filter.toString()));
+
+    // Without MRCONSO, an index built with the same filter is trusted
+    Files.delete(mrconso);
+    assertNotNull(UMLSIndex.openIfCurrent(path, mrconso, filter.toString()));
+    assertNull(UMLSIndex.openIfCurrent(path, mrconso, filter.withSources("MSH").toString()));
+  }
+
+  @Test
+  public void testCuiCodec() {
+    assertEquals(27051, CUI.encode("C0027051"));
+    assertEquals("C0027051", CUI.decode(27051));
+    assertEquals("C9999999", CUI.decode(CUI.encode("C9999999")));
+    assertFalse(CUI.isValid("C002705"));
+    assertFalse(CUI.isValid("D0027051"));
+    assertFalse(CUI.isValid("C00270X1"));
+  }
+
+  @Test
+  public void testCuiSetView() {
+    final Set<String> cuis = CUI.asSet(new int[]{11849, 27051, 155626});
+    assertEquals(3, cuis.size());
+    assertEquals(Arrays.asList("C0011849", "C0027051", "C0155626"), new ArrayList<>(cuis));
+    assertEquals(ImmutableSet.of("C0011849", "C0027051", "C0155626"), cuis);
+    assertTrue(cuis.contains("C0027051"));
+    assertFalse(cuis.contains("C0000000"));
+    assertFalse(cuis.contains("C00270"));
+    assertFalse(cuis.contains(27051));
+    assertTrue(CUI.asSet(new int[0]).isEmpty());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testCuiSetViewIsUnmodifiable() {
+    CUI.asSet(new int[]{27051}).add("C0011849");
+  }
+}
@@ -0,0 +1,80 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UMLSLexiconTests {
+  private static final UMLSLexicon LEXICON = new UMLSLexicon(new PhraseAutomaton.Builder()
+      .add("|heart|", 18787)
+      .add("|heart|attack|", 27051)
+      .add("|myocardial|infarction|", 27051)
+      .add("|attack|", 1)
+      .build());
+
+  private static final String[] WORDS = {"heart", "Heart", "attack", "myocardial", "infarction", "acute", "a", "of"};
+
+  /** @return the mentions found in the given text as "start-end:phrase", in order */
+  private static String mentions(CharSequence text) {
+    final UMLSLexicon.Buffers buffers = LEXICON.find(text);
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < buffers.phrases.size(); i++) {
+      sb.append(buffers.starts.getQuick(i)).append('-').append(buffers.ends.getQuick(i)).append(':')
+          .append(buffers.phrases.getQuick(i)).append(' ');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testParallelMatchesSequential() throws InterruptedException {
+    final Random random = new Random(7);
+    final List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      final StringBuilder text = new StringBuilder();
+      for (int j = random.nextInt(40); j > 0; j--) {
+        text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? " " : "\n ");
+      }
+      texts.add(text.toString());
+    }
+    final List<String> sequential = new ArrayList<>();
+    for (String text : texts) {
+      sequential.add(mentions(text));
+    }
+    assertTrue(sequential.get(0).contains(":"));
+
+    final Map<Integer, String> parallel = new ConcurrentHashMap<>();
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    UMLSLexicon.forEach(IntStream.range(0, texts.size()).boxed(), pool, i -> parallel.put(i, mentions(texts.get(i))));
+    assertTrue(pool.isShutdown());
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    for (int i = 0; i < texts.size(); i++) {
+      assertEquals(texts.get(i), sequential.get(i), parallel.get(i));
+    }
+  }
+
+  @Test
+  public void testPoolShutDownOnFailure() {
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      UMLSLexicon.forEach(IntStream.range(0, 100).boxed(), pool, i -> {
+        if (i == 42) {
+          throw new IllegalStateException("failed");
+        }
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+      assertTrue(pool.isShutdown());
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UMLSManagerTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path mrconso() throws IOException {
+    final Path mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+    Files.write(mrconso, Arrays.asList(
+        "C0027051|ENG|P|L0027051|PF|S0064404|Y|A0090524||||MSH|MH|D009203|Myocardial Infarction|0|N||",
+        "C0027051|ENG|S|L0018744|PF|S0047120|N|A0066378||||MSH|EN|D009203|Heart Attack|0|N||",
+        "C0155626|ENG|P|L0155626|PF|S0219473|Y|A0252542||||MSH|EN|D009203|Acute myocardial infarction|0|N||",
+        "C0155626|ENG|P|L0027051|PF|S0064404|Y|A0090525||||SNOMEDCT|SY|57054005|Myocardial infarction|0|N||",
+        "C0011849|ENG|P|L0011849|PF|S0035218|Y|A0047855||||MSH|MH|D003920|Diabetes Mellitus|0|N||"),
+        StandardCharsets.UTF_8);
+    return mrconso;
+  }
+
+  private UMLSManager manager(Path mrconso, long cacheSize) {
+    final Path root = folder.getRoot().toPath();
+    return new UMLSManager(mrconso.toString(), root.resolve("umls.cache").toString(), root.resolve("umls.index").toString(), cacheSize);
+  }
+
+  @Test
+  public void testCachedLookups() throws IOException {
+    final Path mrconso = mrconso();
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      assertArrayEquals(new int[]{27051, 155626}, umls.getCuis("myocardial infarction"));
+      assertEquals(ImmutableSet.of("C0027051", "C0155626"), umls.getIds("myocardial infarction"));
+      assertEquals(ImmutableSet.of(), umls.getIds("no such phrase"));
+      assertEquals(1, umls.getPhraseCacheStats().hitCount());
+      assertEquals(2, umls.getPhraseCacheStats().missCount());
+
+      assertEquals(ImmutableSet.of("myocardial infarction", "heart attack"), umls.getPhrases("C0027051"));
+      assertEquals(ImmutableSet.of("myocardial infarction", "heart attack"), umls.getPhrases(27051));
+      assertEquals(ImmutableSet.of(), umls.getPhrases("not a CUI"));
+      assertEquals(1, umls.getIdCacheStats().hitCount());
+      assertEquals(1, umls.getIdCacheStats().missCount());
+
+      assertEquals(ImmutableSet.of("myocardial infarction", "heart attack", "acute myocardial infarction"),
+          umls.getExpansions("Myocardial Infarction"));
+    }
+
+    // Entries cached by the last run are replayed from the cache log
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      assertEquals(ImmutableSet.of("C0027051", "C0155626"), umls.getIds("myocardial infarction"));
+      assertEquals(ImmutableSet.of(), umls.getIds("no such phrase"));
+      assertEquals(ImmutableSet.of("myocardial infarction", "heart attack"), umls.getPhrases(27051));
+      assertEquals(0, umls.getPhraseCacheStats().missCount());
+      assertEquals(0, umls.getIdCacheStats().missCount());
+    }
+  }
+
+  @Test
+  public void testCompactionKeepsEvictedEntries() throws IOException {
+    final Path mrconso = mrconso();
+    try (UMLSManager umls = manager(mrconso, 1)) {
+      for (String phrase : new String[]{"myocardial infarction", "heart attack", "diabetes mellitus", "heart attack"}) {
+        umls.getCuis(phrase);
+      }
+      // Only one phrase is held in memory, but the log still knows all three
+      umls.compactCacheLog();
+    }
+
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      assertArrayEquals(new int[]{27051, 155626}, umls.getCuis("myocardial infarction"));
+      assertArrayEquals(new int[]{27051}, umls.getCuis("heart attack"));
+      assertArrayEquals(new int[]{11849}, umls.getCuis("diabetes mellitus"));
+      assertEquals(0, umls.getPhraseCacheStats().missCount());
+    }
+  }
+
+  @Test
+  public void testRebuildsStaleIndex() throws IOException {
+    final Path mrconso = mrconso();
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      assertArrayEquals(new int[0], umls.getCuis("heart failure"));
+    }
+    Files.write(mrconso, Arrays.asList(
+        "C0018801|ENG|P|L0018801|PF|S0046333|Y|A0066031||||MSH|MH|D006333|Heart Failure|0|N||"),
+        StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    // The cached miss is discarded along with the rebuilt index
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      assertArrayEquals(new int[]{18801}, umls.getCuis("heart failure"));
+      assertArrayEquals(new int[]{27051}, umls.getCuis("heart attack"));
+    }
+  }
+
+  @Test
+  public void testPersistsConcurrentMisses() throws IOException, InterruptedException {
+    final Path mrconso = mrconso();
+    final String[] phrases = {"myocardial infarction", "heart attack", "diabetes mellitus", "acute myocardial infarction"};
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      final ExecutorService pool = Executors.newFixedThreadPool(4);
+      for (int i = 0; i < 100; i++) {
+        final String phrase = phrases[i % phrases.length];
+        pool.execute(() -> umls.getPhrases(umls.getCuis(phrase)[0]));
+      }
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+      assertEquals(phrases.length, umls.getPhraseCacheStats().missCount());
+    }
+
+    // Every miss was persisted once the manager was closed
+    try (UMLSManager umls = manager(mrconso, 100)) {
+      for (String phrase : phrases) {
+        umls.getPhrases(umls.getCuis(phrase)[0]);
+      }
+      assertEquals(0, umls.getPhraseCacheStats().missCount());
+      assertEquals(0, umls.getIdCacheStats().missCount());
+    }
+  }
+}
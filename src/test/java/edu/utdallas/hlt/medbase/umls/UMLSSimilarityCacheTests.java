@@ -0,0 +1,127 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.utdallas.hlt.medbase.umls.UMLSSimilarityFactory.Similarity;
+import edu.utdallas.hlt.medbase.umls.UMLSSimilarityFactory.UMLSMetric;
+import edu.utdallas.hltri.struct.Pair;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class UMLSSimilarityCacheTests {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private UMLSSimilarityFactoryTests.StubServer server;
+  private UMLSSimilarityFactory                 factory;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new UMLSSimilarityFactoryTests.StubServer();
+    new Thread(server).start();
+    factory = new UMLSSimilarityFactory(InetAddress.getLoopbackAddress(), server.server.getLocalPort());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.server.close();
+  }
+
+  @Test
+  public void testSymmetricKeys() {
+    final Path path = folder.getRoot().toPath().resolve("similarity.log");
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 100);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 1);
+         UMLSMetric vector = factory.getUMLSSimilarity(Similarity.CONTEXT_VECTOR, 1)) {
+      // The stub scores (t1, t2) as len(t1) * 100 + len(t2), so order matters to it
+      assertEquals(102, cache.apply(lin, "a", "bb"), 0);
+      assertEquals(102, cache.apply(lin, "bb", "a"), 0);
+      assertEquals(102, cache.apply(vector, "a", "bb"), 0);
+      assertEquals(201, cache.apply(vector, "bb", "a"), 0);
+      assertEquals(3, server.requests.get());
+      assertEquals(1, cache.getStats().hitCount());
+    }
+  }
+
+  @Test
+  public void testPersistsAndWarmsUp() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("similarity.log");
+    final Path pairs = folder.getRoot().toPath().resolve("pairs.txt");
+    Files.write(pairs, Arrays.asList("a bb", "bb\ta", "", "ccc a", "a"), StandardCharsets.UTF_8);
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 100);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 2)) {
+      assertEquals(2, cache.warmUp(lin, pairs));
+      assertEquals(0, cache.warmUp(lin, pairs));
+    }
+    assertEquals(2, server.requests.get());
+
+    final List<Pair<String, String>> bulk = new ArrayList<>();
+    bulk.add(Pair.of("bb", "a"));
+    bulk.add(Pair.of("dddd", "a"));
+    bulk.add(Pair.of("a", "ccc"));
+    bulk.add(Pair.of("a", "dddd"));
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 100);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 2)) {
+      // A symmetric score is computed in the order the pair is first seen in, and shared with its reverse
+      assertArrayEquals(new double[]{102, 401, 301, 401}, cache.apply(lin, bulk), 0);
+      assertEquals(2, cache.getStats().hitCount());
+    }
+    assertEquals(3, server.requests.get());
+  }
+
+  @Test
+  public void testCompactionKeepsEvictedScores() throws IOException {
+    final Path path = folder.getRoot().toPath().resolve("similarity.log");
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 1);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 1)) {
+      for (String term : new String[]{"a", "bb", "ccc", "bb"}) {
+        cache.apply(lin, term, "x");
+      }
+      // At most one score is held in memory, but the log still knows all three
+      cache.compactCacheLog();
+    }
+    final int requests = server.requests.get();
+
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 100);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 1)) {
+      assertEquals(101, cache.apply(lin, "a", "x"), 0);
+      assertEquals(201, cache.apply(lin, "x", "bb"), 0);
+      assertEquals(301, cache.apply(lin, "ccc", "x"), 0);
+      assertEquals(3, cache.getStats().hitCount());
+    }
+    assertEquals(requests, server.requests.get());
+  }
+
+  @Test
+  public void testNormalizesKeys() {
+    assertEquals("lin c0027051 heart attack", UMLSSimilarityCache.key(Similarity.LIN, " Heart Attack\t", "C0027051"));
+    assertEquals("lin c0027051 heart attack", UMLSSimilarityCache.key(Similarity.LIN, "c0027051 ", "heart attack"));
+    assertEquals("vector heart attack c0027051", UMLSSimilarityCache.key(Similarity.CONTEXT_VECTOR, "HEART ATTACK", " C0027051"));
+
+    final Path path = folder.getRoot().toPath().resolve("similarity.log");
+    try (UMLSSimilarityCache cache = new UMLSSimilarityCache(path, 100);
+         UMLSMetric lin = factory.getUMLSSimilarity(Similarity.LIN, 1)) {
+      // The server is sent trimmed terms
+      assertEquals(102, cache.apply(lin, " a", "Bb "), 0);
+      assertEquals(102, cache.apply(lin, "A", "bB"), 0);
+      final List<Pair<String, String>> bulk = new ArrayList<>();
+      bulk.add(Pair.of("BB ", " A"));
+      bulk.add(Pair.of(" CCC", "a "));
+      assertArrayEquals(new double[]{102, 301}, cache.apply(lin, bulk), 0);
+      assertEquals(2, server.requests.get());
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package edu.utdallas.hlt.medbase.umls;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.utdallas.hltri.struct.Pair;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UMLSSimilarityFactoryTests {
+  /** Stands in for the UMLS::Similarity daemon, scoring "t1 t2 measure" as len(t1) * 100 + len(t2) */
+  static class StubServer implements Runnable {
+    final ServerSocket  server;
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger open        = new AtomicInteger();
+    final AtomicInteger requests    = new AtomicInteger();
+
+    StubServer() throws IOException {
+      server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @Override public void run() {
+      while (!server.isClosed()) {
+        try {
+          final Socket socket = server.accept();
+          connections.incrementAndGet();
+          open.incrementAndGet();
+          new Thread(() -> serve(socket)).start();
+        } catch (IOException ex) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      try (Socket s = socket;
+           BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+           PrintWriter writer = new PrintWriter(s.getOutputStream())) {
+        for (String line; (line = reader.readLine()) != null; ) {
+          final String[] fields = line.split(" ");
+          requests.incrementAndGet();
+          writer.println("quit".equals(fields[0]) ? "error" : fields[0].length() * 100 + fields[1].length());
+          // Only flush once the client stops writing, like a pipelining server
+          if (!reader.ready()) {
+            writer.flush();
+          }
+        }
+      } catch (IOException ignored) {
+      } finally {
+        open.decrementAndGet();
+      }
+    }
+  }
+
+  private StubServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new StubServer();
+    new Thread(server).start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.server.close();
+  }
+
+  private UMLSSimilarityFactory.UMLSMetric metric(int connections) {
+    return new UMLSSimilarityFactory(server.server.getInetAddress(), server.server.getLocalPort())
+        .getUMLSSimilarity(UMLSSimilarityFactory.Similarity.LIN, connections);
+  }
+
+  private static String term(int length) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append('C');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testApply() {
+    try (UMLSSimilarityFactory.UMLSMetric metric = metric(1)) {
+      assertEquals(203, metric.apply("ab", "cde"), 0);
+      assertEquals(102, metric.applyAsync("a", "bc").join(), 0);
+    }
+  }
+
+  @Test
+  public void testPipelinedBulkApply() {
+    final List<Pair<String, String>> pairs = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      pairs.add(Pair.of(term(1 + i % 7), term(1 + i % 11)));
+    }
+    try (UMLSSimilarityFactory.UMLSMetric metric = metric(3)) {
+      final List<CompletableFuture<double[]>> futures = new ArrayList<>();
+      for (int round = 0; round < 4; round++) {
+        futures.add(metric.applyAsync(pairs));
+      }
+      futures.add(CompletableFuture.completedFuture(metric.apply(pairs)));
+      for (CompletableFuture<double[]> future : futures) {
+        final double[] scores = future.join();
+        assertEquals(pairs.size(), scores.length);
+        for (int i = 0; i < scores.length; i++) {
+          assertEquals((1 + i % 7) * 100 + 1 + i % 11, scores[i], 0);
+        }
+      }
+    }
+    assertEquals(5000, server.requests.get());
+    assertTrue(server.connections.get() <= 3);
+  }
+
+  @Test
+  public void testDropsBrokenConnections() {
+    try (UMLSSimilarityFactory.UMLSMetric metric = metric(1)) {
+      try {
+        metric.apply("quit", "now");
+        fail("Expected an unparseable response");
+      } catch (UncheckedIOException expected) {
+      }
+      assertEquals(101, metric.apply("a", "b"), 0);
+    }
+    assertEquals(2, server.connections.get());
+  }
+
+  /** Waits for the server to see all client connections closed */
+  private void awaitClosed() throws InterruptedException {
+    for (int i = 0; i < 500 && server.open.get() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, server.open.get());
+  }
+
+  @Test
+  public void testCloseWaitsForBatchesAndClosesConnections() throws InterruptedException {
+    final List<Pair<String, String>> pairs = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      pairs.add(Pair.of(term(1 + i % 7), term(1 + i % 11)));
+    }
+    final UMLSSimilarityFactory.UMLSMetric metric = metric(3);
+    final CompletableFuture<double[]> scores = metric.applyAsync(pairs);
+    metric.close();
+    // Batches submitted before close() finish before it returns
+    assertTrue(scores.isDone());
+    assertEquals(pairs.size(), scores.join().length);
+    awaitClosed();
+
+    // Pairs scored after close() do not leak their connection
+    assertEquals(102, metric.apply("a", "bc"), 0);
+    awaitClosed();
+    try {
+      metric.applyAsync(pairs);
+      fail("Expected the closed pool to reject batches");
+    } catch (RejectedExecutionException expected) {
+    }
+  }
+}